@@ -0,0 +1,42 @@
+package feign.fluentd;
+
+import feign.Request;
+import feign.Response;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static feign.Util.UTF_8;
+
+/**
+ * Requests and responses as a JSON API would send them, with a body of the given size.
+ */
+final class BenchmarkData {
+    static final String CONFIG_KEY = "GitHub#contributors(String,String)";
+
+    final Request request;
+    final Response response;
+    final IOException ioException = new IOException("Connection reset");
+
+    BenchmarkData(int bodySize) {
+        final byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'a');
+        final Map<String, Collection<String>> headers = new HashMap<>();
+        headers.put("Accept", Collections.singletonList("application/json"));
+        headers.put("Content-Type", Collections.singletonList("application/json; charset=UTF-8"));
+        request = Request.create(Request.HttpMethod.POST,
+                "https://api.github.com/repos/OpenFeign/feign/contributors?anon=true", headers,
+                bodySize == 0 ? null : body, UTF_8);
+        response = Response.builder()
+                .status(200)
+                .reason("OK")
+                .request(request)
+                .headers(headers)
+                .body(body)
+                .build();
+    }
+}
@@ -0,0 +1,99 @@
+package feign.fluentd;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What compressing a batch of FULL-level events costs the sender thread, against the bytes it saves on the
+ * wire. Level 0 is plain PackedForward; the bytes per batch are printed once per trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+    private static final int EVENTS_PER_BATCH = 64;
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Param({"0", "1", "6", "9"})
+    private int level;
+
+    @Param({"512", "4096", "65536"})
+    private int bodySize;
+
+    private ForwardSender sender;
+    private EventBatch batch;
+
+    @Setup
+    public void setUp() throws IOException {
+        sender = level == 0 ? new ForwardSender("localhost", 24224)
+                : new ForwardSender("localhost", 24224, ForwardSender.Mode.COMPRESSED_PACKED_FORWARD, 1000)
+                        .withCompression(level, 0);
+        batch = new EventBatch("feign");
+        final Random random = new Random(42);
+        for (int i = 0; i < EVENTS_PER_BATCH; i++) {
+            final Map<String, Object> event = new HashMap<>();
+            event.put("type", "response");
+            event.put("status", 200);
+            event.put("elapsed_time", 10 + random.nextInt(200));
+            event.put("method", "GitHub#contributors(String,String)");
+            event.put("body", jsonBody(random, bodySize));
+            batch.add(1_500_000_000L + i, event);
+        }
+        System.out.printf("%nlevel=%d bodySize=%d: %d bytes encoded, %d bytes on the wire per batch%n", level,
+                bodySize, batch.entries().size(), sender.write(batch, DISCARD, null));
+    }
+
+    /**
+     * A JSON array of contributor objects, about {@code size} bytes, with the variety a real API response has.
+     */
+    private static String jsonBody(Random random, int size) {
+        final StringBuilder json = new StringBuilder(size + 128).append('[');
+        while (json.length() < size) {
+            json.append("{\"login\":\"user").append(random.nextInt(100_000))
+                    .append("\",\"id\":").append(random.nextInt(10_000_000))
+                    .append(",\"type\":\"User\",\"site_admin\":").append(random.nextBoolean())
+                    .append(",\"contributions\":").append(random.nextInt(5_000)).append("},");
+        }
+        json.setCharAt(json.length() - 1, ']');
+        return json.toString();
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.close();
+    }
+
+    @Benchmark
+    public long writeBatch() throws IOException {
+        return sender.write(batch, DISCARD, null);
+    }
+}
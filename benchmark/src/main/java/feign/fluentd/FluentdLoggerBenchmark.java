@@ -0,0 +1,112 @@
+package feign.fluentd;
+
+import feign.Logger;
+import feign.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What each {@link FluentdLogger} callback costs the calling thread, writing to a {@link NoOpFluentLogger}
+ * directly or through a {@link SingleThreadWrapper}, or to a {@link ForwardSender} batching onto an in-process
+ * {@link ForwardSink}, as maps or MessagePack encoded. Run with {@code -prof gc} for allocation rates.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FluentdLoggerBenchmark {
+
+    public enum Sink {
+        /** {@code FluentdLogger} straight onto the no-op logger */
+        DIRECT,
+        /** {@code FluentdLogger} handing events to a {@code SingleThreadWrapper} */
+        SINGLE_THREAD,
+        /** {@code FluentdLogger} handing maps to a {@code SingleThreadWrapper} batching for a {@code ForwardSender} */
+        FORWARD,
+        /** the same, with {@code withMessagePackEncoding()} */
+        FORWARD_PACKED
+    }
+
+    @Param({"DIRECT", "SINGLE_THREAD", "FORWARD", "FORWARD_PACKED"})
+    private Sink sink;
+
+    @Param({"NONE", "BASIC", "HEADERS", "FULL"})
+    private Logger.Level level;
+
+    @Param({"0", "1024", "65536", "1048576"})
+    private int bodySize;
+
+    private BenchmarkData data;
+    private ForwardSink forwardSink;
+    private SingleThreadWrapper wrapper;
+    private FluentdLogger logger;
+
+    @Setup
+    public void setUp() throws IOException {
+        data = new BenchmarkData(bodySize);
+        switch (sink) {
+            case SINGLE_THREAD:
+                wrapper = new SingleThreadWrapper(new NoOpFluentLogger());
+                logger = new FluentdLogger(wrapper);
+                break;
+            case FORWARD:
+            case FORWARD_PACKED:
+                forwardSink = new ForwardSink(0, 0, 0, 0, TimeUnit.MILLISECONDS);
+                wrapper = SingleThreadWrapper.builder(new ForwardSender("localhost", forwardSink.port()))
+                        .batch(64, 10, TimeUnit.MILLISECONDS)
+                        .build();
+                logger = new FluentdLogger(wrapper);
+                if (sink == Sink.FORWARD_PACKED) {
+                    logger.withMessagePackEncoding();
+                }
+                break;
+            default:
+                logger = new FluentdLogger(new NoOpFluentLogger());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (wrapper != null) {
+            wrapper.close();
+        }
+        if (forwardSink != null) {
+            forwardSink.close();
+        }
+    }
+
+    @Benchmark
+    public void logRequest() {
+        logger.logRequest(BenchmarkData.CONFIG_KEY, level, data.request);
+    }
+
+    @Benchmark
+    public Response logAndRebufferResponse() throws IOException {
+        return logger.logAndRebufferResponse(BenchmarkData.CONFIG_KEY, level, data.response, 12L);
+    }
+
+    @Benchmark
+    public void logRetry() {
+        logger.logRetry(BenchmarkData.CONFIG_KEY, level);
+    }
+
+    @Benchmark
+    public IOException logIOException() {
+        return logger.logIOException(BenchmarkData.CONFIG_KEY, level, data.ioException, 12L);
+    }
+}
@@ -0,0 +1,295 @@
+package feign.fluentd;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process Fluentd {@code in_forward} stand-in that counts the events it receives in Message, Forward,
+ * PackedForward and CompressedPackedForward messages, and misbehaves on request: it can take a while per message, stop reading for a
+ * while at intervals, and drop its connections at intervals.
+ */
+final class ForwardSink implements Closeable {
+
+    private final long latencyNanos;
+    private final long stallEveryNanos;
+    private final long stallNanos;
+    private final long disconnectEveryNanos;
+
+    private final ServerSocket serverSocket;
+    private final List<Socket> connections = new CopyOnWriteArrayList<>();
+    private final LongAdder events = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private volatile boolean running = true;
+
+    /**
+     * @param latency         time spent on each message
+     * @param stallEvery      interval between stalls, 0 for none
+     * @param stall           how long each stall lasts
+     * @param disconnectEvery interval between dropping the connections, 0 for never
+     */
+    ForwardSink(long latency, long stallEvery, long stall, long disconnectEvery, TimeUnit unit) throws IOException {
+        this.latencyNanos = unit.toNanos(latency);
+        this.stallEveryNanos = unit.toNanos(stallEvery);
+        this.stallNanos = unit.toNanos(stall);
+        this.disconnectEveryNanos = unit.toNanos(disconnectEvery);
+        serverSocket = new ServerSocket(0);
+        final Thread acceptor = new Thread(this::acceptLoop, "forward-sink-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    long events() {
+        return events.sum();
+    }
+
+    long messages() {
+        return messages.sum();
+    }
+
+    long disconnects() {
+        return disconnects.sum();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connections.add(socket);
+                final Thread reader = new Thread(() -> readLoop(socket), "forward-sink-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        final long start = System.nanoTime();
+        long nextStall = start + stallEveryNanos;
+        final long disconnectAt = start + disconnectEveryNanos;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (running) {
+                events.add(readMessage(in));
+                messages.increment();
+                if (latencyNanos > 0) {
+                    LockSupport.parkNanos(latencyNanos);
+                }
+                final long now = System.nanoTime();
+                if (stallEveryNanos > 0 && now - nextStall >= 0) {
+                    LockSupport.parkNanos(stallNanos);
+                    nextStall = System.nanoTime() + stallEveryNanos;
+                }
+                if (disconnectEveryNanos > 0 && now - disconnectAt >= 0) {
+                    disconnects.increment();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // connection closed by the client
+        } finally {
+            connections.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // already closed
+            }
+        }
+    }
+
+    /**
+     * @return the number of events in the message
+     */
+    private static int readMessage(DataInputStream in) throws IOException {
+        final int size = arrayHeader(in, in.readUnsignedByte());
+        skip(in, in.readUnsignedByte());
+        final int type = in.readUnsignedByte();
+        final int count;
+        if (isArray(type)) {
+            count = arrayHeader(in, type);
+            for (int i = 0; i < count; i++) {
+                skip(in, in.readUnsignedByte());
+            }
+            skipRemaining(in, size - 2);
+        } else if (isRawBytes(type)) {
+            final byte[] entries = new byte[rawLength(in, type)];
+            in.readFully(entries);
+            count = countValues(entries);
+            skipRemaining(in, size - 2);
+        } else {
+            skip(in, type);
+            skip(in, in.readUnsignedByte());
+            count = 1;
+            skipRemaining(in, size - 3);
+        }
+        return count;
+    }
+
+    /**
+     * Entries start with an array header, so a gzip magic number means CompressedPackedForward.
+     */
+    private static int countValues(byte[] entries) throws IOException {
+        final boolean gzip = entries.length > 1 && entries[0] == 0x1f && entries[1] == (byte) 0x8b;
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(gzip
+                ? new GZIPInputStream(new ByteArrayInputStream(entries)) : new ByteArrayInputStream(entries)));
+        int count = 0;
+        int type;
+        while ((type = in.read()) >= 0) {
+            skip(in, type);
+            count++;
+        }
+        return count;
+    }
+
+    private static void skipRemaining(DataInputStream in, int values) throws IOException {
+        for (int i = 0; i < values; i++) {
+            skip(in, in.readUnsignedByte());
+        }
+    }
+
+    private static boolean isArray(int type) {
+        return (type & 0xf0) == 0x90 || type == 0xdc || type == 0xdd;
+    }
+
+    private static boolean isRawBytes(int type) {
+        return (type & 0xe0) == 0xa0 || (type >= 0xc4 && type <= 0xc6) || (type >= 0xd9 && type <= 0xdb);
+    }
+
+    private static int arrayHeader(DataInputStream in, int type) throws IOException {
+        if ((type & 0xf0) == 0x90) {
+            return type & 0x0f;
+        } else if (type == 0xdc) {
+            return in.readUnsignedShort();
+        } else if (type == 0xdd) {
+            return in.readInt();
+        }
+        throw new IOException("not an array: 0x" + Integer.toHexString(type));
+    }
+
+    private static int rawLength(DataInputStream in, int type) throws IOException {
+        if ((type & 0xe0) == 0xa0) {
+            return type & 0x1f;
+        }
+        switch (type) {
+            case 0xc4:
+            case 0xd9:
+                return in.readUnsignedByte();
+            case 0xc5:
+            case 0xda:
+                return in.readUnsignedShort();
+            default:
+                return in.readInt();
+        }
+    }
+
+    private static void skip(DataInputStream in, int type) throws IOException {
+        if (type <= 0x7f || type >= 0xe0 || type == 0xc0 || type == 0xc2 || type == 0xc3) {
+            return;
+        }
+        if ((type & 0xf0) == 0x80) {
+            skipRemaining(in, 2 * (type & 0x0f));
+            return;
+        }
+        if (isArray(type)) {
+            skipRemaining(in, arrayHeader(in, type));
+            return;
+        }
+        if (isRawBytes(type)) {
+            skipBytes(in, rawLength(in, type));
+            return;
+        }
+        switch (type) {
+            case 0xcc:
+            case 0xd0:
+                skipBytes(in, 1);
+                return;
+            case 0xcd:
+            case 0xd1:
+                skipBytes(in, 2);
+                return;
+            case 0xca:
+            case 0xce:
+            case 0xd2:
+                skipBytes(in, 4);
+                return;
+            case 0xcb:
+            case 0xcf:
+            case 0xd3:
+                skipBytes(in, 8);
+                return;
+            case 0xd4:
+                skipBytes(in, 2);
+                return;
+            case 0xd5:
+                skipBytes(in, 3);
+                return;
+            case 0xd6:
+                skipBytes(in, 5);
+                return;
+            case 0xd7:
+                skipBytes(in, 9);
+                return;
+            case 0xd8:
+                skipBytes(in, 17);
+                return;
+            case 0xc7:
+                skipBytes(in, in.readUnsignedByte() + 1);
+                return;
+            case 0xc8:
+                skipBytes(in, in.readUnsignedShort() + 1);
+                return;
+            case 0xc9:
+                skipBytes(in, in.readInt() + 1);
+                return;
+            case 0xde:
+                skipRemaining(in, 2 * in.readUnsignedShort());
+                return;
+            case 0xdf:
+                skipRemaining(in, 2 * in.readInt());
+                return;
+            default:
+                throw new IOException("unexpected type 0x" + Integer.toHexString(type));
+        }
+    }
+
+    private static void skipBytes(DataInputStream in, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            final int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                remaining--;
+            } else {
+                remaining -= skipped;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        for (Socket socket : connections) {
+            socket.close();
+        }
+    }
+}
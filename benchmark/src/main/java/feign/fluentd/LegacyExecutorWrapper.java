@@ -0,0 +1,54 @@
+package feign.fluentd;
+
+import org.fluentd.logger.FluentLogger;
+
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code SingleThreadWrapper} as it was before its queue was bounded: every event is submitted to a single
+ * thread executor with an unbounded queue. Kept to show where that design runs away.
+ */
+final class LegacyExecutorWrapper extends FluentLogger {
+    private final ThreadPoolExecutor executorService =
+            new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+    private final FluentLogger realLogger;
+
+    LegacyExecutorWrapper(FluentLogger realLogger) {
+        this.realLogger = realLogger;
+    }
+
+    @Override
+    public boolean log(String tag, Map<String, Object> data, long timestamp) {
+        this.executorService.submit(() -> {
+            try {
+                realLogger.log(tag, data, timestamp);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        return true;
+    }
+
+    int queueDepth() {
+        return executorService.getQueue().size();
+    }
+
+    @Override
+    public void flush() {
+        realLogger.flush();
+    }
+
+    @Override
+    public void close() {
+        executorService.shutdown();
+        try {
+            executorService.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        realLogger.close();
+    }
+}
@@ -0,0 +1,307 @@
+package feign.fluentd;
+
+import com.sun.net.httpserver.HttpServer;
+import feign.Feign;
+import feign.Logger;
+import feign.Param;
+import feign.Request;
+import feign.RequestLine;
+import feign.Response;
+import org.fluentd.logger.FluentLogger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load and soak test: Feign clients call a local HTTP stub as fast as allowed while logging to a
+ * {@link ForwardSink}, which can be made slow, stalling or disconnecting. Prints events per second, queue
+ * depth and heap once a second, then the latency logging added to each call, the peak queue depth, heap
+ * growth and lost events.
+ * <p>
+ * Options, as {@code --name=value}:
+ * <ul>
+ * <li>{@code logger}: {@code bounded} (SingleThreadWrapper around fluent-logger), {@code batched}
+ * (SingleThreadWrapper around a ForwardSender, MessagePack encoding) or {@code legacy} (the former unbounded
+ * executor); default {@code bounded}</li>
+ * <li>{@code threads} (8), {@code duration} seconds (30), {@code rate} calls per second over all threads, 0
+ * for as fast as possible (0)</li>
+ * <li>{@code level} (BASIC), {@code body} response bytes (1024)</li>
+ * <li>{@code capacity} and {@code overflow} of the bounded queue (8192, DROP_NEWEST)</li>
+ * <li>{@code compression}: gzip level for {@code batched}, 0 for none (0)</li>
+ * <li>{@code sinkLatencyMicros} per message (0), {@code stallEveryMillis} and {@code stallMillis} (0, 0),
+ * {@code disconnectEveryMillis} (0)</li>
+ * </ul>
+ * Run with {@code java -cp target/benchmarks.jar feign.fluentd.LoadHarness --logger=legacy --sinkLatencyMicros=200}.
+ */
+public final class LoadHarness {
+
+    interface Api {
+        @RequestLine("GET /items/{id}")
+        String item(@Param("id") int id);
+    }
+
+    /**
+     * Measures the time spent in each callback; a call's callbacks all run on its thread.
+     */
+    static final class TimedLogger extends FluentdLogger {
+        final LongAdder events = new LongAdder();
+        final ThreadLocal<long[]> callNanos = ThreadLocal.withInitial(() -> new long[1]);
+
+        TimedLogger(FluentLogger logger) {
+            super(logger);
+        }
+
+        private void add(long start) {
+            callNanos.get()[0] += System.nanoTime() - start;
+            events.increment();
+        }
+
+        @Override
+        protected void logRequest(String configKey, Level logLevel, Request request) {
+            final long start = System.nanoTime();
+            super.logRequest(configKey, logLevel, request);
+            add(start);
+        }
+
+        @Override
+        protected void logRetry(String configKey, Level logLevel) {
+            final long start = System.nanoTime();
+            super.logRetry(configKey, logLevel);
+            add(start);
+        }
+
+        @Override
+        protected Response logAndRebufferResponse(String configKey, Level logLevel, Response response,
+                                                  long elapsedTime) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                return super.logAndRebufferResponse(configKey, logLevel, response, elapsedTime);
+            } finally {
+                add(start);
+            }
+        }
+
+        @Override
+        protected IOException logIOException(String configKey, Level logLevel, IOException ioe, long elapsedTime) {
+            final long start = System.nanoTime();
+            try {
+                return super.logIOException(configKey, logLevel, ioe, elapsedTime);
+            } finally {
+                add(start);
+            }
+        }
+    }
+
+    private final Map<String, String> options;
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    private LoadHarness(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("expected --name=value: " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new LoadHarness(options).run();
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private long longOption(String name, long defaultValue) {
+        return Long.parseLong(option(name, String.valueOf(defaultValue)));
+    }
+
+    private void run() throws Exception {
+        final String mode = option("logger", "bounded");
+        final int threads = (int) longOption("threads", 8);
+        final long durationNanos = TimeUnit.SECONDS.toNanos(longOption("duration", 30));
+        final long rate = longOption("rate", 0);
+        final Logger.Level level = Logger.Level.valueOf(option("level", "BASIC"));
+        final byte[] body = new byte[(int) longOption("body", 1024)];
+        Arrays.fill(body, (byte) 'a');
+
+        // without it every response waits for a delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        final HttpServer http = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        http.createContext("/", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.setExecutor(Executors.newFixedThreadPool(threads));
+        http.start();
+
+        final ForwardSink sink = new ForwardSink(longOption("sinkLatencyMicros", 0),
+                longOption("stallEveryMillis", 0) * 1000, longOption("stallMillis", 0) * 1000,
+                longOption("disconnectEveryMillis", 0) * 1000, TimeUnit.MICROSECONDS);
+
+        final FluentLogger fluentLogger = fluentLogger(mode, sink.port());
+        final TimedLogger logger = new TimedLogger(fluentLogger);
+        if ("batched".equals(mode)) {
+            logger.withMessagePackEncoding();
+        }
+        final Api api = Feign.builder()
+                .logger(logger)
+                .logLevel(level)
+                .target(Api.class, "http://localhost:" + http.getAddress().getPort());
+
+        System.out.printf("logger=%s threads=%d rate=%d level=%s body=%d options=%s%n", mode, threads, rate, level,
+                body.length, options);
+        final long heapBefore = usedHeapAfterGc();
+        final LongAdder calls = new LongAdder();
+        final LongAdder failedCalls = new LongAdder();
+        final List<LatencyRecorder> recorders = new ArrayList<>();
+        final List<Thread> clients = new ArrayList<>();
+        final long start = System.nanoTime();
+        final long end = start + durationNanos;
+        for (int t = 0; t < threads; t++) {
+            final LatencyRecorder recorder = new LatencyRecorder();
+            recorders.add(recorder);
+            final Thread client = new Thread(() -> callLoop(api, logger, recorder, calls, failedCalls, end,
+                    rate == 0 ? 0 : TimeUnit.SECONDS.toNanos(threads) / rate), "client");
+            clients.add(client);
+            client.start();
+        }
+
+        int maxQueueDepth = 0;
+        long lastEvents = 0;
+        long lastReceived = 0;
+        while (System.nanoTime() - end < 0) {
+            Thread.sleep(1000);
+            final int depth = queueDepth(fluentLogger);
+            maxQueueDepth = Math.max(maxQueueDepth, depth);
+            final long events = logger.events.sum();
+            final long received = sink.events();
+            System.out.printf("t=%3ds logged=%8d/s received=%8d/s queue=%8d heap=%6dMB dropped=%d%n",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), events - lastEvents,
+                    received - lastReceived, depth, memory.getHeapMemoryUsage().getUsed() >> 20,
+                    dropped(fluentLogger));
+            lastEvents = events;
+            lastReceived = received;
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        final long elapsedNanos = System.nanoTime() - start;
+        final long heapAfter = usedHeapAfterGc();
+
+        // give the sender up to 30 seconds to deliver what was accepted
+        final long logged = logger.events.sum();
+        final long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (sink.events() + dropped(fluentLogger) < logged && System.nanoTime() - drainDeadline < 0) {
+            fluentLogger.flush();
+            Thread.sleep(100);
+        }
+        fluentLogger.close();
+
+        final LatencyRecorder latency = new LatencyRecorder();
+        for (LatencyRecorder recorder : recorders) {
+            latency.add(recorder);
+        }
+        final double seconds = elapsedNanos / 1e9;
+        System.out.println("----");
+        System.out.printf("calls        %d (%d failed), %.0f/s%n", calls.sum(), failedCalls.sum(), calls.sum() / seconds);
+        System.out.printf("events       logged %d (%.0f/s), received %d, dropped %d, lost %d%n", logged,
+                logged / seconds, sink.events(), dropped(fluentLogger), logged - sink.events());
+        System.out.printf("added/call   p50 %.1fus  p99 %.1fus  p99.9 %.1fus  max %.1fus%n",
+                latency.percentile(50) / 1e3, latency.percentile(99) / 1e3, latency.percentile(99.9) / 1e3,
+                latency.max() / 1e3);
+        System.out.printf("queue depth  max %d%n", maxQueueDepth);
+        System.out.printf("heap         %dMB before, %dMB after load (growth %dMB)%n", heapBefore >> 20,
+                heapAfter >> 20, (heapAfter - heapBefore) >> 20);
+        System.out.printf("sink         %d messages, %d disconnects%n", sink.messages(), sink.disconnects());
+
+        sink.close();
+        http.stop(0);
+        System.exit(0);
+    }
+
+    private void callLoop(Api api, TimedLogger logger, LatencyRecorder recorder, LongAdder calls,
+                          LongAdder failedCalls, long end, long intervalNanos) {
+        final long[] callNanos = logger.callNanos.get();
+        long next = System.nanoTime();
+        int id = 0;
+        while (System.nanoTime() - end < 0) {
+            if (intervalNanos > 0) {
+                next += intervalNanos;
+                final long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            callNanos[0] = 0;
+            try {
+                api.item(id++);
+            } catch (RuntimeException e) {
+                failedCalls.increment();
+            }
+            recorder.record(callNanos[0]);
+            calls.increment();
+        }
+    }
+
+    private FluentLogger fluentLogger(String mode, int port) {
+        final int capacity = (int) longOption("capacity", 8192);
+        final OverflowPolicy overflow = OverflowPolicy.valueOf(option("overflow", "DROP_NEWEST"));
+        switch (mode) {
+            case "legacy":
+                return new LegacyExecutorWrapper(FluentLogger.getLogger(null, "localhost", port));
+            case "batched":
+                final int compression = (int) longOption("compression", 0);
+                return SingleThreadWrapper.builder(compression == 0 ? new ForwardSender("localhost", port)
+                        : new ForwardSender("localhost", port, ForwardSender.Mode.COMPRESSED_PACKED_FORWARD, 3000)
+                                .withCompression(compression, 4096))
+                        .capacity(capacity)
+                        .overflowPolicy(overflow)
+                        .build();
+            case "bounded":
+                return SingleThreadWrapper.builder(FluentLogger.getLogger(null, "localhost", port))
+                        .capacity(capacity)
+                        .overflowPolicy(overflow)
+                        .build();
+            default:
+                throw new IllegalArgumentException("unknown logger: " + mode);
+        }
+    }
+
+    private static int queueDepth(FluentLogger logger) {
+        if (logger instanceof SingleThreadWrapper) {
+            return ((SingleThreadWrapper) logger).queueDepth();
+        }
+        return ((LegacyExecutorWrapper) logger).queueDepth();
+    }
+
+    private static long dropped(FluentLogger logger) {
+        if (logger instanceof SingleThreadWrapper) {
+            final SingleThreadWrapper wrapper = (SingleThreadWrapper) logger;
+            return wrapper.droppedEvents() + wrapper.sendFailures();
+        }
+        return 0;
+    }
+
+    private long usedHeapAfterGc() {
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,29 @@
+package feign.fluentd;
+
+import org.fluentd.logger.FluentLogger;
+
+import java.util.Map;
+
+/**
+ * Accepts every event and sends nothing, so that benchmarks measure the logger alone.
+ */
+final class NoOpFluentLogger extends FluentLogger {
+
+    @Override
+    public boolean log(String tag, Map<String, Object> data, long timestamp) {
+        return true;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+}
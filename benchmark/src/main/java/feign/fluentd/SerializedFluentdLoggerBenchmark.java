@@ -0,0 +1,67 @@
+package feign.fluentd;
+
+import feign.Logger;
+import feign.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SerializedFluentdLogger} keeps events until a call ends, so it is measured per call rather than per
+ * callback; compare with the sum of the matching {@link FluentdLoggerBenchmark} callbacks.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializedFluentdLoggerBenchmark {
+
+    @Param({"NONE", "BASIC", "HEADERS", "FULL"})
+    private Logger.Level level;
+
+    @Param({"0", "1024", "65536", "1048576"})
+    private int bodySize;
+
+    private BenchmarkData data;
+    private SerializedFluentdLogger logger;
+
+    @Setup
+    public void setUp() {
+        data = new BenchmarkData(bodySize);
+        logger = new SerializedFluentdLogger(new NoOpFluentLogger());
+    }
+
+    /**
+     * request, response
+     */
+    @Benchmark
+    public Response successfulCall() throws IOException {
+        logger.logRequest(BenchmarkData.CONFIG_KEY, level, data.request);
+        return logger.logAndRebufferResponse(BenchmarkData.CONFIG_KEY, level, data.response, 12L);
+    }
+
+    /**
+     * request, io_exception, retry, request, response
+     */
+    @Benchmark
+    public Response retriedCall() throws IOException {
+        logger.logRequest(BenchmarkData.CONFIG_KEY, level, data.request);
+        logger.logIOException(BenchmarkData.CONFIG_KEY, level, data.ioException, 12L);
+        logger.logRetry(BenchmarkData.CONFIG_KEY, level);
+        logger.logRequest(BenchmarkData.CONFIG_KEY, level, data.request);
+        return logger.logAndRebufferResponse(BenchmarkData.CONFIG_KEY, level, data.response, 12L);
+    }
+}
@@ -0,0 +1,233 @@
+package feign.fluentd;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The messages a {@link ForwardSender} wrote with a {@code chunk} option and Fluentd did not acknowledge yet,
+ * kept encoded so that they can be written again after a reconnect or an ack timeout.
+ * <p>
+ * Used only by the sender thread.
+ */
+final class AckWindow {
+    private static final int RETAINED_CAPACITY = 1024 * 1024;
+
+    static final class Chunk {
+        String id;
+        String tag;
+        int count;
+        final MessagePackWriter message = new MessagePackWriter(16 * 1024);
+        final OutputStream stream = new OutputStream() {
+            @Override
+            public void write(int b) {
+                message.writeRaw(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                message.writeRaw(b, off, len);
+            }
+        };
+        boolean written;
+        long writtenAt;
+        long takenAt;
+        long bytes;
+    }
+
+    private final int maxInFlight;
+    private final long timeoutNanos;
+    private final ArrayDeque<Chunk> inFlight = new ArrayDeque<>();
+    private final ArrayDeque<Chunk> acknowledged = new ArrayDeque<>();
+    private final ArrayDeque<Chunk> free = new ArrayDeque<>();
+    private final ByteBuffer idBytes = ByteBuffer.allocate(16);
+    private final long session = ThreadLocalRandom.current().nextLong();
+    private long sequence;
+
+    AckWindow(int maxInFlight, long timeoutNanos) {
+        if (maxInFlight < 1 || timeoutNanos <= 0) {
+            throw new IllegalArgumentException("maxInFlight and ack timeout must be positive");
+        }
+        this.maxInFlight = maxInFlight;
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    boolean isFull() {
+        return inFlight.size() >= maxInFlight;
+    }
+
+    boolean isEmpty() {
+        return inFlight.isEmpty();
+    }
+
+    int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * Opens a chunk for a batch; its message is to be written to {@link Chunk#stream}.
+     */
+    Chunk add(String tag, int count) {
+        Chunk chunk = free.poll();
+        if (chunk == null) {
+            chunk = new Chunk();
+        }
+        idBytes.clear();
+        idBytes.putLong(session).putLong(++sequence);
+        chunk.id = Base64.getEncoder().encodeToString(idBytes.array());
+        chunk.tag = tag;
+        chunk.count = count;
+        chunk.message.reset();
+        chunk.written = false;
+        chunk.takenAt = System.nanoTime();
+        chunk.bytes = 0;
+        inFlight.addLast(chunk);
+        return chunk;
+    }
+
+    /**
+     * Writes every chunk not written on the current connection yet, oldest first.
+     *
+     * @return whether anything was written
+     */
+    boolean writeUnwritten(OutputStream out, long now) throws IOException {
+        boolean wrote = false;
+        for (Chunk chunk : inFlight) {
+            if (!chunk.written) {
+                chunk.message.writeTo(out);
+                chunk.written = true;
+                chunk.writtenAt = now;
+                wrote = true;
+            }
+        }
+        return wrote;
+    }
+
+    /**
+     * The connection went away: everything still in flight is written again on the next one.
+     */
+    void unwriteAll() {
+        for (Chunk chunk : inFlight) {
+            chunk.written = false;
+        }
+    }
+
+    /**
+     * Whether a chunk written on the current connection waited longer than the ack timeout.
+     */
+    boolean isOverdue(long now) {
+        for (Chunk chunk : inFlight) {
+            if (chunk.written) {
+                return now - chunk.writtenAt > timeoutNanos;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * When the oldest chunk written on the current connection times out, or {@code now} if none was written.
+     */
+    long nextDeadline(long now) {
+        for (Chunk chunk : inFlight) {
+            if (chunk.written) {
+                return chunk.writtenAt + timeoutNanos;
+            }
+        }
+        return now;
+    }
+
+    void acknowledge(String id) {
+        final Iterator<Chunk> chunks = inFlight.iterator();
+        while (chunks.hasNext()) {
+            final Chunk chunk = chunks.next();
+            if (chunk.id.equals(id)) {
+                chunks.remove();
+                acknowledged.add(chunk);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Passes the chunks acknowledged since the last call to {@code delivered}, timed from when they were taken.
+     */
+    void pollAcknowledged(ForwardTransport.Delivered delivered, long now) {
+        Chunk chunk;
+        while ((chunk = acknowledged.poll()) != null) {
+            delivered.onDelivered(chunk.tag, chunk.count, chunk.bytes, now - chunk.takenAt);
+            recycle(chunk);
+        }
+    }
+
+    private void recycle(Chunk chunk) {
+        if (chunk.message.buffer().length <= RETAINED_CAPACITY && free.size() < maxInFlight) {
+            free.add(chunk);
+        }
+    }
+
+    /**
+     * Gives up on everything in flight.
+     *
+     * @return the chunks given up on, for counting their events as failed
+     */
+    List<Chunk> abandon() {
+        final List<Chunk> abandoned = new ArrayList<>(inFlight);
+        inFlight.clear();
+        return abandoned;
+    }
+
+    /**
+     * Reads one {@code {"ack": chunk}} response.
+     *
+     * @return the acknowledged chunk id, or null for a map without one
+     */
+    static String readAck(DataInputStream in) throws IOException {
+        final int type = in.readUnsignedByte();
+        final int size;
+        if ((type & 0xf0) == 0x80) {
+            size = type & 0x0f;
+        } else if (type == 0xde) {
+            size = in.readUnsignedShort();
+        } else if (type == 0xdf) {
+            size = in.readInt();
+        } else {
+            throw new IOException("expected an ack map, got type 0x" + Integer.toHexString(type));
+        }
+        String ack = null;
+        for (int i = 0; i < size; i++) {
+            final String key = readString(in);
+            final String value = readString(in);
+            if ("ack".equals(key)) {
+                ack = value;
+            }
+        }
+        return ack;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int type = in.readUnsignedByte();
+        final int length;
+        if ((type & 0xe0) == 0xa0) {
+            length = type & 0x1f;
+        } else if (type == 0xd9) {
+            length = in.readUnsignedByte();
+        } else if (type == 0xda) {
+            length = in.readUnsignedShort();
+        } else if (type == 0xdb) {
+            length = in.readInt();
+        } else {
+            throw new IOException("expected a str in an ack, got type 0x" + Integer.toHexString(type));
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,198 @@
+package feign.fluentd;
+
+import feign.Request;
+import feign.Response;
+import org.fluentd.logger.FluentLogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logs one {@code rollup} event per Feign method and interval instead of events per call: calls, responses
+ * per status class, retries, I/O exceptions and elapsed time percentiles.
+ * <p>
+ * The callbacks only bump {@link LongAdder}s and a {@link LatencyHistogram}, which are striped so that
+ * calling threads do not contend; nothing is built, encoded or read from the response body. Rollups are
+ * logged from a daemon thread of their own, and a last time on {@link #close()}. A rollup that fails is
+ * reported to {@link java.util.logging} and the next ones are still logged.
+ */
+public class AggregatingFluentdLogger extends FluentdLogger implements Closeable {
+    private static final String[] STATUS_CLASSES = {"other", "1xx", "2xx", "3xx", "4xx", "5xx"};
+    private static final java.util.logging.Logger LOG =
+            java.util.logging.Logger.getLogger(AggregatingFluentdLogger.class.getName());
+
+    static final class MethodStats {
+        final LongAdder requests = new LongAdder();
+        final LongAdder retries = new LongAdder();
+        final LongAdder ioExceptions = new LongAdder();
+        final LongAdder[] statusClasses = new LongAdder[STATUS_CLASSES.length];
+        final LatencyHistogram elapsedTime = new LatencyHistogram();
+
+        MethodStats() {
+            for (int i = 0; i < statusClasses.length; i++) {
+                statusClasses[i] = new LongAdder();
+            }
+        }
+    }
+
+    private final ConcurrentMap<String, MethodStats> stats = new ConcurrentHashMap<>();
+    private final long intervalMillis;
+    private final ScheduledExecutorService scheduler;
+    private long lastRollupAt = System.nanoTime();
+
+    public AggregatingFluentdLogger(FluentLogger logger, long interval, TimeUnit unit) {
+        this(logger, "feign", interval, unit);
+    }
+
+    public AggregatingFluentdLogger(FluentLogger logger, String tagPrefix, long interval, TimeUnit unit) {
+        super(logger, tagPrefix);
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        }
+        this.intervalMillis = unit.toMillis(interval);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "feign-fluentd-rollup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::logScheduledRollups, interval, interval, unit);
+    }
+
+    /**
+     * The scheduled task: an exception escaping it would cancel every later run.
+     */
+    private void logScheduledRollups() {
+        try {
+            logRollups();
+        } catch (RuntimeException e) {
+            LOG.log(java.util.logging.Level.WARNING, "could not log rollups", e);
+        }
+    }
+
+    /**
+     * Ignored: rollups are rare enough to be logged as maps.
+     */
+    @Override
+    public FluentdLogger withMessagePackEncoding() {
+        return this;
+    }
+
+    private MethodStats stats(String configKey) {
+        MethodStats methodStats = stats.get(configKey);
+        if (methodStats == null) {
+            methodStats = new MethodStats();
+            final MethodStats existing = stats.putIfAbsent(configKey, methodStats);
+            if (existing != null) {
+                methodStats = existing;
+            }
+        }
+        return methodStats;
+    }
+
+    @Override
+    protected void logRequest(String configKey, Level logLevel, Request request) {
+        stats(configKey).requests.increment();
+    }
+
+    @Override
+    protected void logRetry(String configKey, Level logLevel) {
+        stats(configKey).retries.increment();
+    }
+
+    @Override
+    protected Response logAndRebufferResponse(String configKey, Level logLevel, Response response,
+                                              long elapsedTime) {
+        final MethodStats methodStats = stats(configKey);
+        final int statusClass = response.status() / 100;
+        methodStats.statusClasses[statusClass >= 1 && statusClass <= 5 ? statusClass : 0].increment();
+        methodStats.elapsedTime.record(TimeUnit.MILLISECONDS.toNanos(elapsedTime));
+        return response;
+    }
+
+    @Override
+    protected IOException logIOException(String configKey, Level logLevel, IOException ioe, long elapsedTime) {
+        final MethodStats methodStats = stats(configKey);
+        methodStats.ioExceptions.increment();
+        methodStats.elapsedTime.record(TimeUnit.MILLISECONDS.toNanos(elapsedTime));
+        return ioe;
+    }
+
+    /**
+     * Logs a rollup of every method that saw calls since the last one, and starts the next interval.
+     */
+    public synchronized void logRollups() {
+        final long now = System.nanoTime();
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(now - lastRollupAt);
+        lastRollupAt = now;
+        stats.forEach((configKey, methodStats) -> {
+            final Map<String, Object> rollup = rollup(methodStats, elapsedMillis);
+            if (rollup != null) {
+                doLog(configKey, LogType.rollup, rollup);
+            }
+        });
+    }
+
+    /**
+     * @return the rollup of one method, or null if it saw nothing this interval
+     */
+    private static Map<String, Object> rollup(MethodStats methodStats, long elapsedMillis) {
+        final long requests = methodStats.requests.sumThenReset();
+        final long retries = methodStats.retries.sumThenReset();
+        final long ioExceptions = methodStats.ioExceptions.sumThenReset();
+        final Map<String, Object> statusClasses = new HashMap<>();
+        long responses = 0;
+        for (int i = 0; i < STATUS_CLASSES.length; i++) {
+            final long count = methodStats.statusClasses[i].sumThenReset();
+            if (count > 0) {
+                statusClasses.put(STATUS_CLASSES[i], count);
+                responses += count;
+            }
+        }
+        final LatencyHistogram.Snapshot elapsed = methodStats.elapsedTime.snapshotAndReset();
+        if (requests == 0 && retries == 0 && responses == 0 && ioExceptions == 0) {
+            return null;
+        }
+        final Map<String, Object> rollup = new HashMap<>();
+        rollup.put("intervalMs", elapsedMillis);
+        rollup.put("requests", requests);
+        rollup.put("responses", responses);
+        rollup.put("status", statusClasses);
+        rollup.put("retries", retries);
+        rollup.put("io_exceptions", ioExceptions);
+        rollup.put("elapsedTimeMs", elapsedTimeMillis(elapsed));
+        return rollup;
+    }
+
+    private static Map<String, Object> elapsedTimeMillis(LatencyHistogram.Snapshot snapshot) {
+        final Map<String, Object> millis = new HashMap<>();
+        millis.put("count", snapshot.getCount());
+        millis.put("mean", TimeUnit.NANOSECONDS.toMillis(snapshot.getMeanNanos()));
+        millis.put("p50", TimeUnit.NANOSECONDS.toMillis(snapshot.getP50Nanos()));
+        millis.put("p99", TimeUnit.NANOSECONDS.toMillis(snapshot.getP99Nanos()));
+        millis.put("p999", TimeUnit.NANOSECONDS.toMillis(snapshot.getP999Nanos()));
+        millis.put("max", TimeUnit.NANOSECONDS.toMillis(snapshot.getMaxNanos()));
+        return millis;
+    }
+
+    /**
+     * Stops the rollup thread and logs what was aggregated since the last rollup.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(intervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logRollups();
+    }
+}
@@ -0,0 +1,140 @@
+package feign.fluentd;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Decides what {@link FluentdLogger} logs of request and response bodies at {@code Level.FULL}.
+ * <p>
+ * Bodies whose {@code Content-Type} is on the allowlist are decoded to text, up to {@code maxBytes}. Others
+ * are either sent as raw MessagePack {@code bin} (again capped) or left out, in which case only
+ * {@code body-bytes} is logged and nothing is decoded or copied.
+ */
+public final class BodyPolicy {
+
+    private static final BodyPolicy UNRESTRICTED = new BodyPolicy(Integer.MAX_VALUE, null, false);
+
+    final int maxBytes;
+    private final String[] textualContentTypes;
+    final boolean binaryAsBin;
+
+    private BodyPolicy(int maxBytes, String[] textualContentTypes, boolean binaryAsBin) {
+        this.maxBytes = maxBytes;
+        this.textualContentTypes = textualContentTypes;
+        this.binaryAsBin = binaryAsBin;
+    }
+
+    /**
+     * Every body decoded in full, whatever its content type: what {@link FluentdLogger} always did.
+     */
+    public static BodyPolicy unrestricted() {
+        return UNRESTRICTED;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Whether a body is logged at all, as text or as {@code bin}.
+     */
+    boolean logsBody(Map<String, Collection<String>> headers) {
+        return binaryAsBin || isTextual(headers);
+    }
+
+    boolean isTextual(Map<String, Collection<String>> headers) {
+        if (textualContentTypes == null) {
+            return true;
+        }
+        final String contentType = contentType(headers);
+        if (contentType == null) {
+            return false;
+        }
+        int end = contentType.indexOf(';');
+        if (end < 0) {
+            end = contentType.length();
+        }
+        while (end > 0 && contentType.charAt(end - 1) == ' ') {
+            end--;
+        }
+        for (String pattern : textualContentTypes) {
+            if (matches(contentType, end, pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(String contentType, int end, String pattern) {
+        if (pattern.startsWith("+")) {
+            return end >= pattern.length()
+                    && contentType.regionMatches(true, end - pattern.length(), pattern, 0, pattern.length());
+        }
+        if (pattern.endsWith("/")) {
+            return contentType.regionMatches(true, 0, pattern, 0, pattern.length());
+        }
+        return end == pattern.length() && contentType.regionMatches(true, 0, pattern, 0, end);
+    }
+
+    private static String contentType(Map<String, Collection<String>> headers) {
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, Collection<String>> header : headers.entrySet()) {
+            if ("Content-Type".equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                return header.getValue().iterator().next();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "BodyPolicy{maxBytes=" + maxBytes + ", textualContentTypes="
+                + (textualContentTypes == null ? "*" : Arrays.toString(textualContentTypes))
+                + ", binaryAsBin=" + binaryAsBin + "}";
+    }
+
+    public static final class Builder {
+        private int maxBytes = Integer.MAX_VALUE;
+        private String[] textualContentTypes;
+        private boolean binaryAsBin;
+
+        private Builder() {
+        }
+
+        /**
+         * Longest body prefix logged; longer bodies are cut and marked {@code body-truncated}.
+         */
+        public Builder maxBytes(int maxBytes) {
+            if (maxBytes < 0) {
+                throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+            }
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Content types decoded as text, matched case-insensitively and ignoring parameters:
+         * {@code "text/"} matches a whole top-level type, {@code "+json"} a structured syntax suffix, anything
+         * else one exact type. Once set, bodies without a {@code Content-Type} are not textual.
+         */
+        public Builder textualContentTypes(String... patterns) {
+            this.textualContentTypes = patterns.clone();
+            return this;
+        }
+
+        /**
+         * Send bodies that are not textual as raw bytes instead of leaving them out.
+         */
+        public Builder binaryAsBin(boolean binaryAsBin) {
+            this.binaryAsBin = binaryAsBin;
+            return this;
+        }
+
+        public BodyPolicy build() {
+            return new BodyPolicy(maxBytes, textualContentTypes, binaryAsBin);
+        }
+    }
+}
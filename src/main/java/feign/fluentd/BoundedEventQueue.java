@@ -0,0 +1,159 @@
+package feign.fluentd;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded array queue of log events (Vyukov's sequenced ring buffer).
+ * <p>
+ * Slots are allocated up front and reused, and both ends are claimed with a single CAS, so neither
+ * {@link #offer} nor {@link #poll} allocates or locks. Producers may also {@link #poll} to evict the oldest
+ * event, which is why the consumer side is CAS based as well.
+ * <p>
+ * Pre-encoded records are copied into a byte array owned by their slot, which is kept for the next event
+ * unless an unusually large record made it grow.
+ */
+final class BoundedEventQueue {
+
+    /**
+     * Receives the drained events, with their times in milliseconds since the epoch.
+     */
+    interface EventHandler {
+        void onEvent(String tag, Map<String, Object> data, long epochMillis);
+
+        /**
+         * {@code record} is only valid during the call.
+         */
+        void onEncodedEvent(String tag, byte[] record, int length, long epochMillis);
+    }
+
+    private static final int RETAINED_RECORD_BYTES = 64 * 1024;
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final String[] tags;
+    private final Object[] data;
+    private final long[] timestamps;
+    private final byte[][] records;
+    private final int[] recordLengths;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    BoundedEventQueue(int requestedCapacity) {
+        if (requestedCapacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2: " + requestedCapacity);
+        }
+        final int capacity = Integer.highestOneBit(requestedCapacity - 1) << 1;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        this.tags = new String[capacity];
+        this.data = new Object[capacity];
+        this.timestamps = new long[capacity];
+        this.records = new byte[capacity][];
+        this.recordLengths = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            sequences.lazySet(i, i);
+        }
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    int size() {
+        final long size = tail.get() - head.get();
+        return size < 0 ? 0 : (int) Math.min(size, capacity());
+    }
+
+    /**
+     * Enqueues either a map event or, with {@code event == null}, a copy of the encoded {@code record}.
+     */
+    boolean offer(String tag, Map<String, Object> event, MessagePackWriter record, long timestamp) {
+        long position = tail.get();
+        for (; ; ) {
+            final int index = (int) position & mask;
+            final long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    tags[index] = tag;
+                    data[index] = event;
+                    timestamps[index] = timestamp;
+                    if (event == null) {
+                        copyRecord(index, record);
+                    }
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest event and hands it to {@code handler}, which may be {@code null} to discard it.
+     *
+     * @return false if the queue was empty
+     */
+    @SuppressWarnings("unchecked")
+    boolean poll(EventHandler handler) {
+        long position = head.get();
+        for (; ; ) {
+            final int index = (int) position & mask;
+            final long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    final String tag = tags[index];
+                    final Map<String, Object> event = (Map<String, Object>) data[index];
+                    final long timestamp = timestamps[index];
+                    tags[index] = null;
+                    data[index] = null;
+                    if (event != null) {
+                        sequences.lazySet(index, position + mask + 1);
+                        if (handler != null) {
+                            handler.onEvent(tag, event, timestamp);
+                        }
+                        return true;
+                    }
+                    // the record bytes stay in the slot, so it is released only after the handler is done
+                    if (handler != null) {
+                        handler.onEncodedEvent(tag, records[index], recordLengths[index], timestamp);
+                    }
+                    if (records[index].length > RETAINED_RECORD_BYTES) {
+                        records[index] = null;
+                    }
+                    sequences.lazySet(index, position + mask + 1);
+                    return true;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    private void copyRecord(int index, MessagePackWriter record) {
+        final int length = record.size();
+        byte[] target = records[index];
+        if (target == null || target.length < length) {
+            target = new byte[Math.max(length, 256)];
+            records[index] = target;
+        }
+        System.arraycopy(record.buffer(), 0, target, 0, length);
+        recordLengths[index] = length;
+    }
+
+    int drain(EventHandler handler, int limit) {
+        int drained = 0;
+        while (drained < limit && poll(handler)) {
+            drained++;
+        }
+        return drained;
+    }
+}
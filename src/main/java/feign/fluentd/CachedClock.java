@@ -0,0 +1,72 @@
+package feign.fluentd;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The wall clock at millisecond granularity, read by a daemon ticker thread once per millisecond, so that
+ * stamping an event is a volatile read instead of a clock call per event.
+ * <p>
+ * The ticker only runs while some {@link SingleThreadWrapper} is open: each one {@link #acquire acquires} it
+ * when built and {@link #release releases} it when closed, and the last release stops the thread, so that an
+ * unloaded application leaves none behind. Without a ticker, readings come straight from the clock.
+ * <p>
+ * A reading may lag the real clock by the ticker's period plus however long the thread was not scheduled;
+ * events of one call still get their times in order, since they are stamped by the same clock.
+ */
+final class CachedClock {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static volatile long millis = System.currentTimeMillis();
+    private static volatile Thread ticker;
+    private static int users;
+
+    private CachedClock() {
+    }
+
+    /**
+     * Starts the ticker unless it runs already.
+     */
+    static synchronized void acquire() {
+        if (users++ == 0) {
+            millis = System.currentTimeMillis();
+            final Thread thread = new Thread(CachedClock::tick, "feign-fluentd-clock");
+            thread.setDaemon(true);
+            ticker = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the ticker once every {@link #acquire} was released.
+     */
+    static synchronized void release() {
+        if (users > 0 && --users == 0) {
+            final Thread thread = ticker;
+            ticker = null;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    static synchronized int users() {
+        return users;
+    }
+
+    /**
+     * Ticks until this thread is no longer the ticker, even if another one was started since.
+     */
+    private static void tick() {
+        final Thread self = Thread.currentThread();
+        while (ticker == self) {
+            LockSupport.parkNanos(TICK_NANOS);
+            millis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Milliseconds since the epoch, as of the last tick while the ticker runs.
+     */
+    static long currentTimeMillis() {
+        return ticker != null ? millis : System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,288 @@
+package feign.fluentd;
+
+import feign.Request;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The events of calls in flight, for {@link SerializedFluentdLogger} to merge.
+ * <p>
+ * A call is found by the identity of its {@link Request}, so a response handled on another thread still
+ * joins its request. Retries and IO exceptions, which Feign logs on the calling thread without a request,
+ * join the call last opened on the current thread. Any other event without a known request (one evicted,
+ * never logged, or a response of a client that does not set {@link feign.Response#request()}) only joins a
+ * call opened without a request, never taking over another call still open on the thread.
+ * <p>
+ * At most {@code maxPending} calls are kept, none longer than the timeout; the ones evicted are handed to the
+ * orphan consumer instead of being leaked. Every operation sweeps when a quarter of the timeout has passed since
+ * the last sweep, so that calls are evicted even on threads that stop opening new ones.
+ */
+final class CorrelationStore {
+
+    static final class Context {
+        final String configKey;
+        final Request request;
+        final long threadId;
+        final long createdNanos;
+        private final Map<LogType, Map<String, Object>> events = new EnumMap<>(LogType.class);
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private boolean requestBodyDeferred;
+        /**
+         * The circuit breaker's ticket of the request event.
+         */
+        volatile long sinkTicket = SinkCircuitBreaker.UNTRACKED;
+
+        private Context(String configKey, Request request, long threadId, long createdNanos) {
+            this.configKey = configKey;
+            this.request = request;
+            this.threadId = threadId;
+            this.createdNanos = createdNanos;
+        }
+
+        synchronized void put(LogType type, Map<String, Object> values) {
+            events.put(type, values);
+        }
+
+        /**
+         * Adds {@code value} to the {@code type} map under the next index: {@code "0"}, {@code "1"}, ...
+         */
+        synchronized void append(LogType type, Object value) {
+            final Map<String, Object> values = events.computeIfAbsent(type, t -> new HashMap<>(4));
+            values.put(String.valueOf(values.size()), value);
+        }
+
+        synchronized Map<String, Object> get(LogType type) {
+            return events.get(type);
+        }
+
+        /**
+         * The request was logged without its body, which is to be added if the call is kept.
+         */
+        synchronized void deferRequestBody() {
+            requestBodyDeferred = true;
+        }
+
+        synchronized boolean isRequestBodyDeferred() {
+            return requestBodyDeferred;
+        }
+
+        synchronized boolean isEmpty() {
+            return events.isEmpty();
+        }
+
+        /**
+         * The events by type name, in {@link LogType} order.
+         */
+        synchronized Map<String, Object> toStringMap() {
+            final Map<String, Object> map = new LinkedHashMap<>(events.size() * 2);
+            for (Map.Entry<LogType, Map<String, Object>> event : events.entrySet()) {
+                map.put(event.getKey().name(), event.getValue());
+            }
+            return map;
+        }
+
+        private boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+    }
+
+    private final ConcurrentMap<Request, Context> byRequest = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Context> byThread = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final int maxPending;
+    private final long timeoutNanos;
+    private final Consumer<Context> orphans;
+    private volatile long lastSweep = System.nanoTime();
+
+    CorrelationStore(int maxPending, long timeoutNanos, Consumer<Context> orphans) {
+        if (maxPending < 1 || timeoutNanos <= 0) {
+            throw new IllegalArgumentException("maxPending and timeout must be positive");
+        }
+        this.maxPending = maxPending;
+        this.timeoutNanos = timeoutNanos;
+        this.orphans = orphans;
+    }
+
+    /**
+     * Starts a call. Whatever the current thread collected without a request (retries, mostly) becomes its
+     * {@code dirty_context}; an earlier call with a request stays reachable through that request.
+     */
+    Context open(String configKey, Request request) {
+        final long now = System.nanoTime();
+        final long threadId = Thread.currentThread().getId();
+        final Context context = new Context(configKey, request, threadId, now);
+        final Context previous = byThread.put(threadId, context);
+        pending.incrementAndGet();
+        if (previous != null && previous.request == null && previous.claim()) {
+            pending.decrementAndGet();
+            if (!previous.isEmpty()) {
+                context.put(LogType.dirty_context, previous.toStringMap());
+            }
+        }
+        if (request != null) {
+            byRequest.put(request, context);
+        }
+        if (pending.get() > maxPending) {
+            sweep(now);
+        } else {
+            sweepIfDue(now);
+        }
+        return context;
+    }
+
+    private void sweepIfDue(long now) {
+        if (now - lastSweep > timeoutNanos / 4) {
+            sweep(now);
+        }
+    }
+
+    /**
+     * The call last opened on this thread, opened without a request if there is none.
+     */
+    Context current(String configKey) {
+        final long now = System.nanoTime();
+        sweepIfDue(now);
+        final long threadId = Thread.currentThread().getId();
+        final Context context = byThread.get(threadId);
+        if (context != null && !context.claimed.get()) {
+            return context;
+        }
+        final Context created = new Context(configKey, null, threadId, now);
+        byThread.put(threadId, created);
+        pending.incrementAndGet();
+        return created;
+    }
+
+    /**
+     * The call of {@code request} without ending it or, with no request, the one opened without a request on
+     * this thread; that of an unknown request may be any other call.
+     *
+     * @return the call's context, or null if there is none
+     */
+    Context peek(Request request) {
+        sweepIfDue(System.nanoTime());
+        final Context context = request != null ? byRequest.get(request) : onThread(false);
+        return context == null || context.claimed.get() ? null : context;
+    }
+
+    /**
+     * The call last opened on this thread, with or without a request, without ending it.
+     *
+     * @return the call's context, or null if there is none
+     */
+    Context peekOnThread() {
+        sweepIfDue(System.nanoTime());
+        final Context context = onThread(true);
+        return context == null || context.claimed.get() ? null : context;
+    }
+
+    private Context onThread(boolean withRequest) {
+        final Context context = byThread.get(Thread.currentThread().getId());
+        return context != null && (withRequest || context.request == null) ? context : null;
+    }
+
+    /**
+     * Ends the call of {@code request} or, with no request, the one opened without a request on this thread.
+     *
+     * @return the call's context, or an empty one if it is unknown or was already evicted
+     */
+    Context close(String configKey, Request request) {
+        sweepIfDue(System.nanoTime());
+        if (request != null) {
+            final Context context = byRequest.remove(request);
+            if (context != null && context.claim()) {
+                byThread.remove(context.threadId, context);
+                pending.decrementAndGet();
+                return context;
+            }
+            return new Context(configKey, request, Thread.currentThread().getId(), System.nanoTime());
+        }
+        return closeOnThread(configKey, false);
+    }
+
+    /**
+     * Ends the call last opened on this thread, with or without a request.
+     *
+     * @return the call's context, or an empty one if there is none
+     */
+    Context closeOnThread(String configKey) {
+        sweepIfDue(System.nanoTime());
+        return closeOnThread(configKey, true);
+    }
+
+    private Context closeOnThread(String configKey, boolean withRequest) {
+        final long threadId = Thread.currentThread().getId();
+        final Context context = onThread(withRequest);
+        if (context != null && byThread.remove(threadId, context) && context.claim()) {
+            if (context.request != null) {
+                byRequest.remove(context.request, context);
+            }
+            pending.decrementAndGet();
+            return context;
+        }
+        return new Context(configKey, null, threadId, System.nanoTime());
+    }
+
+    int pending() {
+        return pending.get();
+    }
+
+    /**
+     * Evicts calls older than the timeout, then the oldest ones while more than {@code maxPending} remain
+     * (down to three quarters, so that a full store is not swept on every call).
+     */
+    void sweep(long now) {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            lastSweep = now;
+            final Set<Context> live = Collections.newSetFromMap(new IdentityHashMap<>());
+            live.addAll(byThread.values());
+            live.addAll(byRequest.values());
+            final List<Context> remaining = new ArrayList<>(live.size());
+            for (Context context : live) {
+                if (now - context.createdNanos > timeoutNanos) {
+                    evict(context);
+                } else if (!context.claimed.get()) {
+                    remaining.add(context);
+                }
+            }
+            if (pending.get() > maxPending) {
+                remaining.sort((a, b) -> Long.compare(a.createdNanos - now, b.createdNanos - now));
+                final int target = maxPending - maxPending / 4;
+                for (int i = 0; i < remaining.size() && pending.get() > target; i++) {
+                    evict(remaining.get(i));
+                }
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    private void evict(Context context) {
+        if (!context.claim()) {
+            return;
+        }
+        byThread.remove(context.threadId, context);
+        if (context.request != null) {
+            byRequest.remove(context.request, context);
+        }
+        pending.decrementAndGet();
+        orphans.accept(context);
+    }
+}
@@ -0,0 +1,270 @@
+package feign.fluentd;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Encoded batches parked on local disk while Fluentd cannot take them, in memory-mapped segment files of a
+ * fixed size that are replayed oldest first and deleted once fully sent.
+ * <p>
+ * A record is {@code [int length][byte state][int count][short tag length][tag][entries]}. The length is
+ * written last and a record is marked sent in place, so after a crash or restart the segments left in the
+ * directory are scanned and replay resumes at the first record not marked sent; a record that was sent but
+ * not yet marked is sent again. Writes are not forced to the device before close, so a process crash loses
+ * nothing but a power loss may.
+ * <p>
+ * Not thread-safe: it is owned by the sender thread of {@link SingleThreadWrapper}, except {@link #backlog()}.
+ */
+final class DiskSpill implements Closeable {
+    static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final int HEADER = 5;
+    private static final byte PENDING = 0;
+    private static final byte SENT = 1;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("spill-(\\d{12})\\.seg");
+
+    private static final class Segment {
+        final long sequence;
+        final File file;
+        final MappedByteBuffer buffer;
+        int readPosition;
+        int writePosition;
+
+        Segment(long sequence, File file, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        boolean isConsumed() {
+            return readPosition == writePosition;
+        }
+    }
+
+    private final File directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private volatile long backlog;
+    private byte[] scratch = new byte[8 * 1024];
+
+    DiskSpill(File directory, long maxBytes) throws IOException {
+        this(directory, maxBytes, (int) Math.min(DEFAULT_SEGMENT_BYTES, maxBytes));
+    }
+
+    DiskSpill(File directory, long maxBytes, int segmentBytes) throws IOException {
+        if (segmentBytes <= HEADER || maxBytes < segmentBytes) {
+            throw new IllegalArgumentException("maxBytes must hold at least one segment of " + segmentBytes);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create spill directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.min(maxBytes / segmentBytes, Integer.MAX_VALUE);
+        recover();
+    }
+
+    /**
+     * Maps the segments a previous process left behind, oldest first, and finds where each was read and
+     * written up to.
+     */
+    private void recover() throws IOException {
+        final File[] files = directory.listFiles((dir, name) -> SEGMENT_NAME.matcher(name).matches());
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            final Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+            matcher.matches();
+            final Segment segment = new Segment(Long.parseLong(matcher.group(1)), file, map(file, file.length()));
+            boolean sent = true;
+            int position = 0;
+            while (position + HEADER <= segment.buffer.capacity()) {
+                final int length = segment.buffer.getInt(position);
+                if (length <= 0 || position + HEADER + length > segment.buffer.capacity()) {
+                    break;
+                }
+                position += HEADER + length;
+                sent &= segment.buffer.get(position - length - 1) == SENT;
+                if (sent) {
+                    segment.readPosition = position;
+                }
+            }
+            segment.writePosition = position;
+            if (segment.isConsumed()) {
+                delete(segment);
+            } else {
+                segments.addLast(segment);
+                backlog += segment.writePosition - segment.readPosition;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return backlog == 0;
+    }
+
+    /**
+     * Bytes spilled and not yet replayed.
+     */
+    long backlog() {
+        return backlog;
+    }
+
+    /**
+     * Appends the events of {@code batch}.
+     *
+     * @return false when the batch does not fit within the size cap
+     */
+    boolean append(EventBatch batch) throws IOException {
+        final byte[] tag = batch.tag.getBytes(StandardCharsets.UTF_8);
+        final MessagePackWriter entries = batch.entries();
+        final int length = 4 + 2 + tag.length + entries.size();
+        if (tag.length > Short.MAX_VALUE || HEADER + length > segmentBytes) {
+            return false;
+        }
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.writePosition + HEADER + length > segment.buffer.capacity()) {
+            final long sequence = segment == null ? firstSequence() : segment.sequence + 1;
+            if (segment != null && segment.isConsumed()) {
+                segments.removeLast();
+                delete(segment);
+            }
+            if (segments.size() >= maxSegments) {
+                return false;
+            }
+            final File file = new File(directory, String.format("spill-%012d.seg", sequence));
+            segment = new Segment(sequence, file, map(file, segmentBytes));
+            segments.addLast(segment);
+        }
+        final MappedByteBuffer buffer = segment.buffer;
+        final int position = segment.writePosition;
+        buffer.put(position + 4, PENDING);
+        buffer.putInt(position + HEADER, batch.count());
+        buffer.putShort(position + HEADER + 4, (short) tag.length);
+        buffer.position(position + HEADER + 6);
+        buffer.put(tag);
+        buffer.put(entries.buffer(), 0, entries.size());
+        // the length goes in last: until then the record does not exist for recover()
+        buffer.putInt(position, length);
+        segment.writePosition = position + HEADER + length;
+        backlog += HEADER + length;
+        return true;
+    }
+
+    /**
+     * The directory may hold segments that were already replayed and deleted, so keep counting up from
+     * the newest name left, or start over when there are none.
+     */
+    private long firstSequence() {
+        final String[] names = directory.list((dir, name) -> SEGMENT_NAME.matcher(name).matches());
+        long sequence = 0;
+        if (names != null) {
+            for (String name : names) {
+                final Matcher matcher = SEGMENT_NAME.matcher(name);
+                matcher.matches();
+                sequence = Math.max(sequence, Long.parseLong(matcher.group(1)) + 1);
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Loads the oldest record not yet sent into the batch of its tag in {@code batches}, creating that batch
+     * if needed; the record stays in the spill until {@link #commit()}.
+     *
+     * @return the loaded batch, or null when the spill is empty
+     */
+    EventBatch peek(Map<String, EventBatch> batches) {
+        if (isEmpty()) {
+            return null;
+        }
+        final Segment segment = segments.peekFirst();
+        final MappedByteBuffer buffer = segment.buffer;
+        final int position = segment.readPosition;
+        final int length = buffer.getInt(position);
+        final int count = buffer.getInt(position + HEADER);
+        final int tagLength = buffer.getShort(position + HEADER + 4);
+        final int entriesLength = length - 6 - tagLength;
+        final String tag = new String(read(buffer, position + HEADER + 6, tagLength), 0, tagLength,
+                StandardCharsets.UTF_8);
+        EventBatch batch = batches.get(tag);
+        if (batch == null) {
+            batch = new EventBatch(tag);
+            batches.put(tag, batch);
+        }
+        batch.clear();
+        batch.addEncoded(read(buffer, position + HEADER + 6 + tagLength, entriesLength), entriesLength, count);
+        return batch;
+    }
+
+    private byte[] read(MappedByteBuffer buffer, int position, int length) {
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(scratch.length << 1, length)];
+        }
+        buffer.position(position);
+        buffer.get(scratch, 0, length);
+        return scratch;
+    }
+
+    /**
+     * Marks the record last returned by {@link #peek} as sent, deleting its segment once nothing is left in
+     * it.
+     */
+    void commit() {
+        if (isEmpty()) {
+            return;
+        }
+        final Segment segment = segments.peekFirst();
+        final int length = segment.buffer.getInt(segment.readPosition);
+        segment.buffer.put(segment.readPosition + 4, SENT);
+        segment.readPosition += HEADER + length;
+        backlog -= HEADER + length;
+        // the newest segment is kept while appending to it, even when everything in it was sent
+        if (segment.isConsumed() && segments.size() > 1) {
+            segments.removeFirst();
+            delete(segment);
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * A segment that cannot be deleted now is found fully sent, and deleted, by the next {@link #recover()}.
+     */
+    private static void delete(Segment segment) {
+        segment.file.delete();
+    }
+
+    /**
+     * Forces what was spilled to the device; the segments stay for the next process to replay.
+     */
+    @Override
+    public void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        segments.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "DiskSpill{" + directory + ", " + backlog + " bytes}";
+    }
+}
@@ -0,0 +1,77 @@
+package feign.fluentd;
+
+import java.util.Map;
+
+/**
+ * Events of one tag, already encoded as the concatenated {@code [time, record]} entries shared by the
+ * Forward and PackedForward modes. Times are written as EventTime or, for older Fluentd versions, as whole
+ * seconds.
+ */
+final class EventBatch {
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    private static final int RETAINED_CAPACITY = 1024 * 1024;
+
+    final String tag;
+    private MessagePackWriter entries = new MessagePackWriter(INITIAL_CAPACITY);
+    private final boolean eventTime;
+    private int count;
+
+    EventBatch(String tag) {
+        this(tag, false);
+    }
+
+    EventBatch(String tag, boolean eventTime) {
+        this.tag = tag;
+        this.eventTime = eventTime;
+    }
+
+    void add(long epochMillis, Map<String, Object> record) {
+        entries.writeArrayHeader(2);
+        writeTime(epochMillis);
+        entries.writeValue(record);
+        count++;
+    }
+
+    void add(long epochMillis, byte[] record, int length) {
+        entries.writeArrayHeader(2);
+        writeTime(epochMillis);
+        entries.writeRaw(record, 0, length);
+        count++;
+    }
+
+    private void writeTime(long epochMillis) {
+        if (eventTime) {
+            entries.writeEventTime(epochMillis);
+        } else {
+            entries.writeLong(epochMillis / 1000);
+        }
+    }
+
+    /**
+     * Appends {@code count} entries encoded elsewhere, such as a batch read back from a {@link DiskSpill}.
+     */
+    void addEncoded(byte[] encodedEntries, int length, int count) {
+        entries.writeRaw(encodedEntries, 0, length);
+        this.count += count;
+    }
+
+    int count() {
+        return count;
+    }
+
+    MessagePackWriter entries() {
+        return entries;
+    }
+
+    /**
+     * Empties the batch for reuse, letting go of a buffer that an unusually large batch blew up.
+     */
+    void clear() {
+        count = 0;
+        if (entries.buffer().length > RETAINED_CAPACITY) {
+            entries = new MessagePackWriter(INITIAL_CAPACITY);
+        } else {
+            entries.reset();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package feign.fluentd;
+
+import java.util.Map;
+
+/**
+ * The queues of {@link SingleThreadWrapper}: one lane by default, or three, so that urgent events do not wait
+ * behind a burst of large bodies.
+ * <p>
+ * Urgent events are I/O exceptions and responses with a server error status; bulk events carry a body, or
+ * are encoded, of at least {@code bulkBytes}. Each lane has its own bound. Lanes are drained in rounds in
+ * which each may give up to its weight times {@value #QUANTUM} events; every event is taken from the first
+ * lane, urgent first, that has both events and some of its share left, so an urgent event waits for at most
+ * one event of another lane, and a lane with nothing to drain leaves its share to the others.
+ */
+final class EventLanes {
+    enum Lane {
+        URGENT, NORMAL, BULK
+    }
+
+    static final int QUANTUM = 16;
+    static final int URGENT_STATUS = 500;
+
+    private final BoundedEventQueue[] queues;
+    private final BoundedEventQueue[] distinct;
+    private final int[] quanta;
+    private final int[] credits;
+    private final int bulkBytes;
+    private boolean drainedUrgent;
+
+    /**
+     * A single lane: every event goes to the same queue.
+     */
+    EventLanes(int capacity) {
+        final BoundedEventQueue queue = new BoundedEventQueue(capacity);
+        this.queues = new BoundedEventQueue[]{queue, queue, queue};
+        this.distinct = new BoundedEventQueue[]{queue};
+        this.quanta = new int[]{Integer.MAX_VALUE};
+        this.credits = quanta.clone();
+        this.bulkBytes = Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param weights of the urgent, normal and bulk lanes
+     */
+    EventLanes(int urgentCapacity, int normalCapacity, int bulkCapacity, int bulkBytes, int[] weights) {
+        this.queues = new BoundedEventQueue[]{new BoundedEventQueue(urgentCapacity),
+                new BoundedEventQueue(normalCapacity), new BoundedEventQueue(bulkCapacity)};
+        this.distinct = queues;
+        this.quanta = new int[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            quanta[i] = weights[i] * QUANTUM;
+        }
+        this.credits = quanta.clone();
+        this.bulkBytes = bulkBytes;
+    }
+
+    boolean isSingle() {
+        return distinct.length == 1;
+    }
+
+    BoundedEventQueue queue(Lane lane) {
+        return queues[lane.ordinal()];
+    }
+
+    /**
+     * The lane of a map event, judged by the {@code io_exception}, {@code response} and {@code body} fields
+     * {@link FluentdLogger} and {@link SerializedFluentdLogger} log.
+     */
+    Lane laneOf(Map<String, Object> data) {
+        if (isSingle()) {
+            return Lane.NORMAL;
+        }
+        if (data.containsKey(LogType.io_exception.name())) {
+            return Lane.URGENT;
+        }
+        final Object response = data.get(LogType.response.name());
+        if (response instanceof Map) {
+            final Object status = ((Map<?, ?>) response).get("status");
+            if (status instanceof Integer && (Integer) status >= URGENT_STATUS) {
+                return Lane.URGENT;
+            }
+            if (isBulk((Map<?, ?>) response)) {
+                return Lane.BULK;
+            }
+        }
+        final Object request = data.get(LogType.request.name());
+        return request instanceof Map && isBulk((Map<?, ?>) request) ? Lane.BULK : Lane.NORMAL;
+    }
+
+    private boolean isBulk(Map<?, ?> event) {
+        final Object body = event.get("body");
+        if (body instanceof CharSequence) {
+            return ((CharSequence) body).length() >= bulkBytes;
+        }
+        return body instanceof byte[] && ((byte[]) body).length >= bulkBytes;
+    }
+
+    /**
+     * The lane of a record encoded by {@link FluentdLogger}, which tells whether it is urgent.
+     */
+    Lane laneOf(MessagePackWriter record, boolean urgent) {
+        if (urgent) {
+            return Lane.URGENT;
+        }
+        return record.size() >= bulkBytes ? Lane.BULK : Lane.NORMAL;
+    }
+
+    int size() {
+        int size = 0;
+        for (BoundedEventQueue queue : distinct) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    int capacity() {
+        int capacity = 0;
+        for (BoundedEventQueue queue : distinct) {
+            capacity += queue.capacity();
+        }
+        return capacity;
+    }
+
+    /**
+     * Drains up to {@code limit} events, the shares of the lanes carrying over from one call to the next.
+     */
+    int drain(BoundedEventQueue.EventHandler handler, int limit) {
+        if (isSingle()) {
+            return distinct[0].drain(handler, limit);
+        }
+        int drained = 0;
+        boolean refilled = false;
+        while (drained < limit) {
+            if (pollOne(handler)) {
+                drained++;
+                refilled = false;
+            } else if (refilled) {
+                break;
+            } else {
+                // every lane with events used up its share: next round
+                System.arraycopy(quanta, 0, credits, 0, quanta.length);
+                refilled = true;
+            }
+        }
+        return drained;
+    }
+
+    private boolean pollOne(BoundedEventQueue.EventHandler handler) {
+        for (int i = 0; i < distinct.length; i++) {
+            if (credits[i] > 0 && distinct[i].poll(handler)) {
+                credits[i]--;
+                if (i == Lane.URGENT.ordinal()) {
+                    drainedUrgent = true;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drains every lane, ignoring the weights; safe to call from another thread than the one draining.
+     *
+     * @return the number of events drained
+     */
+    int drainAll(BoundedEventQueue.EventHandler handler) {
+        int drained = 0;
+        for (BoundedEventQueue queue : distinct) {
+            while (queue.poll(handler)) {
+                drained++;
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Whether urgent events were drained since the last call.
+     */
+    boolean tookUrgent() {
+        final boolean took = drainedUrgent;
+        drainedUrgent = false;
+        return took;
+    }
+}
@@ -0,0 +1,186 @@
+package feign.fluentd;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caps how many events {@link FluentdLogger} emits, for its whole tag and for each Feign method, so that a
+ * spike on one client cannot flood the aggregator shared by every service.
+ * <p>
+ * Each limit is a {@link TokenBucket}: a sustained rate, plus a burst of events allowed at once. Events over
+ * a limit are skipped before anything is built and counted per method; once per summary interval, the
+ * first event let through also logs one {@code suppressed} record per method that lost events.
+ * <p>
+ * Summaries ride on events, so the counts of a spike followed by silence wait for the next event:
+ * {@link FluentdLogger#flushSuppressed()} logs them right away, and a {@link SingleThreadWrapper} has it done
+ * when closed.
+ */
+public final class EventRateLimiter {
+
+    private final TokenBucket tagBucket;
+    private final double methodRate;
+    private final int methodBurst;
+    private final long summaryNanos;
+    private final ConcurrentMap<String, TokenBucket> methodBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> suppressed = new ConcurrentHashMap<>();
+    private final LongAdder suppressedTotal = new LongAdder();
+    private final AtomicLong nextSummaryAt;
+
+    private EventRateLimiter(Builder builder) {
+        this.tagBucket = builder.tagRate > 0 ? new TokenBucket(builder.tagRate, builder.tagBurst) : null;
+        this.methodRate = builder.methodRate;
+        this.methodBurst = builder.methodBurst;
+        this.summaryNanos = builder.summaryNanos;
+        this.nextSummaryAt = new AtomicLong(System.nanoTime() + summaryNanos);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return false if the event is over a limit; it is counted then
+     */
+    boolean tryAcquire(String configKey, long nowNanos) {
+        final TokenBucket methodBucket = methodRate > 0 ? methodBucket(configKey) : null;
+        final int stripe = methodBucket != null ? methodBucket.take(nowNanos) : 0;
+        if (stripe >= 0) {
+            if (tagBucket == null || tagBucket.tryAcquire(nowNanos)) {
+                return true;
+            }
+            // the tag refused: the method's token would otherwise be lost to an event never logged
+            if (methodBucket != null) {
+                methodBucket.refund(stripe);
+            }
+        }
+        LongAdder count = suppressed.get(configKey);
+        if (count == null) {
+            count = suppressed.computeIfAbsent(configKey, key -> new LongAdder());
+        }
+        count.increment();
+        suppressedTotal.increment();
+        return false;
+    }
+
+    /**
+     * Config keys are one per Feign method, so the buckets are naturally bounded.
+     */
+    private TokenBucket methodBucket(String configKey) {
+        TokenBucket bucket = methodBuckets.get(configKey);
+        if (bucket == null) {
+            bucket = methodBuckets.computeIfAbsent(configKey, key -> new TokenBucket(methodRate, methodBurst));
+        }
+        return bucket;
+    }
+
+    /**
+     * Hands the events suppressed per method since the last summary to exactly one caller per interval.
+     *
+     * @return null if the interval has not passed yet or another thread took the summary
+     */
+    Map<String, Long> takeSummary(long nowNanos) {
+        final long at = nextSummaryAt.get();
+        if (nowNanos - at < 0 || !nextSummaryAt.compareAndSet(at, nowNanos + summaryNanos)) {
+            return null;
+        }
+        return summarize();
+    }
+
+    /**
+     * Hands the events suppressed per method since the last summary to the caller, due or not, and starts the
+     * next interval.
+     */
+    Map<String, Long> drainSummary(long nowNanos) {
+        nextSummaryAt.set(nowNanos + summaryNanos);
+        return summarize();
+    }
+
+    private Map<String, Long> summarize() {
+        final Map<String, Long> summary = new HashMap<>();
+        suppressed.forEach((configKey, count) -> {
+            final long events = count.sumThenReset();
+            if (events > 0) {
+                summary.put(configKey, events);
+            }
+        });
+        return summary;
+    }
+
+    long summaryIntervalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(summaryNanos);
+    }
+
+    /**
+     * Events skipped for being over a limit, summarized or not.
+     */
+    public long suppressedEvents() {
+        return suppressedTotal.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "EventRateLimiter{suppressed=" + suppressedTotal.sum() + "}";
+    }
+
+    /**
+     * Each burst is split over up to one stripe per processor of its {@link TokenBucket}; when it does not
+     * divide evenly, the first {@code burst % stripes} stripes take one event more, so that none of it is lost
+     * to rounding.
+     */
+    public static final class Builder {
+        private double tagRate;
+        private int tagBurst;
+        private double methodRate;
+        private int methodBurst;
+        private long summaryNanos = TimeUnit.MINUTES.toNanos(1);
+
+        private Builder() {
+        }
+
+        /**
+         * Events per second of the logger's tag, all methods together, with up to {@code burst} at once.
+         */
+        public Builder perTag(double eventsPerSecond, int burst) {
+            checkLimit(eventsPerSecond, burst);
+            this.tagRate = eventsPerSecond;
+            this.tagBurst = burst;
+            return this;
+        }
+
+        /**
+         * Events per second of each Feign method, with up to {@code burst} at once.
+         */
+        public Builder perConfigKey(double eventsPerSecond, int burst) {
+            checkLimit(eventsPerSecond, burst);
+            this.methodRate = eventsPerSecond;
+            this.methodBurst = burst;
+            return this;
+        }
+
+        /**
+         * How often the suppressed events are logged, 1 minute by default.
+         */
+        public Builder summaryInterval(long interval, TimeUnit unit) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("interval must be positive: " + interval);
+            }
+            this.summaryNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        private static void checkLimit(double eventsPerSecond, int burst) {
+            if (eventsPerSecond <= 0 || burst < 1) {
+                throw new IllegalArgumentException("eventsPerSecond and burst must be positive");
+            }
+        }
+
+        public EventRateLimiter build() {
+            return new EventRateLimiter(this);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package feign.fluentd;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Fields of one event as {@link FluentdLogger} writes them, independent of whether they end up in a
+ * {@link Map} handed to {@code FluentLogger} or directly in a MessagePack buffer.
+ */
+interface EventRecord {
+
+    void put(String key, String value);
+
+    /**
+     * Puts {@code value.substring(start, end)}, or {@code null} if {@code start} is negative.
+     */
+    void put(String key, String value, int start, int end);
+
+    void put(String key, int value);
+
+    void put(String key, long value);
+
+    void put(String key, boolean value);
+
+    /**
+     * Puts the {@code uri} map of a plain http(s) URL, see {@link UrlSplitter}.
+     *
+     * @return false, having written nothing, if the URL needs {@link java.net.URI} to be split
+     */
+    boolean putUri(String key, String url);
+
+    /**
+     * Puts the headers {@code filter} keeps, with their values masked or hashed as it says.
+     */
+    void putHeaders(String key, Map<String, Collection<String>> headers, HeaderFilter filter);
+
+    /**
+     * Decodes the first {@code length} bytes of {@code data} like {@code new String(data, 0, length, charset)}.
+     */
+    void putText(String key, byte[] data, int length, Charset charset);
+
+    /**
+     * Decodes the first {@code length} bytes of {@code data} like {@link feign.Util#decodeOrDefault}.
+     */
+    void putTextOrDefault(String key, byte[] data, int length, Charset charset, String defaultValue);
+
+    /**
+     * Puts the first {@code length} bytes of {@code data} undecoded, as MessagePack {@code bin}.
+     */
+    void putBinary(String key, byte[] data, int length);
+
+    /**
+     * Opens a nested map under {@code key}; following fields go into it until {@link #endMap()}.
+     */
+    void beginMap(String key);
+
+    void endMap();
+}
@@ -13,14 +13,26 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import static feign.Util.UTF_8;
-import static feign.Util.decodeOrDefault;
 
 public class FluentdLogger extends Logger {
 
     protected final FluentLogger logger;
     protected final String tagPrefix;
+    private final ConcurrentMap<String, MethodMetadata> metadata = new ConcurrentHashMap<>();
+    private boolean packed;
+    private int responseCaptureLimit = -1;
+    private BodyPolicy bodyPolicy = BodyPolicy.unrestricted();
+    private final Map<String, BodyPolicy> bodyPolicyOverrides = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, BodyPolicy> bodyPolicies = new ConcurrentHashMap<>();
+    private SinkCircuitBreaker circuitBreaker;
+    private HeaderFilter headerFilter = HeaderFilter.unfiltered();
+    private StackTraceCache stackTraces;
+    private EventRateLimiter rateLimiter;
 
     public FluentdLogger(FluentLogger logger) {
         this(logger, "feign");
@@ -32,6 +44,117 @@ public class FluentdLogger extends Logger {
         this.tagPrefix = tagPrefix;
     }
 
+    /**
+     * Writes events straight into pooled MessagePack buffers instead of building maps for
+     * {@link FluentLogger#log(String, Map, long)}. The records keep the same fields; {@link #doLog} is bypassed.
+     * Requires a {@link SingleThreadWrapper} built around a {@link ForwardSender}.
+     */
+    public FluentdLogger withMessagePackEncoding() {
+        if (!(logger instanceof SingleThreadWrapper) || !((SingleThreadWrapper) logger).acceptsEncoded()) {
+            throw new IllegalStateException("MessagePack encoding needs a SingleThreadWrapper with a ForwardSender");
+        }
+        this.packed = true;
+        return this;
+    }
+
+    /**
+     * Stops copying whole response bodies into memory at {@link Level#HEADERS} and above. The body is
+     * streamed through to the caller instead, counting its bytes and keeping at most {@code captureLimit} of
+     * them for the {@code body} field ({@link Level#FULL} only, marked {@code body-truncated} when cut). The
+     * response event is therefore emitted when the body is closed, which Feign does after decoding, and
+     * {@code body-bytes} counts what was actually read.
+     */
+    public FluentdLogger withStreamingResponseBody(int captureLimit) {
+        if (captureLimit < 0) {
+            throw new IllegalArgumentException("captureLimit must not be negative: " + captureLimit);
+        }
+        this.responseCaptureLimit = captureLimit;
+        return this;
+    }
+
+    /**
+     * What to log of bodies at {@link Level#FULL} for every client without a policy of its own.
+     */
+    public FluentdLogger withBodyPolicy(BodyPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        this.bodyPolicy = policy;
+        bodyPolicies.clear();
+        return this;
+    }
+
+    /**
+     * What to log of bodies for one client ({@code "GitHub"}) or one method ({@code "GitHub#repos(String)"}),
+     * matched against Feign's config key; a method's policy wins over its client's.
+     */
+    public FluentdLogger withBodyPolicy(String clientOrConfigKey, BodyPolicy policy) {
+        if (clientOrConfigKey == null || policy == null) {
+            throw new IllegalArgumentException("clientOrConfigKey and policy must not be null");
+        }
+        bodyPolicyOverrides.put(clientOrConfigKey, policy);
+        bodyPolicies.clear();
+        return this;
+    }
+
+    /**
+     * Which headers to log at {@link Level#HEADERS} and above, and which to mask or hash; see
+     * {@link HeaderFilter}.
+     */
+    public FluentdLogger withHeaderFilter(HeaderFilter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("filter must not be null");
+        }
+        this.headerFilter = filter;
+        return this;
+    }
+
+    /**
+     * At {@link Level#FULL}, sends the stack trace of an I/O exception only the first time it is seen within
+     * {@code window}; repeats carry its {@code fingerprint} and a {@code repeat} count instead of
+     * {@code details}. Up to {@code maxFingerprints} traces are remembered.
+     */
+    public FluentdLogger withStackTraceCache(int maxFingerprints, long window, TimeUnit unit) {
+        this.stackTraces = new StackTraceCache(maxFingerprints, unit.toNanos(window));
+        return this;
+    }
+
+    /**
+     * Skips the events over the limits of {@code rateLimiter}, and logs how many were skipped per method once
+     * per summary interval; see {@link EventRateLimiter}. A {@link SingleThreadWrapper} logs the last summary
+     * when closed; with any other logger, call {@link #flushSuppressed()} before closing it.
+     */
+    public FluentdLogger withRateLimiter(EventRateLimiter rateLimiter) {
+        if (this.rateLimiter == null && logger instanceof SingleThreadWrapper) {
+            ((SingleThreadWrapper) logger).beforeClose(this::flushSuppressed);
+        }
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Logs the events skipped by the rate limiter since the last summary now, instead of with the next event
+     * let through.
+     */
+    public void flushSuppressed() {
+        if (rateLimiter != null) {
+            rateLimiter.drainSummary(System.nanoTime()).forEach(this::logSuppressed);
+        }
+    }
+
+    /**
+     * Skips building events while {@code circuitBreaker} considers Fluentd down; see {@link SinkCircuitBreaker}.
+     * With a {@link SingleThreadWrapper} the sends it sees are those of the wrapper's sender thread, as they
+     * happen, and not the hand-overs to its queue; a wrapper reports to the breaker last given here.
+     */
+    public FluentdLogger withCircuitBreaker(SinkCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        if (logger instanceof SingleThreadWrapper) {
+            ((SingleThreadWrapper) logger).metrics().circuitBreaker(circuitBreaker);
+        }
+        return this;
+    }
+
     @Override
     protected void log(String configKey, String format, Object... args) {
         // do nothing
@@ -39,106 +162,371 @@ public class FluentdLogger extends Logger {
 
     @Override
     protected void logRequest(String configKey, Level logLevel, Request request) {
-        Map<String, Object> requestMap = new HashMap<>();
-        requestMap.put("method", request.httpMethod().toString());
-        try {
-            final HashMap<Object, Object> uriMap = new HashMap<>();
-            final URI uriObj = new URI(request.url());
-            uriMap.put("host", uriObj.getHost());
-            uriMap.put("path", uriObj.getPath());
-            uriMap.put("port", uriObj.getPort());
-            uriMap.put("scheme", uriObj.getScheme());
-            uriMap.put("query", uriObj.getQuery());
-            requestMap.put("uri", uriMap);
-        } catch (URISyntaxException e) {
-            requestMap.put("url", request.url());
+        if (!admits(configKey, LogType.request, request)) {
+            return;
+        }
+        final long ticket = acquireSink(configKey, LogType.request, request);
+        if (ticket == SinkCircuitBreaker.DENIED) {
+            return;
+        }
+        final EventRecord record = newRecord(LogType.request);
+        record.put("method", request.httpMethod().toString());
+        if (!record.putUri("uri", request.url())) {
+            putParsedUri(record, request.url());
         }
         if (logLevel.ordinal() >= Level.HEADERS.ordinal()) {
-            requestMap.put("headers", request.headers());
+            record.putHeaders("headers", request.headers(), headerFilter);
 
             int bodyLength = 0;
             if (request.body() != null) {
                 if (logLevel.ordinal() >= Level.FULL.ordinal()) {
-                    String bodyText =
-                            request.charset() != null ? new String(request.body(), request.charset()) : null;
-                    requestMap.put("body", bodyText != null ? bodyText : "Binary data");
+                    putRequestBody(record, bodyPolicy(configKey), request);
                 }
                 bodyLength = request.body().length;
             }
-            requestMap.put("body-bytes", bodyLength);
+            record.put("body-bytes", bodyLength);
+        }
+        emit(configKey, LogType.request, record, request, ticket);
+    }
+
+    static void putRequestBody(EventRecord record, BodyPolicy policy, Request request) {
+        final byte[] body = request.body();
+        final int length = Math.min(body.length, policy.maxBytes);
+        if (policy.isTextual(request.headers()) && request.charset() != null) {
+            final boolean cut = length < body.length && UTF_8.equals(request.charset());
+            record.putText("body", body, cut ? MessagePackWriter.completeUtf8Length(body, length) : length,
+                    request.charset());
+        } else if (policy.binaryAsBin) {
+            record.putBinary("body", body, length);
+        } else {
+            if (policy.isTextual(request.headers())) {
+                record.put("body", "Binary data");
+            }
+            return;
+        }
+        if (length < body.length) {
+            record.put("body-truncated", true);
+        }
+    }
+
+    /**
+     * Fallback for URLs {@link UrlSplitter} does not handle.
+     */
+    private static void putParsedUri(EventRecord record, String url) {
+        try {
+            final URI uriObj = new URI(url);
+            record.beginMap("uri");
+            record.put("host", uriObj.getHost());
+            record.put("path", uriObj.getPath());
+            record.put("port", uriObj.getPort());
+            record.put("scheme", uriObj.getScheme());
+            record.put("query", uriObj.getQuery());
+            record.endMap();
+        } catch (URISyntaxException e) {
+            record.put("url", url);
+        }
+    }
+
+    private EventRecord newRecord(LogType type) {
+        return packed ? PackedEventRecord.acquire(type) : new MapEventRecord();
+    }
+
+    private void emit(String configKey, LogType type, EventRecord record, Request request, long ticket) {
+        emit(configKey, type, record, request, type == LogType.io_exception, ticket);
+    }
+
+    /**
+     * @param urgent whether the event is to skip ahead of bulk events in the lanes of a {@link SingleThreadWrapper}
+     * @param ticket the circuit breaker's, to record the send with
+     */
+    private void emit(String configKey, LogType type, EventRecord record, Request request, boolean urgent,
+                      long ticket) {
+        if (!packed) {
+            final MapEventRecord mapRecord = (MapEventRecord) record;
+            if (logger instanceof SingleThreadWrapper) {
+                ((SingleThreadWrapper) logger).metrics().onEncoded(System.nanoTime() - mapRecord.startNanos);
+            }
+            doLog(configKey, type, mapRecord.map(), request, ticket);
+            return;
         }
-        doLog(configKey, LogType.request, requestMap);
+        final PackedEventRecord packedRecord = (PackedEventRecord) record;
+        try {
+            packedRecord.putEncoded(metadata(configKey).encodedEntry());
+            final MessagePackWriter encoded = packedRecord.finish();
+            final SingleThreadWrapper wrapper = (SingleThreadWrapper) logger;
+            final long start = System.nanoTime();
+            wrapper.metrics().onEncoded(start - packedRecord.startNanos);
+            recordSend(ticket, wrapper.log(tagPrefix, encoded, CachedClock.currentTimeMillis(), urgent), start);
+        } finally {
+            PackedEventRecord.release(packedRecord);
+        }
+    }
+
+    /**
+     * Like {@link #doLog(String, LogType, Map)}, knowing the request the event belongs to: the logged one for
+     * {@code request} events, the one a response answers for {@code response} events, {@code null} otherwise;
+     * and the circuit breaker's ticket of the event, to record the send with.
+     */
+    void doLog(String configKey, LogType paramPrefix, Map<String, Object> paramValues, Request request,
+               long ticket) {
+        send(configKey, paramPrefix, paramValues, ticket);
     }
 
+    /**
+     * Sends one event built by a subclass, its outcome counting for the circuit breaker only while closed.
+     */
     protected void doLog(String configKey, LogType paramPrefix, Map<String, Object> paramValues) {
+        send(configKey, paramPrefix, paramValues, SinkCircuitBreaker.UNTRACKED);
+    }
+
+    private void send(String configKey, LogType paramPrefix, Map<String, Object> paramValues, long ticket) {
         paramValues.put("meta", constructMetaMap(configKey));
-        logger.log(tagPrefix, paramPrefix.name(), paramValues, System.currentTimeMillis() / 1000);
+        final long start = System.nanoTime();
+        boolean sent = false;
+        try {
+            sent = logEvent(paramPrefix.name(), paramValues);
+        } finally {
+            recordSend(ticket, sent, start);
+        }
+    }
+
+    /**
+     * Takes a token of the rate limiter, if any, for an event of {@code type}, and logs the summary of
+     * suppressed events when it is due.
+     *
+     * @param request the request the event belongs to, if known
+     * @return false if the event is to be skipped
+     */
+    boolean admits(String configKey, LogType type, Request request) {
+        if (rateLimiter == null) {
+            return true;
+        }
+        final long now = System.nanoTime();
+        final Map<String, Long> summary = rateLimiter.takeSummary(now);
+        if (summary != null) {
+            summary.forEach(this::logSuppressed);
+        }
+        return rateLimiter.tryAcquire(configKey, now);
+    }
+
+    /**
+     * Logged straight to the real logger: it must not be merged into a call, nor be rate limited itself.
+     */
+    private void logSuppressed(String configKey, long events) {
+        final Map<String, Object> suppressed = new HashMap<>(4);
+        suppressed.put("events", events);
+        suppressed.put("intervalMs", rateLimiter.summaryIntervalMillis());
+        suppressed.put("meta", constructMetaMap(configKey));
+        logEvent(LogType.suppressed.name(), suppressed);
+    }
+
+    /**
+     * Hands one event to the real logger, stamped by {@link CachedClock}: to the millisecond through a
+     * {@link SingleThreadWrapper}, in whole seconds otherwise, as {@link FluentLogger} takes them.
+     */
+    boolean logEvent(Map<String, Object> data) {
+        final long now = CachedClock.currentTimeMillis();
+        if (logger instanceof SingleThreadWrapper) {
+            return ((SingleThreadWrapper) logger).logMillis(tagPrefix, data, now);
+        }
+        return logger.log(tagPrefix, data, now / 1000);
+    }
+
+    private boolean logEvent(String key, Map<String, Object> value) {
+        final long now = CachedClock.currentTimeMillis();
+        if (logger instanceof SingleThreadWrapper) {
+            final Map<String, Object> data = new HashMap<>(2);
+            data.put(key, value);
+            return ((SingleThreadWrapper) logger).logMillis(tagPrefix, data, now);
+        }
+        return logger.log(tagPrefix, key, value, now / 1000);
+    }
+
+    /**
+     * Asks the circuit breaker, if any, whether an event of {@code type} is worth building.
+     *
+     * @return the ticket to {@link #recordSend} the event with, or {@link SinkCircuitBreaker#DENIED}
+     */
+    long acquireSink(String configKey, LogType type, Request request) {
+        return circuitBreaker == null ? SinkCircuitBreaker.UNTRACKED : circuitBreaker.acquire();
+    }
+
+    boolean isSinkProbe(long ticket) {
+        return circuitBreaker != null && circuitBreaker.isProbe(ticket);
     }
 
+    /**
+     * Tells the circuit breaker, if any, how a send started at {@code startNanos} went; a
+     * {@link SingleThreadWrapper} tells it itself.
+     */
+    void recordSend(long ticket, boolean sent, long startNanos) {
+        if (circuitBreaker != null && !(logger instanceof SingleThreadWrapper)) {
+            circuitBreaker.record(ticket, sent, startNanos);
+        }
+    }
+
+    /**
+     * The {@code meta} map of {@code configKey}, parsed on first use and shared afterwards: it is immutable.
+     */
     Map<String, Object> constructMetaMap(String configKey) {
-        final String[] clientAndMethod = configKey.substring(0, configKey.indexOf('(')).split("#");
-        final Map<String, Object> metaMap = new HashMap<>();
-        if (clientAndMethod.length > 1) {
-            metaMap.put("client", clientAndMethod[0]);
-            metaMap.put("method", clientAndMethod[1]);
-        } else {
-            metaMap.put("method", clientAndMethod[0]);
+        return metadata(configKey).asMap();
+    }
+
+    /**
+     * Config keys are one per Feign method, so the cache is naturally bounded.
+     */
+    MethodMetadata metadata(String configKey) {
+        MethodMetadata methodMetadata = metadata.get(configKey);
+        if (methodMetadata == null) {
+            methodMetadata = MethodMetadata.parse(configKey);
+            final MethodMetadata existing = metadata.putIfAbsent(configKey, methodMetadata);
+            if (existing != null) {
+                methodMetadata = existing;
+            }
         }
-        return metaMap;
+        return methodMetadata;
+    }
+
+    /**
+     * The policy of {@code configKey}, resolved once.
+     */
+    BodyPolicy bodyPolicy(String configKey) {
+        if (bodyPolicyOverrides.isEmpty()) {
+            return bodyPolicy;
+        }
+        BodyPolicy policy = bodyPolicies.get(configKey);
+        if (policy == null) {
+            policy = bodyPolicyOverrides.get(configKey);
+            if (policy == null) {
+                final String client = metadata(configKey).client;
+                policy = client == null ? null : bodyPolicyOverrides.get(client);
+            }
+            if (policy == null) {
+                policy = bodyPolicy;
+            }
+            bodyPolicies.putIfAbsent(configKey, policy);
+        }
+        return policy;
     }
 
     @Override
     protected void logRetry(String configKey, Level logLevel) {
-        doLog(configKey, LogType.retry, new HashMap<>());
+        if (!admits(configKey, LogType.retry, null)) {
+            return;
+        }
+        final long ticket = acquireSink(configKey, LogType.retry, null);
+        if (ticket != SinkCircuitBreaker.DENIED) {
+            emit(configKey, LogType.retry, newRecord(LogType.retry), null, ticket);
+        }
     }
 
     @Override
     protected Response logAndRebufferResponse(String configKey, Level logLevel, Response response, long elapsedTime) throws IOException {
+        if (!admits(configKey, LogType.response, response.request())) {
+            return response;
+        }
+        final long ticket = acquireSink(configKey, LogType.response, response.request());
+        if (ticket == SinkCircuitBreaker.DENIED) {
+            return response;
+        }
+        int status = response.status();
+        if (logLevel.ordinal() >= Level.HEADERS.ordinal() && response.body() != null
+                && !(status == 204 || status == 205)) {
+            // HTTP 204 No Content "...response MUST NOT include a message-body"
+            // HTTP 205 Reset Content "...response MUST NOT include an entity"
+            if (responseCaptureLimit >= 0) {
+                final BodyPolicy policy = bodyPolicy(configKey);
+                final int captureLimit = logLevel.ordinal() >= Level.FULL.ordinal()
+                        && policy.logsBody(response.headers()) ? Math.min(responseCaptureLimit, policy.maxBytes) : 0;
+                final TeeResponseBody body = new TeeResponseBody(response.body(), captureLimit,
+                        (captured, capturedLength, totalBytes, truncated) -> logResponse(configKey, logLevel,
+                                response, elapsedTime, captured, capturedLength, totalBytes, truncated, ticket));
+                return response.toBuilder().body(body).build();
+            }
+            byte[] bodyData = Util.toByteArray(response.body().asInputStream());
+            logResponse(configKey, logLevel, response, elapsedTime, bodyData, bodyData.length, bodyData.length, false,
+                    ticket);
+            return response.toBuilder().body(bodyData).build();
+        }
+        logResponse(configKey, logLevel, response, elapsedTime, null, 0, 0, false, ticket);
+        return response;
+    }
+
+    private void logResponse(String configKey, Level logLevel, Response response, long elapsedTime,
+                             byte[] body, int capturedLength, long bodyLength, boolean truncated, long ticket) {
         String reason =
                 response.reason() != null && logLevel.compareTo(Level.NONE) > 0 ? " " + response.reason()
                         : "";
         int status = response.status();
 
-        final Map<String, Object> responseMap = new HashMap<>();
-        responseMap.put("status", status);
-        responseMap.put("reason", reason);
-        responseMap.put("elapsedTimeMs", elapsedTime);
+        final EventRecord record = newRecord(LogType.response);
+        record.put("status", status);
+        record.put("reason", reason);
+        record.put("elapsedTimeMs", elapsedTime);
         if (logLevel.ordinal() >= Level.HEADERS.ordinal()) {
 
-            responseMap.put("headers", response.headers());
+            record.putHeaders("headers", response.headers(), headerFilter);
 
-            int bodyLength = 0;
-            if (response.body() != null && !(status == 204 || status == 205)) {
-                // HTTP 204 No Content "...response MUST NOT include a message-body"
-                // HTTP 205 Reset Content "...response MUST NOT include an entity"
-                byte[] bodyData = Util.toByteArray(response.body().asInputStream());
-                bodyLength = bodyData.length;
-                if (logLevel.ordinal() >= Level.FULL.ordinal() && bodyLength > 0) {
-                    responseMap.put("body", decodeOrDefault(bodyData, UTF_8, "Binary data"));
-                }
-                responseMap.put("body-bytes", bodyLength);
-                doLog(configKey, LogType.response, responseMap);
-                return response.toBuilder().body(bodyData).build();
+            if (logLevel.ordinal() >= Level.FULL.ordinal() && capturedLength > 0) {
+                putResponseBody(record, bodyPolicy(configKey), response, body, capturedLength, truncated);
+            }
+            if (bodyLength <= Integer.MAX_VALUE) {
+                record.put("body-bytes", (int) bodyLength);
             } else {
-                responseMap.put("body-bytes", bodyLength);
+                record.put("body-bytes", bodyLength);
             }
         }
-        doLog(configKey, LogType.response, responseMap);
-        return response;
+        emit(configKey, LogType.response, record, response.request(), status >= EventLanes.URGENT_STATUS, ticket);
+    }
+
+    private static void putResponseBody(EventRecord record, BodyPolicy policy, Response response, byte[] body,
+                                        int capturedLength, boolean truncated) {
+        final int length = Math.min(capturedLength, policy.maxBytes);
+        final boolean cut = truncated || length < capturedLength;
+        if (policy.isTextual(response.headers())) {
+            final int textLength = cut ? MessagePackWriter.completeUtf8Length(body, length) : length;
+            record.putTextOrDefault("body", body, textLength, UTF_8, "Binary data");
+        } else if (policy.binaryAsBin) {
+            record.putBinary("body", body, length);
+        } else {
+            return;
+        }
+        if (cut) {
+            record.put("body-truncated", true);
+        }
     }
 
     @Override
     protected IOException logIOException(String configKey, Level logLevel, IOException ioe, long elapsedTime) {
-        final Map<String, Object> exMap = new HashMap<>();
-        exMap.put("name", ioe.getClass().getSimpleName());
-        exMap.put("message", ioe.getMessage());
-        exMap.put("elapsedTimeMs", elapsedTime);
+        if (!admits(configKey, LogType.io_exception, null)) {
+            return ioe;
+        }
+        final long ticket = acquireSink(configKey, LogType.io_exception, null);
+        if (ticket == SinkCircuitBreaker.DENIED) {
+            return ioe;
+        }
+        final EventRecord record = newRecord(LogType.io_exception);
+        record.put("name", ioe.getClass().getSimpleName());
+        record.put("message", ioe.getMessage());
+        record.put("elapsedTimeMs", elapsedTime);
         if (logLevel.ordinal() >= Level.FULL.ordinal()) {
-            StringWriter sw = new StringWriter();
-            ioe.printStackTrace(new PrintWriter(sw));
-            exMap.put("details", sw.toString());
+            final long repeat;
+            if (stackTraces == null) {
+                repeat = 0;
+            } else {
+                final long fingerprint = StackTraceCache.fingerprint(ioe);
+                record.put("fingerprint", StackTraceCache.toHex(fingerprint));
+                repeat = stackTraces.seen(fingerprint, System.nanoTime());
+            }
+            if (repeat == 0) {
+                StringWriter sw = new StringWriter();
+                ioe.printStackTrace(new PrintWriter(sw));
+                record.put("details", sw.toString());
+            } else {
+                record.put("repeat", repeat);
+            }
         }
-        doLog(configKey, LogType.io_exception, exMap);
+        emit(configKey, LogType.io_exception, record, null, ticket);
         return ioe;
     }
 }
@@ -0,0 +1,294 @@
+package feign.fluentd;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects drained events into one {@link EventBatch} per tag and ships them through a {@link ForwardTransport}
+ * once enough events piled up or the oldest one waited long enough. Used only by the sender thread.
+ * <p>
+ * With a {@link DiskSpill}, batches that cannot be sent, or that arrive while the queue is overloaded, are
+ * spilled instead of failed, and everything after them is spilled too until {@link #replay} caught up, so
+ * Fluentd still receives the batches in order. A replayed batch leaves the spill only once it was delivered; where
+ * acks are on, that is when its ack arrived, so replay then sends one batch at a time and waits for its ack, and a
+ * batch still unacknowledged at close is replayed by the next process.
+ */
+final class ForwardBatcher implements BoundedEventQueue.EventHandler {
+    private static final long REPLAY_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ForwardTransport sender;
+    private final int maxEvents;
+    private final long lingerNanos;
+    private final LoggerMetrics metrics;
+    private final ForwardTransport.Delivered delivered;
+    private final DiskSpill spill;
+    private final Map<String, EventBatch> batches = new HashMap<>();
+    private final Map<String, EventBatch> replayBatches = new HashMap<>();
+    private int pending;
+    private long firstPendingAt;
+    private long nextReplayAt;
+    private boolean replayAwaitsAck;
+
+    ForwardBatcher(ForwardTransport sender, int maxEvents, long lingerNanos, LoggerMetrics metrics,
+                   DiskSpill spill) {
+        this.sender = sender;
+        this.maxEvents = maxEvents;
+        this.lingerNanos = lingerNanos;
+        this.metrics = metrics;
+        this.delivered = metrics::onSent;
+        this.spill = spill;
+    }
+
+    @Override
+    public void onEvent(String tag, Map<String, Object> data, long epochMillis) {
+        batchOf(tag).add(epochMillis, data);
+        countPending();
+    }
+
+    @Override
+    public void onEncodedEvent(String tag, byte[] record, int length, long epochMillis) {
+        batchOf(tag).add(epochMillis, record, length);
+        countPending();
+    }
+
+    private EventBatch batchOf(String tag) {
+        EventBatch batch = batches.get(tag);
+        if (batch == null) {
+            batch = new EventBatch(tag, sender.usesEventTime());
+            batches.put(tag, batch);
+        }
+        return batch;
+    }
+
+    private void countPending() {
+        if (pending++ == 0) {
+            firstPendingAt = System.nanoTime();
+        }
+    }
+
+    int pending() {
+        return pending;
+    }
+
+    /**
+     * How many more events may be drained before the batch is full.
+     */
+    int room() {
+        return Math.max(maxEvents - pending, 0);
+    }
+
+    boolean isDue(long now) {
+        return pending >= maxEvents || (pending > 0 && now - firstPendingAt >= lingerNanos);
+    }
+
+    /**
+     * Nanoseconds until the linger time of the pending events runs out.
+     */
+    long remainingLinger(long now) {
+        return pending == 0 ? lingerNanos : lingerNanos - (now - firstPendingAt);
+    }
+
+    /**
+     * How long the idle sender thread may sleep before there is work here: until the linger time of the pending
+     * events runs out or the spill is due for the next replay, and at most {@code maxNanos}; while batches are
+     * in flight, at most {@code inFlightNanos}, to read their acks.
+     */
+    long idleNanos(long now, long inFlightNanos, long maxNanos) {
+        long nanos = maxNanos;
+        if (pending > 0) {
+            nanos = Math.min(nanos, remainingLinger(now));
+        }
+        if (hasSpilled() && !replayAwaitsAck) {
+            nanos = Math.min(nanos, nextReplayAt - now);
+        }
+        if (sender.inFlight() > 0) {
+            nanos = Math.min(nanos, inFlightNanos);
+        }
+        return Math.max(nanos, 1);
+    }
+
+    /**
+     * Sends every non-empty batch, or spills it when {@code overloaded} or while earlier batches wait in the
+     * spill.
+     *
+     * @return the number of events that could neither be sent nor spilled
+     */
+    int flush(boolean overloaded) {
+        int failed = 0;
+        for (EventBatch batch : batches.values()) {
+            if (batch.count() == 0) {
+                continue;
+            }
+            final long start = System.nanoTime();
+            try {
+                if (spill != null && (overloaded || !spill.isEmpty())) {
+                    failed += spill(batch, null);
+                } else {
+                    final long bytes = sender.send(batch);
+                    if (bytes != ForwardTransport.DEFERRED) {
+                        metrics.onSent(batch.tag, batch.count(), bytes, System.nanoTime() - start);
+                    }
+                }
+            } catch (IOException e) {
+                failed += spill != null ? spill(batch, e) : fail(batch, e);
+            } finally {
+                batch.clear();
+            }
+        }
+        pending = 0;
+        return failed;
+    }
+
+    private int spill(EventBatch batch, IOException cause) {
+        try {
+            if (spill.append(batch)) {
+                if (cause != null) {
+                    metrics.onSinkFailed();
+                }
+                metrics.onSpilled(batch.tag, batch.count(), batch.entries().size());
+                return 0;
+            }
+            return fail(batch, new IOException("disk spill is full", cause));
+        } catch (IOException e) {
+            return fail(batch, e);
+        }
+    }
+
+    private int fail(EventBatch batch, IOException e) {
+        metrics.onSendFailed(batch.tag, batch.count(), e);
+        return batch.count();
+    }
+
+    boolean hasSpilled() {
+        return spill != null && !spill.isEmpty();
+    }
+
+    long spillBacklog() {
+        return spill == null ? 0 : spill.backlog();
+    }
+
+    /**
+     * Sends up to {@code maxBatches} of the oldest spilled batches, stopping at the first failure and then
+     * leaving the spill alone for a while, or at the first batch taken to be delivered later, which stays in the
+     * spill until {@link #service} sees it acknowledged.
+     *
+     * @return the number of batches sent
+     */
+    int replay(int maxBatches, long now) {
+        if (!hasSpilled() || replayAwaitsAck || now - nextReplayAt < 0) {
+            return 0;
+        }
+        int replayed = 0;
+        EventBatch batch;
+        while (replayed < maxBatches && (batch = spill.peek(replayBatches)) != null) {
+            final long start = System.nanoTime();
+            try {
+                final long bytes = sender.send(batch);
+                replayed++;
+                if (bytes == ForwardTransport.DEFERRED) {
+                    replayAwaitsAck = true;
+                    break;
+                }
+                spill.commit();
+                metrics.onSent(batch.tag, batch.count(), bytes, System.nanoTime() - start);
+            } catch (IOException e) {
+                metrics.onSinkFailed();
+                nextReplayAt = System.nanoTime() + REPLAY_BACKOFF_NANOS;
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+        return replayed;
+    }
+
+    boolean isConnected() {
+        return sender.isConnected();
+    }
+
+    /**
+     * Lets the sender read acks, write again what waits for a lost or late one, and hand back batches no node
+     * takes any more, which are spilled or failed like any batch that cannot be sent; batches the sender took
+     * are reported as sent only now that they were delivered.
+     * <p>
+     * A batch handed back was taken earlier than the ones sent since, so when spilled it reaches Fluentd after
+     * them.
+     * <p>
+     * A replayed batch waiting for its ack leaves the spill once nothing is in flight any more: it was either
+     * acknowledged or handed back, and then spilled again.
+     */
+    void service() {
+        sender.service();
+        sender.pollDelivered(delivered);
+        EventBatch batch;
+        while ((batch = sender.pollUndeliverable()) != null) {
+            final IOException e = new IOException("no node of " + sender + " takes batches");
+            if (spill != null) {
+                spill(batch, e);
+            } else {
+                fail(batch, e);
+            }
+            sender.release(batch);
+        }
+        if (replayAwaitsAck && sender.inFlight() == 0) {
+            replayAwaitsAck = false;
+            spill.commit();
+        }
+    }
+
+    /**
+     * Number of batches the sender waits for Fluentd to acknowledge.
+     */
+    int inFlight() {
+        return sender.inFlight();
+    }
+
+    /**
+     * Waits until Fluentd acknowledged every batch in flight or {@code deadlineNanos} passed, and then
+     * counts the events of the batches still unacknowledged as failed; batches no node took are spilled or
+     * failed too. A replayed batch given up on stays in the spill.
+     *
+     * @return the number of events given up on
+     */
+    int awaitAcks(long deadlineNanos) {
+        final int[] failed = {0};
+        if (!sender.awaitAcks(deadlineNanos, false)) {
+            replayAwaitsAck = false;
+            final IOException e = new IOException("no ack from " + sender);
+            sender.abandonUndelivered((tag, count) -> {
+                metrics.onSendFailed(tag, count, e);
+                failed[0] += count;
+            });
+        }
+        service();
+        return failed[0];
+    }
+
+    /**
+     * Close started: the sender waits for room in its ack window until {@code deadlineNanos} at the latest.
+     */
+    void closeBy(long deadlineNanos) {
+        sender.closeBy(deadlineNanos);
+    }
+
+    /**
+     * Called by the closing thread when the sender thread missed the close deadline.
+     */
+    void abort() {
+        sender.abort();
+    }
+
+    void close() {
+        sender.close();
+        if (spill != null) {
+            spill.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return sender.toString();
+    }
+}
@@ -0,0 +1,516 @@
+package feign.fluentd;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Spreads batches over several Fluentd nodes. Each node has a {@link ForwardSender}, that is one connection,
+ * written by a thread of its own, so the nodes are written to in parallel and a slow node does not hold back
+ * the others.
+ * <p>
+ * Batches go to the nodes that are up by smooth weighted round-robin, or by consistent hashing of their tag,
+ * which keeps a tag on one node, and its events in order, as long as that node is up and keeps up; a batch
+ * its node has no room for goes to the next node that has. A node whose send fails, or whose connection drops
+ * or misses an ack, is marked down and its batches go to the other nodes; every health check interval it is
+ * probed with a new connection, and takes batches again once that succeeds. Batches no node takes are handed
+ * back to the {@link SingleThreadWrapper}, which spills them or counts them as failed.
+ * <p>
+ * Batches count as sent once a node wrote them, or with {@link ForwardSender#withAcks} once it got the ack.
+ * The messages a node did not acknowledge stay with it: they are written again when it is back, or given up
+ * on at close.
+ */
+public final class ForwardCluster extends ForwardTransport {
+
+    public enum Routing {
+        WEIGHTED_ROUND_ROBIN,
+        /**
+         * Routes by the tag of a batch only. A {@link FluentdLogger} logs every event under one tag, so this
+         * spreads the load only over loggers, or wrappers shared by loggers, with different tags; all events of
+         * one tag go to the same node.
+         */
+        CONSISTENT_HASH
+    }
+
+    private static final int VIRTUAL_NODES_PER_WEIGHT = 64;
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long STOP_GRACE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final class Delivery {
+        final String tag;
+        final int events;
+        final long bytes;
+        final long nanos;
+
+        Delivery(String tag, int events, long bytes, long nanos) {
+            this.tag = tag;
+            this.events = events;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+    }
+
+    private static final class Node {
+        final int index;
+        final ForwardSender sender;
+        final int weight;
+        final ArrayBlockingQueue<EventBatch> queue;
+        final AtomicInteger outstanding = new AtomicInteger();
+        volatile int unacknowledged;
+        volatile boolean up = true;
+        int currentWeight;
+        long nextProbeAt;
+        Thread worker;
+        Delivered delivered;
+
+        Node(int index, ForwardSender sender, int weight, int queuedBatches) {
+            this.index = index;
+            this.sender = sender;
+            this.weight = weight;
+            this.queue = new ArrayBlockingQueue<>(queuedBatches);
+        }
+    }
+
+    private final Node[] nodes;
+    private final Routing routing;
+    private final long healthCheckNanos;
+    private final boolean eventTime;
+    private final long[] ringPoints;
+    private final Node[] ringNodes;
+    private final ConcurrentMap<String, Queue<EventBatch>> spares = new ConcurrentHashMap<>();
+    private final Queue<EventBatch> undeliverable = new ConcurrentLinkedQueue<>();
+    private final Queue<Delivery> deliveries = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private boolean stopped;
+
+    private ForwardCluster(Builder builder) {
+        this.nodes = new Node[builder.senders.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new Node(i, builder.senders.get(i), builder.weights.get(i), builder.queuedBatches);
+        }
+        this.routing = builder.routing;
+        this.healthCheckNanos = builder.healthCheckNanos;
+        this.eventTime = nodes[0].sender.usesEventTime();
+        int points = 0;
+        for (Node node : nodes) {
+            points += node.weight * VIRTUAL_NODES_PER_WEIGHT;
+        }
+        this.ringPoints = new long[points];
+        this.ringNodes = new Node[points];
+        buildRing();
+        for (Node node : nodes) {
+            node.delivered = (tag, events, bytes, nanos) -> deliveries.offer(new Delivery(tag, events, bytes, nanos));
+            node.worker = new Thread(() -> work(node), "feign-fluentd-node-" + node.index);
+            node.worker.setDaemon(true);
+            node.worker.start();
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private void buildRing() {
+        final long[][] points = new long[ringPoints.length][];
+        int p = 0;
+        for (Node node : nodes) {
+            for (int i = 0; i < node.weight * VIRTUAL_NODES_PER_WEIGHT; i++) {
+                points[p++] = new long[]{hash(node.sender + "#" + i), node.index};
+            }
+        }
+        Arrays.sort(points, (a, b) -> Long.compare(a[0], b[0]));
+        for (int i = 0; i < points.length; i++) {
+            ringPoints[i] = points[i][0];
+            ringNodes[i] = nodes[(int) points[i][1]];
+        }
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer to spread the ring points.
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Takes the batch for the node it is routed to, or failing that for any other node that is up and has
+     * room; only called by the sender thread of the wrapper.
+     *
+     * @return {@link #DEFERRED}: the batch is reported to {@link #pollDelivered} once its node delivered it
+     */
+    @Override
+    long send(EventBatch batch) throws IOException {
+        final Node routed = route(batch.tag);
+        if (routed != null) {
+            final EventBatch copy = copy(batch);
+            for (int i = 0; i < nodes.length; i++) {
+                final Node node = nodes[(routed.index + i) % nodes.length];
+                if (node.up && offer(node, copy)) {
+                    return DEFERRED;
+                }
+            }
+            recycle(copy);
+        }
+        throw new IOException("no node of " + this + " is up with room for a batch");
+    }
+
+    private Node route(String tag) {
+        return routing == Routing.CONSISTENT_HASH ? ringNode(tag) : nextWeighted();
+    }
+
+    /**
+     * Smooth weighted round-robin over the nodes that are up: spreads a node's turns out instead of giving it
+     * all of them in a row.
+     */
+    private Node nextWeighted() {
+        Node best = null;
+        int total = 0;
+        for (Node node : nodes) {
+            if (node.up) {
+                node.currentWeight += node.weight;
+                total += node.weight;
+                if (best == null || node.currentWeight > best.currentWeight) {
+                    best = node;
+                }
+            }
+        }
+        if (best != null) {
+            best.currentWeight -= total;
+        }
+        return best;
+    }
+
+    /**
+     * The first node that is up clockwise from the tag on the ring.
+     */
+    private Node ringNode(String tag) {
+        int start = Arrays.binarySearch(ringPoints, hash(tag));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        for (int i = 0; i < ringPoints.length; i++) {
+            final Node node = ringNodes[(start + i) % ringPoints.length];
+            if (node.up) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private EventBatch copy(EventBatch batch) {
+        EventBatch copy = null;
+        final Queue<EventBatch> tagSpares = spares.get(batch.tag);
+        if (tagSpares != null) {
+            copy = tagSpares.poll();
+        }
+        if (copy == null) {
+            copy = new EventBatch(batch.tag, eventTime);
+        }
+        copy.addEncoded(batch.entries().buffer(), batch.entries().size(), batch.count());
+        return copy;
+    }
+
+    private void recycle(EventBatch batch) {
+        batch.clear();
+        spares.computeIfAbsent(batch.tag, tag -> new ConcurrentLinkedQueue<>()).offer(batch);
+    }
+
+    private static boolean offer(Node node, EventBatch batch) {
+        node.outstanding.incrementAndGet();
+        if (node.queue.offer(batch)) {
+            return true;
+        }
+        node.outstanding.decrementAndGet();
+        return false;
+    }
+
+    private void work(Node node) {
+        while (running) {
+            if (!node.up) {
+                final long now = System.nanoTime();
+                if (now - node.nextProbeAt >= 0) {
+                    node.nextProbeAt = now + healthCheckNanos;
+                    node.up = node.sender.probe();
+                }
+                if (!node.up) {
+                    EventBatch batch;
+                    while ((batch = node.queue.poll()) != null) {
+                        reroute(node, batch);
+                    }
+                    LockSupport.parkNanos(POLL_NANOS);
+                    continue;
+                }
+            }
+            final EventBatch batch;
+            try {
+                batch = node.queue.poll(POLL_NANOS, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            node.sender.service();
+            if (batch != null) {
+                final long start = System.nanoTime();
+                try {
+                    final long bytes = node.sender.send(batch);
+                    if (bytes != DEFERRED) {
+                        node.delivered.onDelivered(batch.tag, batch.count(), bytes, System.nanoTime() - start);
+                    }
+                    // counted as unacknowledged before it stops being outstanding, for inFlight() never to miss it
+                    node.unacknowledged = node.sender.inFlight();
+                    node.outstanding.decrementAndGet();
+                    recycle(batch);
+                } catch (IOException e) {
+                    markDown(node);
+                    reroute(node, batch);
+                }
+            }
+            node.sender.pollDelivered(node.delivered);
+            node.unacknowledged = node.sender.inFlight();
+            // with acks a send does not fail when the connection drops, the window just keeps the messages
+            if (node.sender.lostConnection()) {
+                markDown(node);
+            }
+        }
+    }
+
+    private void markDown(Node node) {
+        node.up = false;
+        node.nextProbeAt = System.nanoTime() + healthCheckNanos;
+    }
+
+    /**
+     * Moves a batch of a node that went down to another node that is up, or else hands it back.
+     */
+    private void reroute(Node from, EventBatch batch) {
+        for (int i = 1; i < nodes.length; i++) {
+            final Node node = nodes[(from.index + i) % nodes.length];
+            if (node.up && offer(node, batch)) {
+                from.outstanding.decrementAndGet();
+                return;
+            }
+        }
+        undeliverable.offer(batch);
+        from.outstanding.decrementAndGet();
+    }
+
+    @Override
+    EventBatch pollUndeliverable() {
+        return undeliverable.poll();
+    }
+
+    @Override
+    void release(EventBatch batch) {
+        recycle(batch);
+    }
+
+    @Override
+    void pollDelivered(Delivered delivered) {
+        Delivery delivery;
+        while ((delivery = deliveries.poll()) != null) {
+            delivered.onDelivered(delivery.tag, delivery.events, delivery.bytes, delivery.nanos);
+        }
+    }
+
+    @Override
+    void service() {
+        // the node threads do the work
+    }
+
+    @Override
+    int inFlight() {
+        int inFlight = 0;
+        for (Node node : nodes) {
+            inFlight += node.outstanding.get() + node.unacknowledged;
+        }
+        return inFlight;
+    }
+
+    @Override
+    boolean awaitAcks(long deadlineNanos, boolean untilRoom) {
+        while (inFlight() > 0 && System.nanoTime() - deadlineNanos < 0) {
+            LockSupport.parkNanos(POLL_NANOS);
+        }
+        return inFlight() == 0;
+    }
+
+    @Override
+    void abandonUndelivered(ObjIntConsumer<String> failed) {
+        stop();
+        for (Node node : nodes) {
+            EventBatch batch;
+            while ((batch = node.queue.poll()) != null) {
+                failed.accept(batch.tag, batch.count());
+            }
+            node.outstanding.set(0);
+            if (!node.worker.isAlive()) {
+                node.sender.pollDelivered(node.delivered);
+                node.sender.abandonUndelivered(failed);
+            }
+            node.unacknowledged = 0;
+        }
+    }
+
+    @Override
+    void abort() {
+        for (Node node : nodes) {
+            node.sender.abort();
+        }
+    }
+
+    /**
+     * Stops the node threads, after which their senders belong to the calling thread. A thread still writing
+     * after a grace period has its connection aborted, and one that does not stop even then keeps its sender.
+     */
+    private void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        running = false;
+        for (Node node : nodes) {
+            node.worker.interrupt();
+        }
+        final long deadline = System.nanoTime() + STOP_GRACE_NANOS;
+        for (Node node : nodes) {
+            if (!join(node.worker, deadline)) {
+                node.sender.abort();
+                join(node.worker, System.nanoTime() + STOP_GRACE_NANOS);
+            }
+        }
+    }
+
+    private static boolean join(Thread thread, long deadlineNanos) {
+        try {
+            thread.join(Math.max(TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()), 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+    @Override
+    boolean usesEventTime() {
+        return eventTime;
+    }
+
+    /**
+     * Whether any node is up.
+     */
+    @Override
+    public boolean isConnected() {
+        for (Node node : nodes) {
+            if (node.up) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        stop();
+        for (Node node : nodes) {
+            if (!node.worker.isAlive()) {
+                node.sender.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        final List<String> names = new ArrayList<>(nodes.length);
+        for (Node node : nodes) {
+            names.add(node.sender + (node.up ? "" : " (down)"));
+        }
+        return "ForwardCluster{" + routing + ", " + names + "}";
+    }
+
+    public static final class Builder {
+        private final List<ForwardSender> senders = new ArrayList<>();
+        private final List<Integer> weights = new ArrayList<>();
+        private Routing routing = Routing.WEIGHTED_ROUND_ROBIN;
+        private long healthCheckNanos = TimeUnit.SECONDS.toNanos(1);
+        private int queuedBatches = 16;
+
+        private Builder() {
+        }
+
+        public Builder node(ForwardSender sender) {
+            return node(sender, 1);
+        }
+
+        /**
+         * Adds a node taking {@code weight} times the share of a node of weight 1.
+         */
+        public Builder node(ForwardSender sender, int weight) {
+            if (sender == null || weight < 1) {
+                throw new IllegalArgumentException("sender must not be null and weight must be positive");
+            }
+            senders.add(sender);
+            weights.add(weight);
+            return this;
+        }
+
+        /**
+         * {@link Routing#WEIGHTED_ROUND_ROBIN} by default.
+         */
+        public Builder routing(Routing routing) {
+            this.routing = routing;
+            return this;
+        }
+
+        /**
+         * How often a node that is down is probed, 1 second by default.
+         */
+        public Builder healthCheckInterval(long interval, TimeUnit unit) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("interval must be positive: " + interval);
+            }
+            this.healthCheckNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * How many batches may wait for each node, 16 by default.
+         */
+        public Builder queuedBatches(int queuedBatches) {
+            if (queuedBatches < 1) {
+                throw new IllegalArgumentException("queuedBatches must be positive: " + queuedBatches);
+            }
+            this.queuedBatches = queuedBatches;
+            return this;
+        }
+
+        public ForwardCluster build() {
+            if (senders.isEmpty()) {
+                throw new IllegalStateException("a cluster needs at least one node");
+            }
+            for (ForwardSender sender : senders) {
+                if (sender.usesEventTime() != senders.get(0).usesEventTime()) {
+                    throw new IllegalStateException("either all nodes or none use EventTime");
+                }
+            }
+            return new ForwardCluster(this);
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package feign.fluentd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.function.ObjIntConsumer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes whole batches to a Fluentd {@code in_forward} endpoint, one Forward or PackedForward message per
+ * batch.
+ * <p>
+ * Not thread-safe: it is meant to be owned by the sender thread of {@link SingleThreadWrapper}, which is
+ * also where {@link Mode#COMPRESSED_PACKED_FORWARD} batches get compressed.
+ * <p>
+ * {@link #withAcks} turns on at-least-once delivery: every message carries a {@code chunk} id and stays in a
+ * window of encoded messages until Fluentd acknowledges it. Messages are written without waiting for earlier
+ * acks, and the whole window is written again after a reconnect or once the oldest ack is overdue, so
+ * Fluentd may receive a message twice but does not silently lose one.
+ */
+public final class ForwardSender extends ForwardTransport {
+
+    public enum Mode {
+        /**
+         * {@code [tag, [[time, record], ...], option]}
+         */
+        FORWARD,
+        /**
+         * {@code [tag, bin(concatenated [time, record] entries), option]}
+         */
+        PACKED_FORWARD,
+        /**
+         * {@code [tag, bin(gzip(concatenated [time, record] entries)), {"compressed": "gzip"}]}, for batches of at
+         * least {@link #withCompression minBatchBytes}; smaller ones go as PackedForward
+         */
+        COMPRESSED_PACKED_FORWARD
+    }
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER = 8;
+
+    private static final int DEFAULT_TIMEOUT_MILLIS = 3000;
+    private static final long RECONNECT_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final String host;
+    private final int port;
+    private final Mode mode;
+    private final int timeoutMillis;
+    private final MessagePackWriter header = new MessagePackWriter(256);
+    private final CRC32 crc = new CRC32();
+    private Deflater deflater;
+    private byte[] compressed = new byte[0];
+    private int compressionLevel = Deflater.BEST_SPEED;
+    private int minCompressedBatchBytes = 4096;
+    private boolean eventTime;
+    private AckWindow acks;
+    private volatile Socket socket;
+    private OutputStream out;
+    private DataInputStream in;
+    private long lastConnectFailure;
+    private boolean connectFailed;
+    private boolean closing;
+    private long closeDeadline;
+    private volatile boolean aborted;
+    private boolean lostConnection;
+
+    public ForwardSender(String host, int port) {
+        this(host, port, Mode.PACKED_FORWARD, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public ForwardSender(String host, int port, Mode mode, int timeoutMillis) {
+        this.host = host;
+        this.port = port;
+        this.mode = mode;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * With {@link Mode#COMPRESSED_PACKED_FORWARD}: the {@link Deflater} level (1, the default, to 9), and the
+     * encoded size below which a batch is not worth compressing (4 KB by default).
+     */
+    public ForwardSender withCompression(int level, int minBatchBytes) {
+        if (mode != Mode.COMPRESSED_PACKED_FORWARD) {
+            throw new IllegalStateException("compression needs " + Mode.COMPRESSED_PACKED_FORWARD + ", not " + mode);
+        }
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be in [1, 9]: " + level);
+        }
+        this.compressionLevel = level;
+        this.minCompressedBatchBytes = minBatchBytes;
+        if (deflater != null) {
+            deflater.setLevel(level);
+        }
+        return this;
+    }
+
+    /**
+     * Stamps events with EventTime, to the millisecond, instead of whole seconds. Needs Fluentd 0.14 or later.
+     */
+    public ForwardSender withEventTime() {
+        this.eventTime = true;
+        return this;
+    }
+
+    @Override
+    boolean usesEventTime() {
+        return eventTime;
+    }
+
+    /**
+     * Delivers at least once: keeps up to {@code maxInFlight} messages until Fluentd acknowledges them, and
+     * writes them again when an ack takes longer than {@code ackTimeout} or the connection is lost.
+     */
+    public ForwardSender withAcks(int maxInFlight, long ackTimeout, TimeUnit unit) {
+        this.acks = new AckWindow(maxInFlight, unit.toNanos(ackTimeout));
+        return this;
+    }
+
+    /**
+     * Without acks, writes the batch; with acks, takes it into the window and writes it if connected, failing
+     * only when the window stays full for an ack timeout.
+     *
+     * @return the number of bytes written, or {@link #DEFERRED} with acks, until the batch is acknowledged
+     */
+    @Override
+    long send(EventBatch batch) throws IOException {
+        if (acks != null) {
+            return sendAcknowledged(batch);
+        }
+        final OutputStream stream = connect();
+        try {
+            final long bytes = write(batch, stream, null);
+            stream.flush();
+            return bytes;
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    private long sendAcknowledged(EventBatch batch) throws IOException {
+        service();
+        if (acks.isFull()) {
+            final long deadline = acks.nextDeadline(System.nanoTime());
+            awaitAcks(closing && closeDeadline - deadline < 0 ? closeDeadline : deadline, true);
+            if (acks.isFull()) {
+                throw new IOException(acks.size() + " messages to " + host + ":" + port + " wait for an ack");
+            }
+        }
+        final AckWindow.Chunk chunk = acks.add(batch.tag, batch.count());
+        chunk.bytes = write(batch, chunk.stream, chunk.id);
+        writeUnwritten();
+        return DEFERRED;
+    }
+
+    @Override
+    void pollDelivered(Delivered delivered) {
+        if (acks != null) {
+            acks.pollAcknowledged(delivered, System.nanoTime());
+        }
+    }
+
+    /**
+     * With acks: reads the acks that arrived, drops a connection whose oldest ack is overdue and writes what
+     * is not written on the current connection. Does not block, except to connect.
+     */
+    @Override
+    void service() {
+        if (acks == null || acks.isEmpty()) {
+            return;
+        }
+        try {
+            while (in != null && in.available() > 0) {
+                acknowledge(AckWindow.readAck(in));
+            }
+        } catch (IOException e) {
+            disconnect();
+        }
+        if (acks.isOverdue(System.nanoTime())) {
+            disconnect();
+        }
+        writeUnwritten();
+    }
+
+    /**
+     * Waits until every message in the window is acknowledged, or {@code deadlineNanos}.
+     *
+     * @param untilRoom return as soon as the window is not full any more
+     * @return whether the window is empty
+     */
+    @Override
+    boolean awaitAcks(long deadlineNanos, boolean untilRoom) {
+        if (acks == null) {
+            return true;
+        }
+        long now;
+        while (!(untilRoom ? !acks.isFull() : acks.isEmpty()) && !aborted
+                && (now = System.nanoTime()) - deadlineNanos < 0) {
+            writeUnwritten();
+            if (in == null) {
+                sleepUntil(Math.min(deadlineNanos, now + TimeUnit.MILLISECONDS.toNanos(10)));
+                continue;
+            }
+            final long wait = Math.min(deadlineNanos, acks.nextDeadline(now)) - now;
+            try {
+                if (awaitInput(wait)) {
+                    acknowledge(AckWindow.readAck(in));
+                }
+            } catch (IOException e) {
+                disconnect();
+            }
+            if (acks.isOverdue(System.nanoTime())) {
+                disconnect();
+            }
+        }
+        return acks.isEmpty();
+    }
+
+    /**
+     * Blocks until a byte can be read, without consuming it, so that a timeout never cuts an ack in two: the
+     * short timeout only applies to this first byte, and the ack is read with the connection's usual one.
+     */
+    private boolean awaitInput(long timeoutNanos) throws IOException {
+        socket.setSoTimeout((int) Math.max(TimeUnit.NANOSECONDS.toMillis(timeoutNanos), 1));
+        in.mark(1);
+        try {
+            if (in.read() < 0) {
+                throw new EOFException("connection to " + host + ":" + port + " closed");
+            }
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(timeoutMillis);
+        }
+        in.reset();
+        return true;
+    }
+
+    @Override
+    void closeBy(long deadlineNanos) {
+        this.closing = true;
+        this.closeDeadline = deadlineNanos;
+    }
+
+    /**
+     * Closes the socket under the sender thread, which has no write timeout otherwise, and refuses to connect
+     * again.
+     */
+    @Override
+    void abort() {
+        aborted = true;
+        final Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+                // already broken
+            }
+        }
+    }
+
+    private static void sleepUntil(long deadlineNanos) {
+        final long remaining = deadlineNanos - System.nanoTime();
+        if (remaining > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private void acknowledge(String chunk) {
+        if (chunk != null) {
+            acks.acknowledge(chunk);
+        }
+    }
+
+    private void writeUnwritten() {
+        try {
+            final OutputStream stream = connect();
+            if (acks.writeUnwritten(stream, System.nanoTime())) {
+                stream.flush();
+            }
+        } catch (IOException e) {
+            disconnect();
+        }
+    }
+
+    @Override
+    int inFlight() {
+        return acks == null ? 0 : acks.size();
+    }
+
+    /**
+     * Gives up on the messages Fluentd did not acknowledge.
+     */
+    @Override
+    void abandonUndelivered(ObjIntConsumer<String> failed) {
+        if (acks != null) {
+            for (AckWindow.Chunk chunk : acks.abandon()) {
+                failed.accept(chunk.tag, chunk.count);
+            }
+        }
+    }
+
+    /**
+     * Whether a connection was dropped since the last call: on a failed write or read, or with acks, because
+     * an ack was overdue, even though the messages in the window stay to be written again.
+     */
+    boolean lostConnection() {
+        final boolean lost = lostConnection;
+        lostConnection = false;
+        return lost;
+    }
+
+    /**
+     * Connects unless connected, for a health check.
+     *
+     * @return whether the connection is up
+     */
+    boolean probe() {
+        try {
+            connect();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes {@code batch} as one message to {@code stream}, without flushing it.
+     *
+     * @return the number of bytes written
+     */
+    long write(EventBatch batch, OutputStream stream, String chunk) throws IOException {
+        final MessagePackWriter entries = batch.entries();
+        final boolean compress = mode == Mode.COMPRESSED_PACKED_FORWARD && entries.size() >= minCompressedBatchBytes;
+        final int compressedSize = compress ? compress(entries) : 0;
+        header.reset();
+        header.writeArrayHeader(3);
+        header.writeString(batch.tag);
+        if (mode == Mode.FORWARD) {
+            header.writeArrayHeader(batch.count());
+        } else {
+            header.writeBinaryHeader(compress ? compressedSize : entries.size());
+        }
+        long bytes = header.size();
+        header.writeTo(stream);
+        if (compress) {
+            stream.write(compressed, 0, compressedSize);
+            bytes += compressedSize;
+        } else {
+            entries.writeTo(stream);
+            bytes += entries.size();
+        }
+        header.reset();
+        header.writeMapHeader(1 + (compress ? 1 : 0) + (chunk != null ? 1 : 0));
+        header.writeString("size");
+        header.writeLong(batch.count());
+        if (chunk != null) {
+            header.writeString("chunk");
+            header.writeString(chunk);
+        }
+        if (compress) {
+            header.writeString("compressed");
+            header.writeString("gzip");
+        }
+        header.writeTo(stream);
+        return bytes + header.size();
+    }
+
+    /**
+     * Gzips the entries into {@link #compressed}, reusing the deflater and the buffer across batches.
+     *
+     * @return the compressed size
+     */
+    private int compress(MessagePackWriter entries) {
+        if (deflater == null) {
+            deflater = new Deflater(compressionLevel, true);
+        }
+        final byte[] input = entries.buffer();
+        final int length = entries.size();
+        if (compressed.length < GZIP_HEADER.length + GZIP_TRAILER + 64) {
+            compressed = new byte[Math.max(length / 2, 1024)];
+        }
+        System.arraycopy(GZIP_HEADER, 0, compressed, 0, GZIP_HEADER.length);
+        int size = GZIP_HEADER.length;
+        deflater.reset();
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (size == compressed.length - GZIP_TRAILER) {
+                compressed = Arrays.copyOf(compressed, compressed.length << 1);
+            }
+            size += deflater.deflate(compressed, size, compressed.length - GZIP_TRAILER - size);
+        }
+        crc.reset();
+        crc.update(input, 0, length);
+        writeIntLE(compressed, size, (int) crc.getValue());
+        writeIntLE(compressed, size + 4, length);
+        return size + GZIP_TRAILER;
+    }
+
+    private static void writeIntLE(byte[] target, int offset, int value) {
+        target[offset] = (byte) value;
+        target[offset + 1] = (byte) (value >>> 8);
+        target[offset + 2] = (byte) (value >>> 16);
+        target[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private OutputStream connect() throws IOException {
+        if (out != null) {
+            return out;
+        }
+        if (aborted) {
+            throw new IOException("gave up on " + host + ":" + port + " at close");
+        }
+        if (connectFailed && System.nanoTime() - lastConnectFailure < RECONNECT_DELAY_NANOS) {
+            throw new IOException("waiting to reconnect to " + host + ":" + port);
+        }
+        final Socket candidate = new Socket();
+        try {
+            candidate.connect(new InetSocketAddress(host, port), timeoutMillis);
+            candidate.setSoTimeout(timeoutMillis);
+            candidate.setTcpNoDelay(true);
+        } catch (IOException e) {
+            candidate.close();
+            connectFailed = true;
+            lastConnectFailure = System.nanoTime();
+            throw e;
+        }
+        connectFailed = false;
+        socket = candidate;
+        if (aborted) {
+            // abort() ran while connecting and did not see this socket
+            disconnect();
+            throw new IOException("gave up on " + host + ":" + port + " at close");
+        }
+        out = new BufferedOutputStream(candidate.getOutputStream(), 64 * 1024);
+        if (acks != null) {
+            in = new DataInputStream(new BufferedInputStream(candidate.getInputStream()));
+        }
+        return out;
+    }
+
+    private void disconnect() {
+        if (out != null) {
+            lostConnection = true;
+        }
+        out = null;
+        in = null;
+        if (acks != null) {
+            acks.unwriteAll();
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // already broken
+            }
+            socket = null;
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        final Socket current = socket;
+        return current != null && current.isConnected() && !current.isClosed();
+    }
+
+    @Override
+    public void close() {
+        disconnect();
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ForwardSender{" + host + ":" + port + ", " + mode + "}";
+    }
+}
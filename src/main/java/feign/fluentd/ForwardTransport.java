@@ -0,0 +1,103 @@
+package feign.fluentd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Where the sender thread of a {@link SingleThreadWrapper} ships its batches: one Fluentd node through a
+ * {@link ForwardSender}, or several through a {@link ForwardCluster}.
+ * <p>
+ * Only those two can extend it; everything but {@link #isConnected()}, {@link #abort()} and {@link #close()}
+ * is called by the sender thread alone.
+ */
+public abstract class ForwardTransport implements Closeable {
+
+    /**
+     * What {@link #send} returns for a batch taken to be delivered later, and then reported to
+     * {@link #pollDelivered}.
+     */
+    static final long DEFERRED = -1;
+
+    /**
+     * Receives the batches delivered since they were taken by {@link #send}.
+     */
+    interface Delivered {
+        void onDelivered(String tag, int events, long bytes, long nanos);
+    }
+
+    ForwardTransport() {
+    }
+
+    /**
+     * Writes the batch, or takes it to be delivered later; {@code batch} may be reused once this returns.
+     *
+     * @return the number of bytes written, or {@link #DEFERRED}
+     * @throws IOException if the batch could not be taken; the caller still owns its events then
+     */
+    abstract long send(EventBatch batch) throws IOException;
+
+    /**
+     * Passes every batch taken by {@link #send} and delivered since the last call to {@code delivered}:
+     * written, or acknowledged where acks are on.
+     */
+    abstract void pollDelivered(Delivered delivered);
+
+    /**
+     * Called on every pass of the sender thread, busy or idle, for work that must not wait for the next batch.
+     */
+    abstract void service();
+
+    /**
+     * A batch taken by {@link #send} that no node would take any more, handed back so that it can be spilled
+     * or counted as failed.
+     *
+     * @return null if there is none
+     */
+    EventBatch pollUndeliverable() {
+        return null;
+    }
+
+    /**
+     * Gives back a batch from {@link #pollUndeliverable} once it was spilled or counted as failed.
+     */
+    void release(EventBatch batch) {
+    }
+
+    /**
+     * Number of batches taken but not delivered yet, acknowledged where acks are on.
+     */
+    abstract int inFlight();
+
+    /**
+     * Waits until every batch taken was delivered, or {@code deadlineNanos}.
+     *
+     * @param untilRoom return as soon as another batch can be taken
+     * @return whether nothing is in flight any more
+     */
+    abstract boolean awaitAcks(long deadlineNanos, boolean untilRoom);
+
+    /**
+     * Gives up on every batch still in flight, passing the tag and event count of each to {@code failed}.
+     */
+    abstract void abandonUndelivered(ObjIntConsumer<String> failed);
+
+    /**
+     * Close started: waits inside {@link #send} end by {@code deadlineNanos} at the latest.
+     */
+    void closeBy(long deadlineNanos) {
+    }
+
+    /**
+     * Called by the closing thread once the close deadline passed: makes the writes and waits the sender thread
+     * is stuck in fail, and every later send too.
+     */
+    abstract void abort();
+
+    abstract boolean usesEventTime();
+
+    public abstract boolean isConnected();
+
+    @Override
+    public abstract void close();
+}
@@ -0,0 +1,244 @@
+package feign.fluentd;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides which request and response headers {@link FluentdLogger} logs at {@code Level.HEADERS} and above,
+ * and which of their values it masks or hashes.
+ * <p>
+ * Header names are matched case-insensitively against a table built once, without lowercasing or copying
+ * anything per call; listed names are written with their MessagePack encoding prepared ahead of time, spelled
+ * as in the filter. Denied names always win; masked and hashed names are logged even with an allowlist that
+ * does not mention them.
+ * <p>
+ * Hashed values are keyed with HMAC-SHA256, so that short secrets cannot be brute-forced back from the logs by
+ * anyone without the key.
+ */
+public final class HeaderFilter {
+
+    static final String MASK = "****";
+    static final String HASH_PREFIX = "hmac-sha256:";
+    private static final int MIN_KEY_BYTES = 16;
+    private static final HeaderFilter UNFILTERED = new HeaderFilter(new LinkedHashMap<>(), false, null);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Drawn on first use only, so that filters without hashed headers never touch {@link SecureRandom}.
+     */
+    private static final class ProcessKey {
+        static final byte[] KEY = new byte[32];
+
+        static {
+            new SecureRandom().nextBytes(KEY);
+        }
+    }
+
+    enum Action {
+        KEEP, DENY, MASK, HASH
+    }
+
+    static final class Rule {
+        final String name;
+        final byte[] encodedName;
+        final Action action;
+
+        Rule(String name, Action action) {
+            this.name = name;
+            this.action = action;
+            if (name == null) {
+                this.encodedName = null;
+            } else {
+                final MessagePackWriter writer = new MessagePackWriter(name.length() + 5);
+                writer.writeString(name);
+                this.encodedName = Arrays.copyOf(writer.buffer(), writer.size());
+            }
+        }
+    }
+
+    private final Rule[] table;
+    private final int mask;
+    private final Rule unlisted;
+    private final boolean unfiltered;
+    private final Map<String, Action> actions;
+    private final ThreadLocal<Mac> hmac;
+
+    private HeaderFilter(Map<String, Action> actions, boolean allowlist, byte[] key) {
+        this.actions = actions;
+        this.hmac = ThreadLocal.withInitial(() -> {
+            try {
+                final Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(key != null ? key : ProcessKey.KEY, "HmacSHA256"));
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("every JRE has HmacSHA256", e);
+            }
+        });
+        this.unlisted = new Rule(null, allowlist ? Action.DENY : Action.KEEP);
+        this.unfiltered = actions.isEmpty() && !allowlist;
+        this.table = new Rule[Integer.highestOneBit(Math.max(actions.size(), 1) * 4 - 1) << 1];
+        this.mask = table.length - 1;
+        for (Map.Entry<String, Action> entry : actions.entrySet()) {
+            int index = hash(entry.getKey()) & mask;
+            while (table[index] != null) {
+                index = (index + 1) & mask;
+            }
+            table[index] = new Rule(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Every header logged as is: what {@link FluentdLogger} always did.
+     */
+    public static HeaderFilter unfiltered() {
+        return UNFILTERED;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    boolean isUnfiltered() {
+        return unfiltered;
+    }
+
+    /**
+     * Hash of the ASCII-lowercased name, equal for names that only differ in case.
+     */
+    private static int hash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            hash = 31 * hash + c;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    Rule ruleOf(String name) {
+        if (name == null) {
+            return unlisted;
+        }
+        int index = hash(name) & mask;
+        Rule rule;
+        while ((rule = table[index]) != null) {
+            if (rule.name.length() == name.length() && rule.name.equalsIgnoreCase(name)) {
+                return rule;
+            }
+            index = (index + 1) & mask;
+        }
+        return unlisted;
+    }
+
+    /**
+     * The value to log for a header that {@code rule} keeps.
+     */
+    String value(Rule rule, String value) {
+        if (value == null || rule.action == Action.KEEP) {
+            return value;
+        }
+        if (rule.action == Action.MASK) {
+            return MASK;
+        }
+        final byte[] hash = hmac.get().doFinal(value.getBytes(StandardCharsets.UTF_8));
+        final int prefix = HASH_PREFIX.length();
+        final char[] hex = new char[prefix + 16];
+        HASH_PREFIX.getChars(0, prefix, hex, 0);
+        for (int i = 0; i < 8; i++) {
+            hex[prefix + 2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            hex[prefix + 1 + 2 * i] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    @Override
+    public String toString() {
+        return "HeaderFilter{" + (unlisted.action == Action.DENY ? "allowlist, " : "") + actions + "}";
+    }
+
+    public static final class Builder {
+        private final Map<String, Action> actions = new LinkedHashMap<>();
+        private boolean allowlist;
+        private byte[] hashKey;
+
+        private Builder() {
+        }
+
+        /**
+         * Logs only these headers, besides the masked and hashed ones.
+         */
+        public Builder allow(String... names) {
+            allowlist = true;
+            return put(Action.KEEP, names);
+        }
+
+        public Builder deny(String... names) {
+            return put(Action.DENY, names);
+        }
+
+        /**
+         * Logs these headers with every value replaced by {@value HeaderFilter#MASK}.
+         */
+        public Builder mask(String... names) {
+            return put(Action.MASK, names);
+        }
+
+        /**
+         * Logs these headers with every value replaced by the start of its HMAC-SHA256: equal values still
+         * group together, but cannot be reversed without the key, that of {@link #hashKey} or else one drawn
+         * at random per process.
+         */
+        public Builder hash(String... names) {
+            return put(Action.HASH, names);
+        }
+
+        /**
+         * The HMAC key for {@link #hash}, at least 16 bytes, to be shared by the processes whose hashes should
+         * match; without one, hashes only match within a process.
+         */
+        public Builder hashKey(byte[] key) {
+            if (key == null || key.length < MIN_KEY_BYTES) {
+                throw new IllegalArgumentException("the hash key needs at least " + MIN_KEY_BYTES + " bytes");
+            }
+            this.hashKey = key.clone();
+            return this;
+        }
+
+        private Builder put(Action action, String... names) {
+            for (String name : names) {
+                final String existing = findIgnoringCase(name);
+                if (existing == null) {
+                    actions.put(name, action);
+                    continue;
+                }
+                final Action previous = actions.get(existing);
+                // deny beats everything, masking and hashing beat allowing
+                if (previous != Action.DENY && (action != Action.KEEP || previous == Action.KEEP)) {
+                    actions.put(existing, action);
+                }
+            }
+            return this;
+        }
+
+        private String findIgnoringCase(String name) {
+            for (String existing : actions.keySet()) {
+                if (existing.equalsIgnoreCase(name)) {
+                    return existing;
+                }
+            }
+            return null;
+        }
+
+        public HeaderFilter build() {
+            return new HeaderFilter(new LinkedHashMap<>(actions), allowlist, hashKey);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package feign.fluentd;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds with 8 log-linear buckets per power of two, so that percentiles are
+ * within 12.5%. Recording is lock-free and striped by thread, so that threads recording at the same time do
+ * not contend on the same counters.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final int MAX_STRIPES = 16;
+
+    private final AtomicLongArray[] stripes;
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        final int stripeCount = Math.min(Integer.highestOneBit(Math.max(processors, 1) * 2 - 1), MAX_STRIPES);
+        stripes = new AtomicLongArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    public void record(long nanos) {
+        final long value = Math.max(nanos, 0);
+        stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)].getAndIncrement(index(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public Snapshot snapshot() {
+        final long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                final long bucket = stripe.get(i);
+                counts[i] += bucket;
+                count += bucket;
+            }
+        }
+        return new Snapshot(counts, count, sum.sum(), max.get());
+    }
+
+    /**
+     * Like {@link #snapshot()}, starting over from zero; a value recorded meanwhile ends up in this snapshot or
+     * the next one, not in both.
+     */
+    public Snapshot snapshotAndReset() {
+        final long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                if (stripe.get(i) != 0) {
+                    final long bucket = stripe.getAndSet(i, 0);
+                    counts[i] += bucket;
+                    count += bucket;
+                }
+            }
+        }
+        return new Snapshot(counts, count, sum.sumThenReset(), max.getThenReset());
+    }
+
+    static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return magnitude * SUB_BUCKETS + (int) (value >>> magnitude);
+    }
+
+    static long upperBound(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        final int magnitude = index / SUB_BUCKETS - 1;
+        final long subBucket = index - magnitude * SUB_BUCKETS;
+        return ((subBucket + 1) << magnitude) - 1;
+    }
+
+    /**
+     * The histogram at one point in time; the getters make it readable as JMX composite data.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        public long getMaxNanos() {
+            return max;
+        }
+
+        public long getP50Nanos() {
+            return percentile(50);
+        }
+
+        public long getP99Nanos() {
+            return percentile(99);
+        }
+
+        public long getP999Nanos() {
+            return percentile(99.9);
+        }
+
+        /**
+         * Upper bound of the bucket holding the {@code percentile}th value.
+         */
+        public long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", mean=" + getMeanNanos() + "ns, p50=" + getP50Nanos() + "ns, p99="
+                    + getP99Nanos() + "ns, p99.9=" + getP999Nanos() + "ns, max=" + max + "ns";
+        }
+    }
+}
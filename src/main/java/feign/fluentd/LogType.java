@@ -1,7 +1,8 @@
 package feign.fluentd;
 
 public enum LogType {
-    request(false), response(true), retry(false), io_exception(true), meta_data(false), dirty_context(false);
+    request(false), response(true), retry(false), io_exception(true), meta_data(false), dirty_context(false),
+    rollup(false), suppressed(false);
     public final boolean isFinalStep;
 
     LogType(boolean isFinalStep) {
@@ -0,0 +1,261 @@
+package feign.fluentd;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * What the pipeline of one {@link SingleThreadWrapper} did so far: queue depth, enqueue and send latency,
+ * encode time, events and bytes sent per tag, failed sends, dropped and spilled events. Counters are {@link LongAdder}s
+ * and histograms are striped, so Feign's calling threads do not contend on them.
+ * <p>
+ * Everything recorded is passed on to the {@link MetricsListener} given to the wrapper's builder, if any.
+ * Without one, failed sends are reported to {@link java.util.logging}, at most once a minute with how many
+ * failed since, so that an outage does not flood the application's log.
+ */
+public final class LoggerMetrics implements MetricsListener, LoggerMetricsMXBean {
+    private static final Logger LOG = Logger.getLogger(LoggerMetrics.class.getName());
+    private static final long FAILURE_REPORT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final class TagCounters {
+        final LongAdder events = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    private final IntSupplier queueDepth;
+    private final MetricsListener listener;
+    private final LatencyHistogram enqueueLatency = new LatencyHistogram();
+    private final LatencyHistogram sendLatency = new LatencyHistogram();
+    private final LatencyHistogram encodeTime = new LatencyHistogram();
+    private final LongAdder[] dropped = new LongAdder[OverflowPolicy.values().length];
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder unreportedFailures = new LongAdder();
+    private final AtomicLong nextFailureReportAt = new AtomicLong(System.nanoTime());
+    private final LongAdder spilled = new LongAdder();
+    private volatile LongSupplier spillBacklog = () -> 0;
+    private volatile SinkCircuitBreaker circuitBreaker;
+    private final ConcurrentMap<String, TagCounters> tags = new ConcurrentHashMap<>();
+    private ObjectName objectName;
+
+    LoggerMetrics(IntSupplier queueDepth, MetricsListener listener) {
+        this.queueDepth = queueDepth;
+        this.listener = listener;
+        for (int i = 0; i < dropped.length; i++) {
+            dropped[i] = new LongAdder();
+        }
+    }
+
+    @Override
+    public void onEnqueued(String tag, long nanos) {
+        enqueueLatency.record(nanos);
+        if (listener != null) {
+            listener.onEnqueued(tag, nanos);
+        }
+    }
+
+    @Override
+    public void onDropped(OverflowPolicy policy) {
+        dropped[policy.ordinal()].increment();
+        if (listener != null) {
+            listener.onDropped(policy);
+        }
+    }
+
+    @Override
+    public void onEncoded(long nanos) {
+        encodeTime.record(nanos);
+        if (listener != null) {
+            listener.onEncoded(nanos);
+        }
+    }
+
+    @Override
+    public void onSent(String tag, int events, long bytes, long nanos) {
+        final TagCounters counters = tags.computeIfAbsent(tag, t -> new TagCounters());
+        counters.events.add(events);
+        counters.bytes.add(bytes);
+        sendLatency.record(nanos);
+        final SinkCircuitBreaker breaker = circuitBreaker;
+        if (breaker != null) {
+            breaker.recordBackground(true, nanos);
+        }
+        if (listener != null) {
+            listener.onSent(tag, events, bytes, nanos);
+        }
+    }
+
+    @Override
+    public void onSendFailed(String tag, int events, Exception error) {
+        sendFailures.add(events);
+        onSinkFailed();
+        if (listener != null) {
+            listener.onSendFailed(tag, events, error);
+        } else {
+            reportFailure(tag, events, error);
+        }
+    }
+
+    private void reportFailure(String tag, int events, Exception error) {
+        unreportedFailures.add(events);
+        final long now = System.nanoTime();
+        final long at = nextFailureReportAt.get();
+        if (now - at < 0 || !nextFailureReportAt.compareAndSet(at, now + FAILURE_REPORT_INTERVAL_NANOS)) {
+            return;
+        }
+        final long failed = unreportedFailures.sumThenReset();
+        LOG.log(Level.WARNING, "could not send " + events + " events of " + tag + " (" + failed
+                + " failed since the last report)", error);
+    }
+
+    @Override
+    public void onSpilled(String tag, int events, long bytes) {
+        spilled.add(events);
+        if (listener != null) {
+            listener.onSpilled(tag, events, bytes);
+        }
+    }
+
+    /**
+     * A send failed even though its events were kept, in the disk spill; only the circuit breaker hears of it.
+     */
+    void onSinkFailed() {
+        final SinkCircuitBreaker breaker = circuitBreaker;
+        if (breaker != null) {
+            breaker.recordBackground(false, 0);
+        }
+    }
+
+    /**
+     * Passes the outcome of every send on to {@code breaker} too.
+     */
+    void circuitBreaker(SinkCircuitBreaker breaker) {
+        this.circuitBreaker = breaker;
+    }
+
+    void spillBacklog(LongSupplier backlog) {
+        this.spillBacklog = backlog;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public long getEventsSent() {
+        long events = 0;
+        for (TagCounters counters : tags.values()) {
+            events += counters.events.sum();
+        }
+        return events;
+    }
+
+    @Override
+    public long getBytesSent() {
+        long bytes = 0;
+        for (TagCounters counters : tags.values()) {
+            bytes += counters.bytes.sum();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    @Override
+    public long getDroppedEvents() {
+        long total = 0;
+        for (LongAdder adder : dropped) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public long getSpilledEvents() {
+        return spilled.sum();
+    }
+
+    @Override
+    public long getSpillBacklogBytes() {
+        return spillBacklog.getAsLong();
+    }
+
+    public long droppedEvents(OverflowPolicy policy) {
+        return dropped[policy.ordinal()].sum();
+    }
+
+    @Override
+    public Map<String, Long> getEventsSentByTag() {
+        final Map<String, Long> events = new TreeMap<>();
+        tags.forEach((tag, counters) -> events.put(tag, counters.events.sum()));
+        return events;
+    }
+
+    @Override
+    public Map<String, Long> getBytesSentByTag() {
+        final Map<String, Long> bytes = new TreeMap<>();
+        tags.forEach((tag, counters) -> bytes.put(tag, counters.bytes.sum()));
+        return bytes;
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getEnqueueLatency() {
+        return enqueueLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getSendLatency() {
+        return sendLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getEncodeTime() {
+        return encodeTime.snapshot();
+    }
+
+    synchronized void register(String name) {
+        try {
+            objectName = new ObjectName("feign.fluentd:type=SingleThreadWrapper,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            throw new IllegalArgumentException("cannot register metrics as " + name, e);
+        }
+    }
+
+    synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException ignored) {
+            // unregistered concurrently
+        }
+        objectName = null;
+    }
+
+    @Override
+    public String toString() {
+        return "LoggerMetrics{queueDepth=" + getQueueDepth() + ", eventsSent=" + getEventsSent() + ", bytesSent="
+                + getBytesSent() + ", sendFailures=" + getSendFailures() + ", dropped=" + getDroppedEvents()
+                + ", spilled=" + getSpilledEvents() + "}";
+    }
+}
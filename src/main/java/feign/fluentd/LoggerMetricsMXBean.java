@@ -0,0 +1,33 @@
+package feign.fluentd;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link LoggerMetrics}, registered under {@code feign.fluentd:type=SingleThreadWrapper,name=...}.
+ */
+public interface LoggerMetricsMXBean {
+
+    int getQueueDepth();
+
+    long getEventsSent();
+
+    long getBytesSent();
+
+    long getSendFailures();
+
+    long getDroppedEvents();
+
+    long getSpilledEvents();
+
+    long getSpillBacklogBytes();
+
+    Map<String, Long> getEventsSentByTag();
+
+    Map<String, Long> getBytesSentByTag();
+
+    LatencyHistogram.Snapshot getEnqueueLatency();
+
+    LatencyHistogram.Snapshot getSendLatency();
+
+    LatencyHistogram.Snapshot getEncodeTime();
+}
@@ -0,0 +1,127 @@
+package feign.fluentd;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static feign.Util.decodeOrDefault;
+
+/**
+ * Builds the event as nested {@link HashMap}s, the layout {@code FluentLogger} and
+ * {@link FluentdLogger#doLog} work with.
+ */
+final class MapEventRecord implements EventRecord {
+
+    private final Map<String, Object> root;
+    private final Deque<Map<String, Object>> open = new ArrayDeque<>(2);
+    private Map<String, Object> current;
+    final long startNanos = System.nanoTime();
+
+    MapEventRecord() {
+        this(new HashMap<>());
+    }
+
+    /**
+     * Adds fields to an event built earlier.
+     */
+    MapEventRecord(Map<String, Object> root) {
+        this.root = root;
+        this.current = root;
+    }
+
+    Map<String, Object> map() {
+        return root;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        current.put(key, value);
+    }
+
+    @Override
+    public void put(String key, String value, int start, int end) {
+        current.put(key, start < 0 ? null : value.substring(start, end));
+    }
+
+    @Override
+    public void put(String key, int value) {
+        current.put(key, value);
+    }
+
+    @Override
+    public void put(String key, long value) {
+        current.put(key, value);
+    }
+
+    @Override
+    public void put(String key, boolean value) {
+        current.put(key, value);
+    }
+
+    @Override
+    public boolean putUri(String key, String url) {
+        final UrlSplitter splitter = new UrlSplitter();
+        if (!splitter.split(url)) {
+            return false;
+        }
+        splitter.writeTo(this, key);
+        return true;
+    }
+
+    @Override
+    public void putHeaders(String key, Map<String, Collection<String>> headers, HeaderFilter filter) {
+        if (filter.isUnfiltered()) {
+            current.put(key, headers);
+            return;
+        }
+        final Map<String, Object> kept = new LinkedHashMap<>();
+        for (Map.Entry<String, Collection<String>> header : headers.entrySet()) {
+            final HeaderFilter.Rule rule = filter.ruleOf(header.getKey());
+            if (rule.action == HeaderFilter.Action.DENY) {
+                continue;
+            }
+            final List<String> values = new ArrayList<>(header.getValue().size());
+            for (String value : header.getValue()) {
+                values.add(filter.value(rule, value));
+            }
+            kept.put(rule.name != null ? rule.name : header.getKey(), values);
+        }
+        current.put(key, kept);
+    }
+
+    @Override
+    public void putText(String key, byte[] data, int length, Charset charset) {
+        current.put(key, new String(data, 0, length, charset));
+    }
+
+    @Override
+    public void putTextOrDefault(String key, byte[] data, int length, Charset charset, String defaultValue) {
+        current.put(key, decodeOrDefault(length == data.length ? data : Arrays.copyOf(data, length), charset,
+                defaultValue));
+    }
+
+    @Override
+    public void putBinary(String key, byte[] data, int length) {
+        current.put(key, Arrays.copyOf(data, length));
+    }
+
+    @Override
+    public void beginMap(String key) {
+        final Map<String, Object> nested = new HashMap<>();
+        current.put(key, nested);
+        open.push(current);
+        current = nested;
+    }
+
+    @Override
+    public void endMap() {
+        current = open.pop();
+    }
+}
@@ -0,0 +1,389 @@
+package feign.fluentd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Minimal MessagePack encoder writing into a growable, reusable byte array.
+ * <p>
+ * Only the subset of the format Fluentd needs is supported. Nothing is allocated once the buffer has grown
+ * to its working size, strings included: they are UTF-8 encoded straight from their chars.
+ */
+final class MessagePackWriter {
+
+    private byte[] buffer;
+    private int position;
+
+    MessagePackWriter(int initialCapacity) {
+        this.buffer = new byte[initialCapacity];
+    }
+
+    int size() {
+        return position;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    void reset() {
+        position = 0;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, position);
+    }
+
+    void writeNil() {
+        ensure(1);
+        buffer[position++] = (byte) 0xc0;
+    }
+
+    void writeBoolean(boolean value) {
+        ensure(1);
+        buffer[position++] = (byte) (value ? 0xc3 : 0xc2);
+    }
+
+    void writeLong(long value) {
+        ensure(9);
+        if (value >= 0) {
+            if (value < 0x80) {
+                buffer[position++] = (byte) value;
+            } else if (value < 0x100) {
+                buffer[position++] = (byte) 0xcc;
+                buffer[position++] = (byte) value;
+            } else if (value < 0x10000) {
+                buffer[position++] = (byte) 0xcd;
+                putShort((int) value);
+            } else if (value < 0x100000000L) {
+                buffer[position++] = (byte) 0xce;
+                putInt((int) value);
+            } else {
+                buffer[position++] = (byte) 0xcf;
+                putLong(value);
+            }
+        } else if (value >= -32) {
+            buffer[position++] = (byte) value;
+        } else if (value >= Byte.MIN_VALUE) {
+            buffer[position++] = (byte) 0xd0;
+            buffer[position++] = (byte) value;
+        } else if (value >= Short.MIN_VALUE) {
+            buffer[position++] = (byte) 0xd1;
+            putShort((int) value);
+        } else if (value >= Integer.MIN_VALUE) {
+            buffer[position++] = (byte) 0xd2;
+            putInt((int) value);
+        } else {
+            buffer[position++] = (byte) 0xd3;
+            putLong(value);
+        }
+    }
+
+    /**
+     * Writes Fluentd's EventTime: ext type 0 holding the seconds and the nanoseconds as two 32-bit integers.
+     */
+    void writeEventTime(long epochMillis) {
+        ensure(10);
+        buffer[position++] = (byte) 0xd7;
+        buffer[position++] = 0;
+        putInt((int) Math.floorDiv(epochMillis, 1000));
+        putInt((int) Math.floorMod(epochMillis, 1000) * 1_000_000);
+    }
+
+    void writeDouble(double value) {
+        ensure(9);
+        buffer[position++] = (byte) 0xcb;
+        putLong(Double.doubleToLongBits(value));
+    }
+
+    void writeString(CharSequence value) {
+        writeString(value, 0, value.length());
+    }
+
+    void writeString(CharSequence value, int start, int end) {
+        final int length = utf8Length(value, start, end);
+        writeStringHeader(length);
+        ensure(length);
+        for (int i = start; i < end; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xc0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (!Character.isSurrogate(c)) {
+                buffer[position++] = (byte) (0xe0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (isSurrogatePair(value, i, end)) {
+                final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                // lone surrogates are replaced, like String.getBytes does
+                buffer[position++] = '?';
+            }
+        }
+    }
+
+    private static int utf8Length(CharSequence value, int start, int end) {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (!Character.isSurrogate(c)) {
+                length += 3;
+            } else if (isSurrogatePair(value, i, end)) {
+                length += 4;
+                i++;
+            } else {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    private static boolean isSurrogatePair(CharSequence value, int index, int end) {
+        return Character.isHighSurrogate(value.charAt(index)) && index + 1 < end
+                && Character.isLowSurrogate(value.charAt(index + 1));
+    }
+
+    private void writeStringHeader(int length) {
+        ensure(5);
+        if (length < 32) {
+            buffer[position++] = (byte) (0xa0 | length);
+        } else if (length < 0x100) {
+            buffer[position++] = (byte) 0xd9;
+            buffer[position++] = (byte) length;
+        } else if (length < 0x10000) {
+            buffer[position++] = (byte) 0xda;
+            putShort(length);
+        } else {
+            buffer[position++] = (byte) 0xdb;
+            putInt(length);
+        }
+    }
+
+    void writeBinary(byte[] value, int offset, int length) {
+        writeBinaryHeader(length);
+        writeRaw(value, offset, length);
+    }
+
+    void writeBinaryHeader(int length) {
+        ensure(5);
+        if (length < 0x100) {
+            buffer[position++] = (byte) 0xc4;
+            buffer[position++] = (byte) length;
+        } else if (length < 0x10000) {
+            buffer[position++] = (byte) 0xc5;
+            putShort(length);
+        } else {
+            buffer[position++] = (byte) 0xc6;
+            putInt(length);
+        }
+    }
+
+    void writeArrayHeader(int size) {
+        ensure(5);
+        if (size < 16) {
+            buffer[position++] = (byte) (0x90 | size);
+        } else if (size < 0x10000) {
+            buffer[position++] = (byte) 0xdc;
+            putShort(size);
+        } else {
+            buffer[position++] = (byte) 0xdd;
+            putInt(size);
+        }
+    }
+
+    void writeMapHeader(int size) {
+        ensure(5);
+        if (size < 16) {
+            buffer[position++] = (byte) (0x80 | size);
+        } else if (size < 0x10000) {
+            buffer[position++] = (byte) 0xde;
+            putShort(size);
+        } else {
+            buffer[position++] = (byte) 0xdf;
+            putInt(size);
+        }
+    }
+
+    /**
+     * Starts a map whose size is not known yet: writes a map32 header to be completed by {@link #patchMapSize}.
+     *
+     * @return the offset of the header
+     */
+    int writeMapHeaderPlaceholder() {
+        ensure(5);
+        final int offset = position;
+        buffer[position++] = (byte) 0xdf;
+        position += 4;
+        return offset;
+    }
+
+    void patchMapSize(int offset, int size) {
+        buffer[offset + 1] = (byte) (size >> 24);
+        buffer[offset + 2] = (byte) (size >> 16);
+        buffer[offset + 3] = (byte) (size >> 8);
+        buffer[offset + 4] = (byte) size;
+    }
+
+    /**
+     * Writes bytes that are known to be valid UTF-8 as a str, without decoding them.
+     */
+    void writeUtf8(byte[] value, int offset, int length) {
+        writeStringHeader(length);
+        writeRaw(value, offset, length);
+    }
+
+    /**
+     * Whether {@code value} is well-formed UTF-8, by the same rules the JDK decoder applies.
+     */
+    static boolean isValidUtf8(byte[] value, int offset, int length) {
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            final int b = value[i++];
+            if (b >= 0) {
+                continue;
+            }
+            final int lead = b & 0xff;
+            final int continuations;
+            int min = 0x80;
+            int max = 0xbf;
+            if (lead >= 0xc2 && lead <= 0xdf) {
+                continuations = 1;
+            } else if (lead >= 0xe0 && lead <= 0xef) {
+                continuations = 2;
+                if (lead == 0xe0) {
+                    min = 0xa0;
+                } else if (lead == 0xed) {
+                    max = 0x9f;
+                }
+            } else if (lead >= 0xf0 && lead <= 0xf4) {
+                continuations = 3;
+                if (lead == 0xf0) {
+                    min = 0x90;
+                } else if (lead == 0xf4) {
+                    max = 0x8f;
+                }
+            } else {
+                return false;
+            }
+            if (i + continuations > end) {
+                return false;
+            }
+            final int second = value[i++] & 0xff;
+            if (second < min || second > max) {
+                return false;
+            }
+            for (int k = 1; k < continuations; k++) {
+                if ((value[i++] & 0xc0) != 0x80) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The length of the longest prefix of {@code value[0, length)} that does not end inside a multi-byte
+     * UTF-8 sequence, for decoding bodies that were cut off.
+     */
+    static int completeUtf8Length(byte[] value, int length) {
+        for (int i = length - 1; i >= 0 && i >= length - 4; i--) {
+            final int b = value[i] & 0xff;
+            if (b < 0x80) {
+                return length;
+            }
+            if (b >= 0xc0) {
+                final int sequence = b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : 2;
+                return length - i >= sequence ? length : i;
+            }
+        }
+        return length;
+    }
+
+    void writeRaw(byte[] value, int offset, int length) {
+        ensure(length);
+        System.arraycopy(value, offset, buffer, position, length);
+        position += length;
+    }
+
+    /**
+     * Writes any value FluentLogger accepts in an event map; unknown types are written as their
+     * {@code toString()}.
+     */
+    void writeValue(Object value) {
+        if (value == null) {
+            writeNil();
+        } else if (value instanceof CharSequence) {
+            writeString((CharSequence) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+                || value instanceof Byte) {
+            writeLong(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            writeBoolean((Boolean) value);
+        } else if (value instanceof byte[]) {
+            final byte[] bytes = (byte[]) value;
+            writeBinary(bytes, 0, bytes.length);
+        } else if (value instanceof Map) {
+            final Map<?, ?> map = (Map<?, ?>) value;
+            writeMapHeader(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(String.valueOf(entry.getKey()));
+                writeValue(entry.getValue());
+            }
+        } else if (value instanceof Collection) {
+            final Collection<?> collection = (Collection<?>) value;
+            writeArrayHeader(collection.size());
+            for (Object element : collection) {
+                writeValue(element);
+            }
+        } else if (value instanceof Object[]) {
+            final Object[] array = (Object[]) value;
+            writeArrayHeader(array.length);
+            for (Object element : array) {
+                writeValue(element);
+            }
+        } else if (value instanceof Enum) {
+            writeString(((Enum<?>) value).name());
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    private void putShort(int value) {
+        buffer[position++] = (byte) (value >> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    private void putInt(int value) {
+        buffer[position++] = (byte) (value >> 24);
+        buffer[position++] = (byte) (value >> 16);
+        buffer[position++] = (byte) (value >> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    private void putLong(long value) {
+        putInt((int) (value >> 32));
+        putInt((int) value);
+    }
+
+    private void ensure(int extra) {
+        if (position + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, position + extra));
+        }
+    }
+}
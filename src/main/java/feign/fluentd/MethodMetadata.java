@@ -0,0 +1,54 @@
+package feign.fluentd;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Client and method name of one Feign config key, parsed once: both as the immutable {@code meta} map and
+ * as the same entry pre-encoded in MessagePack.
+ */
+final class MethodMetadata {
+
+    final String client;
+    final String method;
+    private final Map<String, Object> map;
+    private final byte[] encodedEntry;
+
+    private MethodMetadata(String client, String method) {
+        this.client = client;
+        this.method = method;
+        final Map<String, Object> metaMap = new HashMap<>();
+        if (client != null) {
+            metaMap.put("client", client);
+        }
+        metaMap.put("method", method);
+        this.map = Collections.unmodifiableMap(metaMap);
+
+        final MessagePackWriter writer = new MessagePackWriter(64);
+        writer.writeString("meta");
+        writer.writeValue(map);
+        this.encodedEntry = Arrays.copyOf(writer.buffer(), writer.size());
+    }
+
+    /**
+     * Parses {@code Client#method(Args)} the way {@link FluentdLogger} always did.
+     */
+    static MethodMetadata parse(String configKey) {
+        final String[] clientAndMethod = configKey.substring(0, configKey.indexOf('(')).split("#");
+        return clientAndMethod.length > 1 ? new MethodMetadata(clientAndMethod[0], clientAndMethod[1])
+                : new MethodMetadata(null, clientAndMethod[0]);
+    }
+
+    Map<String, Object> asMap() {
+        return map;
+    }
+
+    /**
+     * The {@code "meta"} key followed by its map, ready to be copied into a record.
+     */
+    byte[] encodedEntry() {
+        return encodedEntry;
+    }
+}
@@ -0,0 +1,50 @@
+package feign.fluentd;
+
+/**
+ * Callbacks from the logging pipeline, for wiring it into whatever metrics library the application uses.
+ * <p>
+ * {@link #onEnqueued}, {@link #onDropped} and {@link #onEncoded} run on Feign's calling threads and must be
+ * cheap; the others run on the sender thread of {@link SingleThreadWrapper}.
+ */
+public interface MetricsListener {
+
+    /**
+     * An event was offered to the queue, accepted or not, taking {@code nanos}.
+     */
+    default void onEnqueued(String tag, long nanos) {
+    }
+
+    /**
+     * An event was dropped under {@code policy}, or with {@link OverflowPolicy#DROP_NEWEST} after close.
+     */
+    default void onDropped(OverflowPolicy policy) {
+    }
+
+    /**
+     * {@link FluentdLogger} spent {@code nanos} building one event on the calling thread: encoding it too with
+     * {@link FluentdLogger#withMessagePackEncoding}, or else as maps, which the sender thread encodes when it
+     * adds them to a batch. Events logged straight to the wrapper are not reported.
+     */
+    default void onEncoded(long nanos) {
+    }
+
+    /**
+     * {@code events} of {@code tag} were sent as {@code bytes} (0 when the real logger does not tell).
+     */
+    default void onSent(String tag, int events, long bytes, long nanos) {
+    }
+
+    /**
+     * {@code events} of {@code tag} could not be sent; {@code error} is null when the real logger only said
+     * no.
+     */
+    default void onSendFailed(String tag, int events, Exception error) {
+    }
+
+    /**
+     * {@code events} of {@code tag} could not be sent now and were written to the disk spill as {@code bytes},
+     * to be sent (and reported to {@link #onSent}) once Fluentd takes them again.
+     */
+    default void onSpilled(String tag, int events, long bytes) {
+    }
+}
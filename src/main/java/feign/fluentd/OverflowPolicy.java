@@ -0,0 +1,24 @@
+package feign.fluentd;
+
+/**
+ * What {@link SingleThreadWrapper} does with an event when its bounded queue is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Reject the event being logged, keeping everything already queued.
+     */
+    DROP_NEWEST,
+    /**
+     * Evict the oldest queued event to make room for the one being logged.
+     */
+    DROP_OLDEST,
+    /**
+     * Wait up to the configured timeout for the sender to free a slot, then drop the event.
+     */
+    BLOCK,
+    /**
+     * Once the queue passes its sampling threshold, keep only one event in every {@code sampleRate};
+     * drop the event being logged if the queue is full regardless.
+     */
+    SAMPLE
+}
@@ -0,0 +1,227 @@
+package feign.fluentd;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static feign.Util.UTF_8;
+import static feign.Util.decodeOrDefault;
+
+/**
+ * Writes the event straight into a MessagePack buffer as {@code {<log type>: {fields...}}}, the same layout
+ * {@code FluentLogger} produces from the maps of {@link MapEventRecord}.
+ * <p>
+ * Instances are pooled: {@link #acquire} one per event and {@link #release} it once the bytes were handed
+ * over, so that steady-state logging allocates nothing here.
+ */
+final class PackedEventRecord implements EventRecord {
+    private static final int MAX_DEPTH = 4;
+    private static final int RETAINED_CAPACITY = 64 * 1024;
+    private static final AtomicReferenceArray<PackedEventRecord> POOL =
+            new AtomicReferenceArray<>(poolSize(Runtime.getRuntime().availableProcessors()));
+
+    private final MessagePackWriter writer = new MessagePackWriter(1024);
+    private final UrlSplitter urlSplitter = new UrlSplitter();
+    private final int[] mapOffsets = new int[MAX_DEPTH];
+    private final int[] mapSizes = new int[MAX_DEPTH];
+    private int depth;
+    long startNanos;
+
+    static PackedEventRecord acquire(LogType type) {
+        final int mask = POOL.length() - 1;
+        final int home = (int) Thread.currentThread().getId();
+        PackedEventRecord record = POOL.getAndSet(home & mask, null);
+        if (record == null) {
+            record = POOL.getAndSet((home + 1) & mask, null);
+        }
+        if (record == null) {
+            record = new PackedEventRecord();
+        }
+        record.start(type);
+        return record;
+    }
+
+    static void release(PackedEventRecord record) {
+        if (record.writer.buffer().length > RETAINED_CAPACITY) {
+            return;
+        }
+        final int mask = POOL.length() - 1;
+        final int home = (int) Thread.currentThread().getId();
+        if (!POOL.compareAndSet(home & mask, null, record)) {
+            POOL.compareAndSet((home + 1) & mask, null, record);
+        }
+    }
+
+    private static int poolSize(int processors) {
+        return Integer.highestOneBit(Math.max(processors, 1) * 4 - 1) << 1;
+    }
+
+    private void start(LogType type) {
+        startNanos = System.nanoTime();
+        writer.reset();
+        depth = 0;
+        writer.writeMapHeader(1);
+        writer.writeString(type.name());
+        openMap();
+    }
+
+    /**
+     * Closes every map left open; the record is complete afterwards.
+     */
+    MessagePackWriter finish() {
+        while (depth > 0) {
+            endMap();
+        }
+        return writer;
+    }
+
+    private void key(String key) {
+        mapSizes[depth - 1]++;
+        writer.writeString(key);
+    }
+
+    private void openMap() {
+        mapOffsets[depth] = writer.writeMapHeaderPlaceholder();
+        mapSizes[depth] = 0;
+        depth++;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        key(key);
+        if (value == null) {
+            writer.writeNil();
+        } else {
+            writer.writeString(value);
+        }
+    }
+
+    @Override
+    public void put(String key, String value, int start, int end) {
+        key(key);
+        if (start < 0) {
+            writer.writeNil();
+        } else {
+            writer.writeString(value, start, end);
+        }
+    }
+
+    /**
+     * Copies an entry (key and value) that was encoded ahead of time.
+     */
+    void putEncoded(byte[] entry) {
+        mapSizes[depth - 1]++;
+        writer.writeRaw(entry, 0, entry.length);
+    }
+
+    @Override
+    public void put(String key, int value) {
+        key(key);
+        writer.writeLong(value);
+    }
+
+    @Override
+    public void put(String key, long value) {
+        key(key);
+        writer.writeLong(value);
+    }
+
+    @Override
+    public void put(String key, boolean value) {
+        key(key);
+        writer.writeBoolean(value);
+    }
+
+    @Override
+    public boolean putUri(String key, String url) {
+        if (!urlSplitter.split(url)) {
+            return false;
+        }
+        urlSplitter.writeTo(this, key);
+        return true;
+    }
+
+    @Override
+    public void putHeaders(String key, Map<String, Collection<String>> headers, HeaderFilter filter) {
+        key(key);
+        if (filter.isUnfiltered()) {
+            writer.writeMapHeader(headers.size());
+            for (Map.Entry<String, Collection<String>> header : headers.entrySet()) {
+                writer.writeString(header.getKey());
+                putHeaderValues(header.getValue(), filter, null);
+            }
+            return;
+        }
+        final int offset = writer.writeMapHeaderPlaceholder();
+        int kept = 0;
+        for (Map.Entry<String, Collection<String>> header : headers.entrySet()) {
+            final HeaderFilter.Rule rule = filter.ruleOf(header.getKey());
+            if (rule.action == HeaderFilter.Action.DENY) {
+                continue;
+            }
+            if (rule.encodedName != null) {
+                writer.writeRaw(rule.encodedName, 0, rule.encodedName.length);
+            } else {
+                writer.writeString(header.getKey());
+            }
+            putHeaderValues(header.getValue(), filter, rule);
+            kept++;
+        }
+        writer.patchMapSize(offset, kept);
+    }
+
+    private void putHeaderValues(Collection<String> values, HeaderFilter filter, HeaderFilter.Rule rule) {
+        writer.writeArrayHeader(values.size());
+        for (String value : values) {
+            if (value == null) {
+                writer.writeNil();
+            } else if (rule == null || rule.action == HeaderFilter.Action.KEEP) {
+                writer.writeString(value);
+            } else {
+                writer.writeString(filter.value(rule, value));
+            }
+        }
+    }
+
+    @Override
+    public void putText(String key, byte[] data, int length, Charset charset) {
+        key(key);
+        if (UTF_8.equals(charset) && MessagePackWriter.isValidUtf8(data, 0, length)) {
+            writer.writeUtf8(data, 0, length);
+        } else {
+            writer.writeString(new String(data, 0, length, charset));
+        }
+    }
+
+    @Override
+    public void putTextOrDefault(String key, byte[] data, int length, Charset charset, String defaultValue) {
+        key(key);
+        if (!UTF_8.equals(charset)) {
+            writer.writeString(decodeOrDefault(Arrays.copyOf(data, length), charset, defaultValue));
+        } else if (MessagePackWriter.isValidUtf8(data, 0, length)) {
+            writer.writeUtf8(data, 0, length);
+        } else {
+            writer.writeString(defaultValue);
+        }
+    }
+
+    @Override
+    public void putBinary(String key, byte[] data, int length) {
+        key(key);
+        writer.writeBinary(data, 0, length);
+    }
+
+    @Override
+    public void beginMap(String key) {
+        key(key);
+        openMap();
+    }
+
+    @Override
+    public void endMap() {
+        depth--;
+        writer.patchMapSize(mapOffsets[depth], mapSizes[depth]);
+    }
+}
@@ -1,16 +1,23 @@
 package feign.fluentd;
 
+import feign.Request;
+import feign.Response;
 import org.fluentd.logger.FluentLogger;
 
+import java.io.IOException;
 import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.Map;
-
-import static java.util.stream.Collectors.toMap;
+import java.util.concurrent.TimeUnit;
 
 public class SerializedFluentdLogger extends FluentdLogger {
 
-    private ThreadLocal<Map<LogType, Map<String, Object>>> logQueue = ThreadLocal.withInitial(() -> new HashMap<>(4));
+    private static final int DEFAULT_MAX_PENDING = 10_000;
+    private static final long DEFAULT_TIMEOUT_MINUTES = 2;
+
+    private CorrelationStore calls =
+            new CorrelationStore(DEFAULT_MAX_PENDING, TimeUnit.MINUTES.toNanos(DEFAULT_TIMEOUT_MINUTES), this::logOrphan);
+    private TailSampling sampling;
 
     public SerializedFluentdLogger(FluentLogger logger) {
         super(logger);
@@ -20,31 +27,159 @@ public class SerializedFluentdLogger extends FluentdLogger {
         super(logger, tagPrefix);
     }
 
+    /**
+     * Ignored: the request, retry and response events of a call are merged as maps, and sent as such.
+     */
     @Override
-    protected void doLog(String configKey, LogType paramPrefix, Map<String, Object> paramValues) {
-        final Map<LogType, Map<String, Object>> queueMap = logQueue.get();
-        if (LogType.retry.equals(paramPrefix)) {
-            final Map<String, Object> retryLogMap = queueMap.getOrDefault(LogType.retry, new HashMap<>(0));
-            retryLogMap.put(String.valueOf(retryLogMap.size()), LocalDateTime.now());
-            queueMap.put(LogType.retry, retryLogMap);
+    public FluentdLogger withMessagePackEncoding() {
+        return this;
+    }
+
+    /**
+     * Bounds the calls waiting for their final event (10000 by default) and how long they wait (2 minutes by
+     * default). Calls evicted for either reason are logged alone, as {@code dirty_context}.
+     */
+    public SerializedFluentdLogger withCorrelation(int maxPending, long timeout, TimeUnit unit) {
+        this.calls = new CorrelationStore(maxPending, unit.toNanos(timeout), this::logOrphan);
+        return this;
+    }
+
+    /**
+     * Logs only the calls {@code sampling} keeps, deciding once the response or I/O exception is in. Until
+     * then request bodies are not decoded, and the responses of dropped calls are not read at all.
+     */
+    public SerializedFluentdLogger withTailSampling(TailSampling sampling) {
+        this.sampling = sampling;
+        return this;
+    }
+
+    @Override
+    protected void logRequest(String configKey, Level logLevel, Request request) {
+        if (sampling == null || logLevel != Level.FULL || request.body() == null) {
+            super.logRequest(configKey, logLevel, request);
             return;
-        } else if (LogType.request.equals(paramPrefix) && queueMap.size() > 0) {
-            //context protection
-            final Map<String, Object> dirtyContext = toStringMap(queueMap);
-            queueMap.clear();
-            queueMap.put(LogType.dirty_context, dirtyContext);
         }
+        super.logRequest(configKey, Level.HEADERS, request);
+        final CorrelationStore.Context context = calls.peek(request);
+        if (context != null) {
+            context.deferRequestBody();
+        }
+    }
+
+    @Override
+    protected Response logAndRebufferResponse(String configKey, Level logLevel, Response response,
+                                              long elapsedTime) throws IOException {
+        if (sampling != null) {
+            final CorrelationStore.Context context = calls.peek(response.request());
+            final boolean retried = context != null && context.get(LogType.retry) != null;
+            if (!sampling.keep(configKey, response.status(), elapsedTime, retried)) {
+                calls.close(configKey, response.request());
+                return response;
+            }
+        }
+        return super.logAndRebufferResponse(configKey, logLevel, response, elapsedTime);
+    }
+
+    /**
+     * A call is logged as one event, so it is rate limited as a whole, at its response or I/O exception.
+     */
+    @Override
+    boolean admits(String configKey, LogType type, Request request) {
+        if (!type.isFinalStep || super.admits(configKey, type, request)) {
+            return true;
+        }
+        closeCall(configKey, type, request);
+        return false;
+    }
+
+    /**
+     * Feign logs I/O exceptions on the calling thread without their request, so they end the call last opened
+     * there; other events only end the call of their own request.
+     */
+    private CorrelationStore.Context closeCall(String configKey, LogType type, Request request) {
+        return type == LogType.io_exception && request == null
+                ? calls.closeOnThread(configKey) : calls.close(configKey, request);
+    }
+
+    private CorrelationStore.Context peekCall(LogType type, Request request) {
+        return type == LogType.io_exception && request == null ? calls.peekOnThread() : calls.peek(request);
+    }
+
+    /**
+     * The final event of a call whose request was the circuit breaker's probe goes through as that probe, so
+     * that the merged send it leads to decides the breaker.
+     * <p>
+     * A call is logged whole or not at all: a call whose request the breaker denied is remembered, so that its
+     * final event is dropped too, and a call whose final event it denies is ended, like one the rate limiter
+     * drops, instead of expiring as {@code dirty_context}.
+     */
+    @Override
+    long acquireSink(String configKey, LogType type, Request request) {
+        if (type.isFinalStep) {
+            final CorrelationStore.Context context = peekCall(type, request);
+            if (context != null && context.sinkTicket == SinkCircuitBreaker.DENIED) {
+                closeCall(configKey, type, request);
+                return SinkCircuitBreaker.DENIED;
+            }
+            if (context != null && isSinkProbe(context.sinkTicket)) {
+                return context.sinkTicket;
+            }
+        }
+        final long ticket = super.acquireSink(configKey, type, request);
+        if (ticket == SinkCircuitBreaker.DENIED) {
+            if (LogType.request.equals(type)) {
+                calls.open(configKey, request).sinkTicket = SinkCircuitBreaker.DENIED;
+            } else if (type.isFinalStep) {
+                closeCall(configKey, type, request);
+            }
+        }
+        return ticket;
+    }
 
-        queueMap.put(paramPrefix, paramValues);
+    @Override
+    protected void doLog(String configKey, LogType paramPrefix, Map<String, Object> paramValues) {
+        doLog(configKey, paramPrefix, paramValues, null, SinkCircuitBreaker.UNTRACKED);
+    }
 
+    @Override
+    void doLog(String configKey, LogType paramPrefix, Map<String, Object> paramValues, Request request,
+               long ticket) {
+        if (LogType.retry.equals(paramPrefix)) {
+            calls.current(configKey).append(LogType.retry, LocalDateTime.now());
+            return;
+        } else if (LogType.request.equals(paramPrefix)) {
+            final CorrelationStore.Context context = calls.open(configKey, request);
+            context.put(paramPrefix, paramValues);
+            context.sinkTicket = ticket;
+            return;
+        }
+        final CorrelationStore.Context context = closeCall(configKey, paramPrefix, request);
+        context.put(paramPrefix, paramValues);
         if (paramPrefix.isFinalStep) {
-            queueMap.put(LogType.meta_data, constructMetaMap(configKey));
-            logger.log(tagPrefix, toStringMap(queueMap), System.currentTimeMillis() / 1000);
-            logQueue.remove();
+            final Map<String, Object> loggedRequest = context.get(LogType.request);
+            if (context.isRequestBodyDeferred() && loggedRequest != null) {
+                putRequestBody(new MapEventRecord(loggedRequest), bodyPolicy(configKey), context.request);
+            }
+            final Map<String, Object> merged = context.toStringMap();
+            merged.put(LogType.meta_data.name(), constructMetaMap(configKey));
+            final long start = System.nanoTime();
+            boolean sent = false;
+            try {
+                sent = logEvent(merged);
+            } finally {
+                recordSend(ticket, sent, start);
+            }
         }
     }
 
-    private Map<String, Object> toStringMap(Map<LogType, Map<String, Object>> queueMap) {
-        return queueMap.entrySet().stream().collect(toMap(e -> e.getKey().name(), Map.Entry::getValue));
+    private void logOrphan(CorrelationStore.Context context) {
+        if (context.sinkTicket == SinkCircuitBreaker.DENIED) {
+            // the breaker denied its request, so nothing of the call was kept
+            return;
+        }
+        final Map<String, Object> orphan = new HashMap<>(4);
+        orphan.put(LogType.dirty_context.name(), context.toStringMap());
+        orphan.put(LogType.meta_data.name(), constructMetaMap(context.configKey));
+        logEvent(orphan);
     }
 }
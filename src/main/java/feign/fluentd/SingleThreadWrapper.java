@@ -2,17 +2,123 @@ package feign.fluentd;
 
 import org.fluentd.logger.FluentLogger;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Hands events over to a single background thread that owns the (not thread-safe) real logger.
+ * <p>
+ * Events wait in a bounded, lock-free queue; what happens once it fills up is decided by the
+ * {@link OverflowPolicy}. Every event that never reaches the real logger is counted.
+ * <p>
+ * Built around a {@link ForwardSender} instead of a {@link FluentLogger}, the sender thread drains up to a
+ * batch worth of events, or waits up to the linger time, and writes them as one Forward/PackedForward
+ * message per tag.
+ * <p>
+ * Such a wrapper can also spill to disk: batches that cannot be sent, or that are drained while the queue is
+ * more than three quarters full, go to memory-mapped files instead of being lost, and are sent in order once
+ * Fluentd takes them again, by this process or the next one using the same directory.
+ * <p>
+ * With a {@link ForwardSender#withAcks acknowledging} sender, {@link #flush(long, TimeUnit)} and
+ * {@link #close(long, TimeUnit)} also wait for Fluentd to acknowledge what was sent, and close counts the
+ * events still unacknowledged at its deadline as send failures.
+ * <p>
+ * With {@link Builder#lanes}, I/O exceptions and server errors get a queue of their own, as do events with
+ * large bodies, so that a burst of bodies does not hold back the errors; see {@link EventLanes}.
+ */
 public final class SingleThreadWrapper extends FluentLogger {
-    private final ExecutorService executorService;
+    static final int DEFAULT_CAPACITY = 8192;
+    static final int DEFAULT_BATCH_EVENTS = 256;
+    private static final int DRAIN_LIMIT = 256;
+    private static final int REPLAY_BATCHES = 16;
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long DEFAULT_CLOSE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long ABORT_GRACE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
     private final FluentLogger realLogger;
+    private final ForwardBatcher batcher;
+    private final EventLanes lanes;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final int sampleRate;
+    private final double samplingThreshold;
+    private final int spillThreshold;
+    private final Thread senderThread;
+    private volatile boolean running = true;
+    private volatile boolean draining;
+    private volatile boolean flushRequested;
+    private volatile boolean parked;
+    private volatile int pendingInBatch;
+    private volatile int inFlight;
+    private volatile long closeDeadline;
+    private final AtomicBoolean holdsClock = new AtomicBoolean(true);
+    private final List<Runnable> closeHooks = new CopyOnWriteArrayList<>();
+
+    private final LoggerMetrics metrics;
 
     public SingleThreadWrapper(FluentLogger realLogger) {
-        this.executorService = Executors.newSingleThreadExecutor();
-        this.realLogger = realLogger;
+        this(builder(realLogger));
+    }
+
+    private SingleThreadWrapper(Builder builder) {
+        this.realLogger = builder.realLogger;
+        this.lanes = builder.urgentCapacity == 0 ? new EventLanes(builder.capacity) : new EventLanes(
+                builder.urgentCapacity, builder.capacity, builder.bulkCapacity, builder.bulkBytes, builder.laneWeights);
+        this.metrics = new LoggerMetrics(lanes::size, builder.listener);
+        this.batcher = builder.sender == null ? null : new ForwardBatcher(builder.sender, builder.batchEvents,
+                builder.lingerNanos, metrics, spill(builder));
+        this.spillThreshold = builder.spillDirectory == null ? lanes.capacity() : lanes.capacity() / 4 * 3;
+        if (batcher != null) {
+            metrics.spillBacklog(batcher::spillBacklog);
+        }
+        this.overflowPolicy = builder.overflowPolicy;
+        this.blockTimeoutNanos = builder.blockTimeoutNanos;
+        this.sampleRate = builder.sampleRate;
+        this.samplingThreshold = builder.samplingThreshold;
+        this.senderThread = new Thread(this::drainLoop, "feign-fluentd-sender");
+        this.senderThread.setDaemon(true);
+        if (builder.mbeanName != null) {
+            metrics.register(builder.mbeanName);
+        }
+        CachedClock.acquire();
+        this.senderThread.start();
+    }
+
+    private static DiskSpill spill(Builder builder) {
+        if (builder.spillDirectory == null) {
+            return null;
+        }
+        try {
+            return new DiskSpill(builder.spillDirectory, builder.spillMaxBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static Builder builder(FluentLogger realLogger) {
+        assert realLogger != null;
+        return new Builder(realLogger, null);
+    }
+
+    public static Builder builder(ForwardSender sender) {
+        return builder((ForwardTransport) sender);
+    }
+
+    /**
+     * Built around a {@link ForwardCluster}, batches are spread over several Fluentd nodes.
+     */
+    public static Builder builder(ForwardTransport sender) {
+        assert sender != null;
+        return new Builder(null, sender);
     }
 
     @Override
@@ -30,15 +136,522 @@ public final class SingleThreadWrapper extends FluentLogger {
         return super.log(tag, data);
     }
 
+    /**
+     * @param timestamp seconds since the epoch, or 0 for now
+     */
     @Override
     public boolean log(String tag, Map<String, Object> data, long timestamp) {
-        this.executorService.submit(() -> {
-            try {
-                realLogger.log(tag, data, timestamp);
-            } catch (Exception e) {
-                e.printStackTrace();
+        return enqueue(tag, lanes.queue(lanes.laneOf(data)), data, null,
+                timestamp == 0 ? CachedClock.currentTimeMillis() : timestamp * 1000);
+    }
+
+    /**
+     * Like {@link #log(String, Map, long)}, with the time in milliseconds, as sent with
+     * {@link ForwardSender#withEventTime}.
+     */
+    boolean logMillis(String tag, Map<String, Object> data, long epochMillis) {
+        return enqueue(tag, lanes.queue(lanes.laneOf(data)), data, null, epochMillis);
+    }
+
+    /**
+     * Queues a record already encoded by {@link FluentdLogger}; only possible with a {@link ForwardSender}.
+     * The bytes are copied, so {@code record} can be reused as soon as this returns.
+     *
+     * @param urgent whether the record is an I/O exception or a server error, for {@link Builder#lanes}
+     */
+    boolean log(String tag, MessagePackWriter record, long epochMillis, boolean urgent) {
+        return enqueue(tag, lanes.queue(lanes.laneOf(record, urgent)), null, record, epochMillis);
+    }
+
+    boolean acceptsEncoded() {
+        return batcher != null;
+    }
+
+    private boolean enqueue(String tag, BoundedEventQueue queue, Map<String, Object> data,
+                            MessagePackWriter record, long epochMillis) {
+        final long start = System.nanoTime();
+        final boolean accepted = offer(tag, queue, data, record, epochMillis);
+        if (accepted && parked) {
+            LockSupport.unpark(senderThread);
+        }
+        metrics.onEnqueued(tag, System.nanoTime() - start);
+        return accepted;
+    }
+
+    private boolean offer(String tag, BoundedEventQueue queue, Map<String, Object> data, MessagePackWriter record,
+                          long epochMillis) {
+        if (!running) {
+            metrics.onDropped(OverflowPolicy.DROP_NEWEST);
+            return false;
+        }
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!queue.offer(tag, data, record, epochMillis)) {
+                    if (queue.poll(null)) {
+                        metrics.onDropped(OverflowPolicy.DROP_OLDEST);
+                    }
+                }
+                return true;
+            case BLOCK:
+                return offerOrWait(tag, queue, data, record, epochMillis);
+            case SAMPLE:
+                if (queue.size() >= queue.capacity() * samplingThreshold
+                        && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+                    metrics.onDropped(OverflowPolicy.SAMPLE);
+                    return false;
+                }
+                // a sampled-in event still needs a free slot
+                return offerOrDrop(tag, queue, data, record, epochMillis);
+            case DROP_NEWEST:
+            default:
+                return offerOrDrop(tag, queue, data, record, epochMillis);
+        }
+    }
+
+    private boolean offerOrDrop(String tag, BoundedEventQueue queue, Map<String, Object> data,
+                                MessagePackWriter record, long epochMillis) {
+        if (queue.offer(tag, data, record, epochMillis)) {
+            return true;
+        }
+        metrics.onDropped(OverflowPolicy.DROP_NEWEST);
+        return false;
+    }
+
+    private boolean offerOrWait(String tag, BoundedEventQueue queue, Map<String, Object> data,
+                                MessagePackWriter record, long epochMillis) {
+        if (queue.offer(tag, data, record, epochMillis)) {
+            return true;
+        }
+        final long deadline = System.nanoTime() + blockTimeoutNanos;
+        long parkNanos = 1_000;
+        while (System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(parkNanos);
+            if (queue.offer(tag, data, record, epochMillis)) {
+                return true;
+            }
+            parkNanos = Math.min(parkNanos << 1, MAX_IDLE_NANOS);
+        }
+        metrics.onDropped(OverflowPolicy.BLOCK);
+        return false;
+    }
+
+    private void drainLoop() {
+        if (batcher != null) {
+            batchLoop();
+            return;
+        }
+        final BoundedEventQueue.EventHandler handler = new BoundedEventQueue.EventHandler() {
+            @Override
+            public void onEvent(String tag, Map<String, Object> data, long epochMillis) {
+                send(tag, data, epochMillis);
+            }
+
+            @Override
+            public void onEncodedEvent(String tag, byte[] record, int length, long epochMillis) {
+                // FluentLogger only takes maps, and FluentdLogger never encodes for it
+                metrics.onSendFailed(tag, 1, null);
+            }
+        };
+        long idleNanos = 0;
+        while (running) {
+            draining = true;
+            final int drained = lanes.drain(handler, DRAIN_LIMIT);
+            draining = false;
+            if (drained > 0) {
+                idleNanos = 0;
+            } else {
+                idleNanos = nextIdle(idleNanos);
+                park(idleNanos < MAX_IDLE_NANOS ? idleNanos : MAX_PARK_NANOS);
+            }
+        }
+        while (System.nanoTime() - closeDeadline < 0 && lanes.drain(handler, DRAIN_LIMIT) > 0) {
+            // deliver what was accepted before close
+        }
+        failQueued();
+        // only this thread uses the real logger, so only it may close it, even after the close deadline
+        realLogger.close();
+    }
+
+    private void batchLoop() {
+        long idleNanos = 0;
+        while (running) {
+            draining = true;
+            final int drained = lanes.drain(batcher, batcher.room());
+            pendingInBatch = batcher.pending();
+            final long now = System.nanoTime();
+            // urgent events do not wait for the linger time
+            if (batcher.isDue(now) || lanes.tookUrgent() || (flushRequested && lanes.size() == 0)) {
+                flushBatches();
+            }
+            final int replayed = lanes.size() > spillThreshold ? 0 : batcher.replay(REPLAY_BATCHES, now);
+            batcher.service();
+            inFlight = batcher.inFlight();
+            draining = false;
+            if (drained > 0 || replayed > 0) {
+                idleNanos = 0;
+            } else {
+                idleNanos = nextIdle(idleNanos);
+                final long workIn = batcher.idleNanos(now, MAX_IDLE_NANOS, MAX_PARK_NANOS);
+                park(idleNanos < MAX_IDLE_NANOS ? Math.min(idleNanos, workIn) : workIn);
+            }
+        }
+        batcher.closeBy(closeDeadline);
+        do {
+            flushBatches();
+        } while (System.nanoTime() - closeDeadline < 0 && lanes.drain(batcher, batcher.room()) > 0);
+        batcher.awaitAcks(closeDeadline);
+        failQueued();
+        inFlight = 0;
+        batcher.close();
+    }
+
+    /**
+     * Counts the events the close deadline left in the queue as failed; called by the sender thread, or by the
+     * closing thread if the sender thread is stuck.
+     */
+    private void failQueued() {
+        final IOException e = new IOException("closed before it was sent");
+        lanes.drainAll(new BoundedEventQueue.EventHandler() {
+            @Override
+            public void onEvent(String tag, Map<String, Object> data, long epochMillis) {
+                metrics.onSendFailed(tag, 1, e);
+            }
+
+            @Override
+            public void onEncodedEvent(String tag, byte[] record, int length, long epochMillis) {
+                metrics.onSendFailed(tag, 1, e);
             }
         });
-        return true;
+    }
+
+    private void flushBatches() {
+        if (batcher.pending() > 0) {
+            batcher.flush(lanes.size() > spillThreshold);
+        }
+        pendingInBatch = 0;
+        flushRequested = false;
+    }
+
+    /**
+     * Parks the sender thread for {@code nanos}, and beyond the idle backoff lets the next queued event, flush or
+     * close wake it up, so that an idle wrapper does not wake up every millisecond.
+     */
+    private void park(long nanos) {
+        if (nanos <= MAX_IDLE_NANOS) {
+            LockSupport.parkNanos(nanos);
+            return;
+        }
+        parked = true;
+        // an event queued before parked was set is seen here; a flush or close unparks it in any case
+        if (lanes.size() == 0 && running) {
+            LockSupport.parkNanos(this, nanos);
+        }
+        parked = false;
+    }
+
+    private static long nextIdle(long idleNanos) {
+        return idleNanos == 0 ? 1_000 : Math.min(idleNanos << 1, MAX_IDLE_NANOS);
+    }
+
+    private void send(String tag, Map<String, Object> data, long epochMillis) {
+        final long start = System.nanoTime();
+        try {
+            if (realLogger.log(tag, data, epochMillis / 1000)) {
+                metrics.onSent(tag, 1, 0, System.nanoTime() - start);
+            } else {
+                metrics.onSendFailed(tag, 1, null);
+            }
+        } catch (Exception e) {
+            metrics.onSendFailed(tag, 1, e);
+        }
+    }
+
+    /**
+     * Number of events currently waiting for the sender thread.
+     */
+    public int queueDepth() {
+        return lanes.size();
+    }
+
+    /**
+     * Total number of events passed to {@code log} that were turned away or evicted under the
+     * {@link OverflowPolicy}, or logged after close, and so never handed to the real logger.
+     */
+    public long droppedEvents() {
+        return metrics.getDroppedEvents();
+    }
+
+    public long droppedNewest() {
+        return metrics.droppedEvents(OverflowPolicy.DROP_NEWEST);
+    }
+
+    public long droppedOldest() {
+        return metrics.droppedEvents(OverflowPolicy.DROP_OLDEST);
+    }
+
+    public long droppedOnTimeout() {
+        return metrics.droppedEvents(OverflowPolicy.BLOCK);
+    }
+
+    public long droppedBySampling() {
+        return metrics.droppedEvents(OverflowPolicy.SAMPLE);
+    }
+
+    public long sendFailures() {
+        return metrics.getSendFailures();
+    }
+
+    public LoggerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Waits until every event queued so far has been handed to the real logger, sent or spilled, then flushes
+     * it.
+     */
+    @Override
+    public void flush() {
+        flushRequested = true;
+        LockSupport.unpark(senderThread);
+        while ((lanes.size() > 0 || draining || pendingInBatch > 0) && running) {
+            LockSupport.parkNanos(MAX_IDLE_NANOS);
+        }
+        if (realLogger != null) {
+            realLogger.flush();
+        }
+    }
+
+    /**
+     * Like {@link #flush()}, but gives up after {@code timeout}, and with acks also waits for Fluentd to
+     * acknowledge everything sent.
+     *
+     * @return whether everything queued so far was delivered, spilled or failed in time
+     */
+    public boolean flush(long timeout, TimeUnit unit) {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        flushRequested = true;
+        LockSupport.unpark(senderThread);
+        boolean idle;
+        while (!(idle = lanes.size() == 0 && !draining && pendingInBatch == 0 && inFlight == 0)
+                && running && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(MAX_IDLE_NANOS);
+        }
+        if (realLogger != null) {
+            realLogger.flush();
+        }
+        return idle;
+    }
+
+    /**
+     * Closes with a deadline of 5 seconds for the acks of a {@link ForwardSender#withAcks} sender.
+     */
+    @Override
+    public void close() {
+        close(DEFAULT_CLOSE_TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sends what is queued, waits until {@code timeout} for the acks of what was sent, counts the events still
+     * queued or unacknowledged then as send failures, and closes the real logger.
+     * <p>
+     * Returns shortly after {@code timeout} even if Fluentd stalls: a sender thread still writing or waiting
+     * then has its connection closed under it, or is interrupted in a real logger. The real logger is closed
+     * by the sender thread once it returned from it, so possibly after this returns. The last wrapper closed
+     * also stops the {@link CachedClock}.
+     */
+    public void close(long timeout, TimeUnit unit) {
+        if (running) {
+            closeHooks.forEach(Runnable::run);
+        }
+        closeDeadline = System.nanoTime() + unit.toNanos(timeout);
+        running = false;
+        LockSupport.unpark(senderThread);
+        if (!awaitSenderThread(closeDeadline)) {
+            if (batcher != null) {
+                batcher.abort();
+            } else {
+                senderThread.interrupt();
+            }
+            awaitSenderThread(System.nanoTime() + ABORT_GRACE_NANOS);
+        }
+        if (senderThread.isAlive()) {
+            failQueued();
+        }
+        metrics.unregister();
+        if (holdsClock.compareAndSet(true, false)) {
+            CachedClock.release();
+        }
+    }
+
+    /**
+     * Runs {@code hook} when close starts, while events are still taken, so that it can log a last one.
+     */
+    void beforeClose(Runnable hook) {
+        closeHooks.add(hook);
+    }
+
+    /**
+     * @return whether the sender thread ended by {@code deadlineNanos}
+     */
+    private boolean awaitSenderThread(long deadlineNanos) {
+        try {
+            senderThread.join(Math.max(TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()), 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !senderThread.isAlive();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return realLogger != null ? realLogger.isConnected() : batcher.isConnected();
+    }
+
+    @Override
+    public String getName() {
+        return realLogger != null ? realLogger.getName() : batcher.toString();
+    }
+
+    public static final class Builder {
+        private final FluentLogger realLogger;
+        private final ForwardTransport sender;
+        private int batchEvents = DEFAULT_BATCH_EVENTS;
+        private long lingerNanos = TimeUnit.MILLISECONDS.toNanos(50);
+        private int capacity = DEFAULT_CAPACITY;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+        private long blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(10);
+        private int sampleRate = 10;
+        private double samplingThreshold = 0.75;
+        private MetricsListener listener;
+        private String mbeanName;
+        private File spillDirectory;
+        private long spillMaxBytes;
+        private int urgentCapacity;
+        private int bulkCapacity;
+        private int bulkBytes;
+        private int[] laneWeights = {4, 2, 1};
+        private boolean batching;
+
+        private Builder(FluentLogger realLogger, ForwardTransport sender) {
+            this.realLogger = realLogger;
+            this.sender = sender;
+        }
+
+        /**
+         * Maximum number of queued events, rounded up to a power of two; with {@link #lanes}, of the normal lane.
+         */
+        public Builder capacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * How long {@link OverflowPolicy#BLOCK} waits for a free slot.
+         */
+        public Builder blockTimeout(long timeout, TimeUnit unit) {
+            this.blockTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * For {@link OverflowPolicy#SAMPLE}: keep one in {@code sampleRate} events once the queue is fuller than
+         * {@code threshold} (a fraction of capacity).
+         */
+        public Builder sampling(int sampleRate, double threshold) {
+            if (sampleRate < 1 || threshold < 0 || threshold > 1) {
+                throw new IllegalArgumentException("sampleRate must be positive and threshold in [0, 1]");
+            }
+            this.sampleRate = sampleRate;
+            this.samplingThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * With a {@link ForwardSender}: send once {@code maxEvents} are waiting, or once the oldest of them
+         * waited for {@code linger}. A {@link FluentLogger} sends every event on its own, so {@link #build}
+         * refuses this for one.
+         */
+        public Builder batch(int maxEvents, long linger, TimeUnit unit) {
+            if (maxEvents < 1) {
+                throw new IllegalArgumentException("maxEvents must be positive: " + maxEvents);
+            }
+            this.batchEvents = maxEvents;
+            this.lingerNanos = unit.toNanos(linger);
+            this.batching = true;
+            return this;
+        }
+
+        /**
+         * Receives everything {@link LoggerMetrics} records; see {@link MetricsListener} for which thread calls
+         * what. Without one, exceptions of failed sends are printed.
+         */
+        public Builder metricsListener(MetricsListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * Registers the {@link LoggerMetrics} with the platform MBean server under {@code name}, until close.
+         */
+        public Builder registerMBean(String name) {
+            this.mbeanName = name;
+            return this;
+        }
+
+        /**
+         * With a {@link ForwardSender}: spill batches that cannot be sent right now to segment files in
+         * {@code directory}, up to {@code maxBytes} in total, and replay them once Fluentd is back. Segments left
+         * by a previous process are replayed too. Only one wrapper may use a directory at a time.
+         */
+        public Builder spill(File directory, long maxBytes) {
+            if (maxBytes <= 0) {
+                throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+            }
+            this.spillDirectory = directory;
+            this.spillMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Queues urgent events, I/O exceptions and responses with a status from 500, in a lane of their own of
+         * {@code urgentCapacity}, and events with a body, or encoded, of at least {@code bulkBytes} in one of
+         * {@code bulkCapacity}. Urgent events are sent without waiting for the linger time.
+         */
+        public Builder lanes(int urgentCapacity, int bulkCapacity, int bulkBytes) {
+            if (urgentCapacity < 2 || bulkCapacity < 2 || bulkBytes < 1) {
+                throw new IllegalArgumentException("lane capacities must be at least 2 and bulkBytes positive");
+            }
+            this.urgentCapacity = urgentCapacity;
+            this.bulkCapacity = bulkCapacity;
+            this.bulkBytes = bulkBytes;
+            return this;
+        }
+
+        /**
+         * How many events, in units of 16, the urgent, normal and bulk lanes may drain per round while they are
+         * all busy; 4, 2 and 1 by default.
+         */
+        public Builder laneWeights(int urgent, int normal, int bulk) {
+            if (urgent < 1 || normal < 1 || bulk < 1) {
+                throw new IllegalArgumentException("lane weights must be positive");
+            }
+            this.laneWeights = new int[]{urgent, normal, bulk};
+            return this;
+        }
+
+        public SingleThreadWrapper build() {
+            if (spillDirectory != null && sender == null) {
+                throw new IllegalStateException("spilling to disk needs a ForwardSender");
+            }
+            if (batching && sender == null) {
+                throw new IllegalStateException("batching needs a ForwardSender");
+            }
+            return new SingleThreadWrapper(this);
+        }
     }
 }
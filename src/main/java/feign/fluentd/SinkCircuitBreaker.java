@@ -0,0 +1,207 @@
+package feign.fluentd;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tells {@link FluentdLogger} whether Fluentd is worth building events for.
+ * <p>
+ * A send fails when {@code FluentLogger.log} returns false or throws, or when it takes longer than the slow
+ * send threshold. After {@code failureThreshold} failures in a row the breaker opens: events are skipped
+ * before anything is built, only counted. Once the open duration passed, one event goes through as a probe;
+ * its success closes the breaker, its failure opens it again.
+ * <p>
+ * Every event let through gets a ticket naming the phase it was let through in, and a send only counts for
+ * that phase: a send that started before the breaker opened cannot close it, and while half open only the
+ * probe's outcome is taken.
+ * <p>
+ * Behind a {@link SingleThreadWrapper}, handing an event over says nothing about Fluentd, so the breaker hears
+ * instead from the wrapper's sender thread how each send (or ack) went and how long it took. Those sends happen
+ * now rather than when their events were let through, so they count for whatever phase the breaker is in, except
+ * while it is open.
+ */
+public final class SinkCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * The ticket of an event {@link #acquire} refused.
+     */
+    static final long DENIED = -1;
+    /**
+     * The ticket of a send that was not let through by {@link #acquire}; it only counts while closed.
+     */
+    static final long UNTRACKED = -2;
+    private static final State[] STATES = State.values();
+
+    private final int failureThreshold;
+    private final long slowSendNanos;
+    private final long openNanos;
+
+    /**
+     * The state in the low two bits, above them the number of state changes so far.
+     */
+    private final AtomicLong phase = new AtomicLong(State.CLOSED.ordinal());
+    private final AtomicLong probeAt = new AtomicLong();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+
+    private SinkCircuitBreaker(Builder builder) {
+        this.failureThreshold = builder.failureThreshold;
+        this.slowSendNanos = builder.slowSendNanos;
+        this.openNanos = builder.openNanos;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private static State stateOf(long phase) {
+        return STATES[(int) (phase & 3)];
+    }
+
+    private static long next(long phase, State state) {
+        return (phase & ~3L) + 4 + state.ordinal();
+    }
+
+    /**
+     * @return the ticket to {@link #record} the event's send with, or {@link #DENIED} if the event should be
+     * skipped; it is counted then
+     */
+    long acquire() {
+        final long current = phase.get();
+        if (stateOf(current) == State.CLOSED) {
+            return current;
+        }
+        final long now = System.nanoTime();
+        final long at = probeAt.get();
+        // a lost probe (an event that was never sent) is replaced after another open duration
+        if (now - at >= 0 && probeAt.compareAndSet(at, now + openNanos)) {
+            final long probe = next(current, State.HALF_OPEN);
+            if (phase.compareAndSet(current, probe)) {
+                return probe;
+            }
+        }
+        skipped.increment();
+        return DENIED;
+    }
+
+    /**
+     * @return whether {@code ticket} is that of the probe still awaited
+     */
+    boolean isProbe(long ticket) {
+        return ticket >= 0 && stateOf(ticket) == State.HALF_OPEN && phase.get() == ticket;
+    }
+
+    /**
+     * Records the outcome of one send, unless the breaker changed state since {@link #acquire} handed out its
+     * ticket.
+     */
+    void record(long ticket, boolean sent, long startNanos) {
+        final long current = phase.get();
+        if (ticket == UNTRACKED ? stateOf(current) != State.CLOSED : ticket != current) {
+            return;
+        }
+        if (sent && System.nanoTime() - startNanos <= slowSendNanos) {
+            if (consecutiveFailures.get() != 0) {
+                consecutiveFailures.set(0);
+            }
+            if (stateOf(current) == State.HALF_OPEN) {
+                phase.compareAndSet(current, next(current, State.CLOSED));
+            }
+        } else if (stateOf(current) == State.HALF_OPEN
+                || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            open(current);
+        }
+    }
+
+    /**
+     * Records the outcome of a send the sender thread of a {@link SingleThreadWrapper} made, taking
+     * {@code nanos}.
+     */
+    void recordBackground(boolean sent, long nanos) {
+        final long current = phase.get();
+        if (stateOf(current) != State.OPEN) {
+            record(current, sent, System.nanoTime() - nanos);
+        }
+    }
+
+    private void open(long current) {
+        probeAt.set(System.nanoTime() + openNanos);
+        if (phase.compareAndSet(current, next(current, State.OPEN))) {
+            consecutiveFailures.set(0);
+            opened.increment();
+        }
+    }
+
+    public State state() {
+        return stateOf(phase.get());
+    }
+
+    /**
+     * Events not built because the breaker was open.
+     */
+    public long skippedEvents() {
+        return skipped.sum();
+    }
+
+    /**
+     * How often the breaker opened.
+     */
+    public long openedCount() {
+        return opened.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "SinkCircuitBreaker{state=" + state() + ", skipped=" + skipped.sum() + "}";
+    }
+
+    public static final class Builder {
+        private int failureThreshold = 5;
+        private long slowSendNanos = TimeUnit.SECONDS.toNanos(1);
+        private long openNanos = TimeUnit.SECONDS.toNanos(5);
+
+        private Builder() {
+        }
+
+        /**
+         * Failed sends in a row that open the breaker, 5 by default.
+         */
+        public Builder failureThreshold(int failureThreshold) {
+            if (failureThreshold < 1) {
+                throw new IllegalArgumentException("failureThreshold must be positive: " + failureThreshold);
+            }
+            this.failureThreshold = failureThreshold;
+            return this;
+        }
+
+        /**
+         * Sends slower than this count as failed, 1 second by default.
+         */
+        public Builder slowSendThreshold(long threshold, TimeUnit unit) {
+            this.slowSendNanos = unit.toNanos(threshold);
+            return this;
+        }
+
+        /**
+         * How long the breaker stays open before probing, 5 seconds by default.
+         */
+        public Builder openDuration(long duration, TimeUnit unit) {
+            if (duration <= 0) {
+                throw new IllegalArgumentException("duration must be positive: " + duration);
+            }
+            this.openNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public SinkCircuitBreaker build() {
+            return new SinkCircuitBreaker(this);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package feign.fluentd;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which stack traces {@link FluentdLogger} logged recently, so that a failure repeating during an
+ * outage is rendered and sent once per window and then only counted.
+ * <p>
+ * A trace is identified by a fingerprint of its exception types and frames, causes included, but not its
+ * messages, which tend to differ in ports or addresses for the same failure. Fingerprints are kept in a
+ * {@link ConcurrentHashMap}, so failing calls do not queue on one lock; once there are more than
+ * {@code maxFingerprints}, the least recently seen quarter is forgotten at once. Eviction is approximate: a
+ * fingerprint seen while it runs may go too, and is then logged in full on its next occurrence.
+ */
+final class StackTraceCache {
+    private static final int MAX_CAUSES = 8;
+
+    private static final class Window {
+        final AtomicLong startNanos;
+        final AtomicLong repeats = new AtomicLong();
+        volatile long lastSeenNanos;
+
+        Window(long startNanos) {
+            this.startNanos = new AtomicLong(startNanos);
+            this.lastSeenNanos = startNanos;
+        }
+    }
+
+    private final int maxFingerprints;
+    private final long windowNanos;
+    private final ConcurrentMap<Long, Window> windows = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    StackTraceCache(int maxFingerprints, long windowNanos) {
+        if (maxFingerprints < 1 || windowNanos <= 0) {
+            throw new IllegalArgumentException("maxFingerprints and window must be positive");
+        }
+        this.maxFingerprints = maxFingerprints;
+        this.windowNanos = windowNanos;
+    }
+
+    static long fingerprint(Throwable throwable) {
+        long hash = 1125899906842597L;
+        Throwable current = throwable;
+        for (int depth = 0; current != null && depth < MAX_CAUSES; depth++) {
+            hash = 31 * hash + current.getClass().getName().hashCode();
+            for (StackTraceElement frame : current.getStackTrace()) {
+                hash = 31 * hash + frame.getClassName().hashCode();
+                hash = 31 * hash + frame.getMethodName().hashCode();
+                hash = 31 * hash + frame.getLineNumber();
+            }
+            current = current.getCause() == current ? null : current.getCause();
+        }
+        return hash;
+    }
+
+    static String toHex(long fingerprint) {
+        final String hex = Long.toHexString(fingerprint);
+        return hex.length() == 16 ? hex : "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * Counts one occurrence of {@code fingerprint}.
+     *
+     * @return 0 if the trace is to be logged in full, being new or the first of a new window, otherwise how
+     * often it repeated since it was
+     */
+    long seen(long fingerprint, long nowNanos) {
+        Window window = windows.get(fingerprint);
+        if (window == null) {
+            window = windows.putIfAbsent(fingerprint, new Window(nowNanos));
+            if (window == null) {
+                if (windows.size() > maxFingerprints) {
+                    evict();
+                }
+                return 0;
+            }
+        }
+        window.lastSeenNanos = nowNanos;
+        final long start = window.startNanos.get();
+        if (nowNanos - start >= windowNanos && window.startNanos.compareAndSet(start, nowNanos)) {
+            window.repeats.set(0);
+            return 0;
+        }
+        return window.repeats.incrementAndGet();
+    }
+
+    /**
+     * Forgets the least recently seen fingerprints down to three quarters of the maximum, in one pass by
+     * whichever thread gets there first.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final long[] lastSeen = windows.values().stream().mapToLong(w -> w.lastSeenNanos).toArray();
+            final int excess = lastSeen.length - (maxFingerprints - maxFingerprints / 4);
+            if (excess <= 0) {
+                return;
+            }
+            Arrays.sort(lastSeen);
+            final long cutoff = lastSeen[excess - 1];
+            windows.values().removeIf(w -> w.lastSeenNanos - cutoff <= 0);
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    int size() {
+        return windows.size();
+    }
+}
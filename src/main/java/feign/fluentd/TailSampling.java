@@ -0,0 +1,133 @@
+package feign.fluentd;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides, once a call has its response, whether {@link SerializedFluentdLogger} logs it.
+ * <p>
+ * Calls answered with an error status (4xx or 5xx by default), retried calls and slow calls are always kept,
+ * as are calls that ended in an I/O exception; the others are kept at the rate of their method, their client
+ * or the default rate, in that order.
+ */
+public final class TailSampling {
+
+    private final double defaultRate;
+    private final Map<String, Double> rates;
+    private final long slowMillis;
+    private final int errorStatus;
+    private final ConcurrentMap<String, Double> resolvedRates = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+
+    private TailSampling(Builder builder) {
+        this.defaultRate = builder.defaultRate;
+        this.rates = new HashMap<>(builder.rates);
+        this.slowMillis = builder.slowMillis;
+        this.errorStatus = builder.errorStatus;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    boolean keep(String configKey, int status, long elapsedMillis, boolean retried) {
+        if (status >= errorStatus || retried || elapsedMillis >= slowMillis) {
+            return true;
+        }
+        final double rate = rate(configKey);
+        if (rate >= 1 || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate)) {
+            return true;
+        }
+        dropped.increment();
+        return false;
+    }
+
+    private double rate(String configKey) {
+        Double rate = resolvedRates.get(configKey);
+        if (rate == null) {
+            rate = rates.get(configKey);
+            if (rate == null) {
+                final int hash = configKey.indexOf('#');
+                rate = hash < 0 ? null : rates.get(configKey.substring(0, hash));
+            }
+            if (rate == null) {
+                rate = defaultRate;
+            }
+            resolvedRates.put(configKey, rate);
+        }
+        return rate;
+    }
+
+    /**
+     * Number of calls not logged because they were not sampled.
+     */
+    public long droppedCalls() {
+        return dropped.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "TailSampling{keepRate=" + defaultRate + ", rates=" + rates + ", slowMillis=" + slowMillis
+                + ", errorStatus=" + errorStatus + "}";
+    }
+
+    public static final class Builder {
+        private double defaultRate = 1;
+        private final Map<String, Double> rates = new HashMap<>();
+        private long slowMillis = 1000;
+        private int errorStatus = 400;
+
+        private Builder() {
+        }
+
+        /**
+         * Fraction of fast, successful calls kept, from 0 to 1 (the default).
+         */
+        public Builder keepRate(double rate) {
+            this.defaultRate = checkRate(rate);
+            return this;
+        }
+
+        /**
+         * The rate of one client ({@code "GitHub"}) or one method ({@code "GitHub#repos(String)"}), matched
+         * against Feign's config key; a method's rate wins over its client's.
+         */
+        public Builder keepRate(String clientOrConfigKey, double rate) {
+            rates.put(clientOrConfigKey, checkRate(rate));
+            return this;
+        }
+
+        /**
+         * Calls taking at least this long are always kept (1 second by default).
+         */
+        public Builder slowerThan(long duration, TimeUnit unit) {
+            this.slowMillis = unit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * Responses with at least this status are always kept: 400 by default, so client errors too; 500 keeps
+         * server errors only.
+         */
+        public Builder errorStatusFrom(int status) {
+            this.errorStatus = status;
+            return this;
+        }
+
+        private static double checkRate(double rate) {
+            if (rate < 0 || rate > 1) {
+                throw new IllegalArgumentException("rate must be in [0, 1]: " + rate);
+            }
+            return rate;
+        }
+
+        public TailSampling build() {
+            return new TailSampling(this);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package feign.fluentd;
+
+import feign.Response;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static feign.Util.UTF_8;
+
+/**
+ * Response body that streams through to the caller while counting the bytes and keeping a copy of at most
+ * the first {@code captureLimit} of them. The listener is told once, when the body or its stream is closed.
+ * <p>
+ * Not repeatable: the underlying stream is read only once.
+ */
+final class TeeResponseBody implements Response.Body {
+
+    interface Listener {
+        /**
+         * @param captured    the first {@code capturedLength} bytes of the body
+         * @param totalBytes  every byte the caller read (or skipped)
+         * @param truncated   whether more was read than captured
+         */
+        void onClose(byte[] captured, int capturedLength, long totalBytes, boolean truncated);
+    }
+
+    private static final byte[] NOTHING = new byte[0];
+
+    private final Response.Body delegate;
+    private final int captureLimit;
+    private final Listener listener;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private TeeInputStream stream;
+
+    TeeResponseBody(Response.Body delegate, int captureLimit, Listener listener) {
+        this.delegate = delegate;
+        this.captureLimit = captureLimit;
+        this.listener = listener;
+    }
+
+    @Override
+    public Integer length() {
+        return delegate.length();
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public synchronized InputStream asInputStream() throws IOException {
+        if (stream == null) {
+            stream = new TeeInputStream(delegate.asInputStream());
+        }
+        return stream;
+    }
+
+    @Override
+    public Reader asReader() throws IOException {
+        return asReader(UTF_8);
+    }
+
+    @Override
+    public Reader asReader(Charset charset) throws IOException {
+        return new InputStreamReader(asInputStream(), charset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            delegate.close();
+        } finally {
+            finish();
+        }
+    }
+
+    private void finish() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        final TeeInputStream tee;
+        synchronized (this) {
+            tee = stream;
+        }
+        if (tee == null) {
+            listener.onClose(NOTHING, 0, 0, false);
+        } else {
+            listener.onClose(tee.captured, tee.capturedLength, tee.total, tee.total > tee.capturedLength);
+        }
+    }
+
+    private final class TeeInputStream extends FilterInputStream {
+        private byte[] captured = NOTHING;
+        private int capturedLength;
+        private long total;
+
+        TeeInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                if (capturedLength < captureLimit && capturedLength == total) {
+                    grow(1);
+                    captured[capturedLength++] = (byte) b;
+                }
+                total++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) {
+                if (capturedLength < captureLimit && capturedLength == total) {
+                    final int copy = Math.min(read, captureLimit - capturedLength);
+                    grow(copy);
+                    System.arraycopy(b, off, captured, capturedLength, copy);
+                    capturedLength += copy;
+                }
+                total += read;
+            }
+            return read;
+        }
+
+        /**
+         * Skipped bytes are counted but end the captured prefix.
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            total += Math.max(skipped, 0);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void grow(int extra) {
+            if (capturedLength + extra > captured.length) {
+                final int target = Math.max(capturedLength + extra, Math.min(captured.length * 2 + 256, captureLimit));
+                captured = Arrays.copyOf(captured, target);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                finish();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package feign.fluentd;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free token bucket, kept as the theoretical arrival time of the next event (GCRA): taking a token is
+ * one compare-and-set, and refilling is implied by the clock.
+ * <p>
+ * The rate and burst are split over up to one stripe per processor, each on its own cache line. A thread
+ * takes from the stripe its id maps to, and only tries the others once that one is empty, so callers of one
+ * busy method rarely contend while a lone thread can still use the whole bucket. When the burst does not divide
+ * by the stripes, the first ones hold one token more, so that the stripes add up to the whole burst.
+ */
+final class TokenBucket {
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray arrivals;
+    private final int mask;
+    private final long intervalNanos;
+    private final long[] burstNanos;
+
+    TokenBucket(double eventsPerSecond, int burst) {
+        this(eventsPerSecond, burst, Runtime.getRuntime().availableProcessors());
+    }
+
+    TokenBucket(double eventsPerSecond, int burst, int maxStripes) {
+        if (eventsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("rate and burst must be positive");
+        }
+        final int stripes = Integer.highestOneBit(Math.max(1, Math.min(maxStripes, burst)));
+        this.mask = stripes - 1;
+        this.intervalNanos = Math.max(1, (long) (1e9 * stripes / eventsPerSecond));
+        this.burstNanos = new long[stripes];
+        this.arrivals = new AtomicLongArray(stripes * PADDING);
+        // full from the start, even for a clock read by the caller just before
+        final long now = System.nanoTime();
+        for (int i = 0; i < stripes; i++) {
+            burstNanos[i] = (burst / stripes + (i < burst % stripes ? 1 : 0)) * intervalNanos;
+            arrivals.set(i * PADDING, now - burstNanos[i]);
+        }
+    }
+
+    boolean tryAcquire(long nowNanos) {
+        return take(nowNanos) >= 0;
+    }
+
+    /**
+     * @return the stripe the token was taken from, for {@link #refund}, or -1 if the bucket is empty
+     */
+    int take(long nowNanos) {
+        final int home = (int) Thread.currentThread().getId() & mask;
+        for (int i = 0; i <= mask; i++) {
+            final int stripe = (home + i) & mask;
+            if (tryAcquire(stripe, nowNanos)) {
+                return stripe;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Puts back a token {@link #take} took from {@code stripe}, for an event that was not let through after all.
+     */
+    void refund(int stripe) {
+        arrivals.getAndAdd(stripe * PADDING, -intervalNanos);
+    }
+
+    private boolean tryAcquire(int stripe, long nowNanos) {
+        final int index = stripe * PADDING;
+        while (true) {
+            final long arrival = arrivals.get(index);
+            final long next = (nowNanos - arrival > 0 ? nowNanos : arrival) + intervalNanos;
+            if (next - nowNanos > burstNanos[stripe]) {
+                return false;
+            }
+            if (arrivals.compareAndSet(index, arrival, next)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package feign.fluentd;
+
+/**
+ * Finds scheme, host, port, path and query of plain {@code http}/{@code https} URLs by index, without
+ * creating a {@link java.net.URI}.
+ * <p>
+ * {@link #split} only accepts URLs for which it is sure to agree with {@code java.net.URI}: ASCII only, no
+ * percent-escapes (URI would decode them), user info, IPv6 literal or fragment. Everything else is left to
+ * the caller's {@code URI} based fallback. Instances are reusable but not thread-safe.
+ */
+final class UrlSplitter {
+    private static final long[] PATH_CHARS = mask("-_.!~*'()" + ",;:$&+=" + "/@");
+    private static final long[] QUERY_CHARS = mask("-_.!~*'()" + ",;:$&+=" + "/@?");
+
+    String url;
+    int schemeEnd;
+    int hostStart;
+    int hostEnd;
+    int port;
+    int pathStart;
+    int pathEnd;
+    int queryStart;
+
+    /**
+     * @return false if {@code url} is not a simple http(s) URL; the fields are meaningless then
+     */
+    boolean split(String url) {
+        this.url = url;
+        final int length = url.length();
+        if (url.regionMatches(true, 0, "https://", 0, 8)) {
+            schemeEnd = 5;
+        } else if (url.regionMatches(true, 0, "http://", 0, 7)) {
+            schemeEnd = 4;
+        } else {
+            return false;
+        }
+        hostStart = schemeEnd + 3;
+        int i = hostStart;
+        while (i < length && isHostChar(url.charAt(i))) {
+            i++;
+        }
+        hostEnd = i;
+        if (!isValidHost(url, hostStart, hostEnd)) {
+            return false;
+        }
+        port = -1;
+        if (i < length && url.charAt(i) == ':') {
+            final int portStart = ++i;
+            int value = 0;
+            while (i < length && i - portStart < 5 && isDigit(url.charAt(i))) {
+                value = value * 10 + (url.charAt(i++) - '0');
+            }
+            if (i == portStart) {
+                return false;
+            }
+            port = value;
+        }
+        pathStart = i;
+        if (i < length && url.charAt(i) != '/' && url.charAt(i) != '?') {
+            return false;
+        }
+        while (i < length && url.charAt(i) != '?') {
+            if (!matches(url.charAt(i), PATH_CHARS)) {
+                return false;
+            }
+            i++;
+        }
+        pathEnd = i;
+        queryStart = -1;
+        if (i < length) {
+            queryStart = ++i;
+            while (i < length) {
+                if (!matches(url.charAt(i++), QUERY_CHARS)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the {@code uri} map {@link FluentdLogger} always logged.
+     */
+    void writeTo(EventRecord record, String key) {
+        record.beginMap(key);
+        record.put("host", url, hostStart, hostEnd);
+        record.put("path", url, pathStart, pathEnd);
+        record.put("port", port);
+        record.put("scheme", url, 0, schemeEnd);
+        record.put("query", url, queryStart, queryStart < 0 ? -1 : url.length());
+        record.endMap();
+    }
+
+    private static boolean isHostChar(char c) {
+        return isAlphanumeric(c) || c == '-' || c == '.';
+    }
+
+    /**
+     * java.net.URI's hostname grammar: dot separated labels of alphanumerics with inner dashes, the last of
+     * several starting with a letter, unless it is a dotted-quad IPv4 address.
+     */
+    private static boolean isValidHost(String url, int start, int end) {
+        if (start == end) {
+            return false;
+        }
+        if (isIPv4(url, start, end)) {
+            return true;
+        }
+        int labelStart = start;
+        int lastLabel = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || url.charAt(i) == '.') {
+                if (i == labelStart) {
+                    // an empty label is only allowed after the trailing dot of a fully qualified name
+                    if (i == end && labelStart > start) {
+                        continue;
+                    }
+                    return false;
+                }
+                if (!isAlphanumeric(url.charAt(labelStart)) || !isAlphanumeric(url.charAt(i - 1))) {
+                    return false;
+                }
+                lastLabel = labelStart;
+                labelStart = i + 1;
+            }
+        }
+        return lastLabel == start || isLetter(url.charAt(lastLabel));
+    }
+
+    private static boolean isIPv4(String url, int start, int end) {
+        int octets = 0;
+        int i = start;
+        while (i < end) {
+            final int octetStart = i;
+            int value = 0;
+            while (i < end && isDigit(url.charAt(i)) && i - octetStart < 3) {
+                value = value * 10 + (url.charAt(i++) - '0');
+            }
+            if (i == octetStart || value > 255 || ++octets > 4) {
+                return false;
+            }
+            if (i < end && (url.charAt(i++) != '.' || i == end)) {
+                return false;
+            }
+        }
+        return octets == 4;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isAlphanumeric(char c) {
+        return isLetter(c) || isDigit(c);
+    }
+
+    private static boolean matches(char c, long[] mask) {
+        if (isAlphanumeric(c)) {
+            return true;
+        }
+        return c < 128 && (mask[c >> 6] & (1L << (c & 63))) != 0;
+    }
+
+    private static long[] mask(String chars) {
+        final long[] mask = new long[2];
+        for (int i = 0; i < chars.length(); i++) {
+            final char c = chars.charAt(i);
+            mask[c >> 6] |= 1L << (c & 63);
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,140 @@
+package feign.fluentd;
+
+import feign.Logger;
+import feign.Request;
+import feign.Response;
+import feign.Util;
+import org.fluentd.logger.FluentLogger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AggregatingFluentdLoggerTest {
+    private static final Request REQUEST =
+            Request.create(Request.HttpMethod.GET, "/api", Collections.emptyMap(), null, Util.UTF_8);
+
+    @Mock
+    private FluentLogger trueLogger;
+
+    @Captor
+    private ArgumentCaptor<Map<String, Object>> captor;
+
+    private AggregatingFluentdLogger logger;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        logger = new AggregatingFluentdLogger(trueLogger, 1, TimeUnit.HOURS);
+    }
+
+    @After
+    public void tearDown() {
+        logger.close();
+    }
+
+    private static Response response(int status) {
+        return Response.builder()
+                .status(status)
+                .request(REQUEST)
+                .headers(Collections.emptyMap())
+                .body("ignored", Util.UTF_8)
+                .build();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void should_log_one_rollup_per_method_and_interval() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            logger.logRequest("client#get()", Logger.Level.FULL, REQUEST);
+            final Response response = response(i < 90 ? 200 : 503);
+            assertThat(logger.logAndRebufferResponse("client#get()", Logger.Level.FULL, response, i + 1),
+                    sameInstance(response));
+        }
+        logger.logRetry("client#get()", Logger.Level.FULL);
+        logger.logIOException("client#get()", Logger.Level.FULL, new IOException(), 1000L);
+        verify(trueLogger, never()).log(anyString(), anyString(), any(), anyLong());
+
+        logger.logRollups();
+        verify(trueLogger).log(eq("feign"), eq("rollup"), captor.capture(), anyLong());
+        final Map<String, Object> rollup = captor.getValue();
+        assertThat(rollup.get("requests"), is(100L));
+        assertThat(rollup.get("responses"), is(100L));
+        assertThat(rollup.get("retries"), is(1L));
+        assertThat(rollup.get("io_exceptions"), is(1L));
+        final Map<String, Object> status = (Map<String, Object>) rollup.get("status");
+        assertThat(status.get("2xx"), is(90L));
+        assertThat(status.get("5xx"), is(10L));
+        final Map<String, Object> elapsed = (Map<String, Object>) rollup.get("elapsedTimeMs");
+        assertThat(elapsed.get("count"), is(101L));
+        assertThat(elapsed.get("max"), is(1000L));
+        final long p50 = (Long) elapsed.get("p50");
+        assertThat(p50 >= 45 && p50 <= 57, is(true));
+        assertThat(((Map<String, Object>) rollup.get("meta")).get("method"), is("get"));
+    }
+
+    @Test
+    public void should_ignore_message_pack_encoding() {
+        assertThat(logger.withMessagePackEncoding(), sameInstance(logger));
+        logger.logRequest("client#get()", Logger.Level.BASIC, REQUEST);
+        logger.logRollups();
+
+        verify(trueLogger).log(eq("feign"), eq("rollup"), any(), anyLong());
+    }
+
+    @Test
+    public void should_start_over_and_skip_idle_methods() {
+        logger.logRequest("client#get()", Logger.Level.BASIC, REQUEST);
+        logger.logRequest("client#put()", Logger.Level.BASIC, REQUEST);
+        logger.logRollups();
+        logger.logRequest("client#get()", Logger.Level.BASIC, REQUEST);
+        logger.logRollups();
+        logger.logRollups();
+
+        verify(trueLogger, times(3)).log(eq("feign"), eq("rollup"), captor.capture(), anyLong());
+        assertThat(captor.getAllValues().get(2).get("requests"), is(1L));
+    }
+
+    @Test
+    public void should_keep_logging_rollups_after_one_fails() throws InterruptedException {
+        final AtomicInteger calls = new AtomicInteger();
+        when(trueLogger.log(anyString(), anyString(), any(), anyLong())).thenAnswer(invocation -> {
+            if (calls.incrementAndGet() == 1) {
+                throw new IllegalStateException("once");
+            }
+            return true;
+        });
+        final AggregatingFluentdLogger scheduled = new AggregatingFluentdLogger(trueLogger, 10, TimeUnit.MILLISECONDS);
+        try {
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (calls.get() < 2 && System.nanoTime() < deadline) {
+                scheduled.logRequest("client#get()", Logger.Level.BASIC, REQUEST);
+                Thread.sleep(5);
+            }
+        } finally {
+            scheduled.close();
+        }
+        assertThat(calls.get() >= 2, is(true));
+    }
+}
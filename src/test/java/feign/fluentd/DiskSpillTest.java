@@ -0,0 +1,154 @@
+package feign.fluentd;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class DiskSpillTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private ForwardServerStub server;
+    private SingleThreadWrapper wrapper;
+
+    @After
+    public void tearDown() throws IOException {
+        if (wrapper != null) {
+            wrapper.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private static int unusedPort() throws IOException {
+        try (ForwardServerStub stub = new ForwardServerStub()) {
+            return stub.port();
+        }
+    }
+
+    private SingleThreadWrapper spillingWrapper(int port, File directory) {
+        return SingleThreadWrapper.builder(new ForwardSender("localhost", port))
+                .batch(5, 10, TimeUnit.MILLISECONDS)
+                .spill(directory, 1024 * 1024)
+                .build();
+    }
+
+    private static EventBatch batch(String tag, int n) {
+        final EventBatch batch = new EventBatch(tag);
+        batch.add(n, Collections.singletonMap("n", n));
+        return batch;
+    }
+
+    private static void assertInOrder(List<ForwardServerStub.Entry> entries, int count) {
+        assertThat(entries.size(), is(count));
+        for (int i = 0; i < count; i++) {
+            assertThat(entries.get(i).record.get("n"), is((long) i));
+        }
+    }
+
+    @Test
+    public void should_spill_while_fluentd_is_down_and_replay_in_order() throws Exception {
+        final int port = unusedPort();
+        wrapper = spillingWrapper(port, folder.getRoot());
+        for (int i = 0; i < 20; i++) {
+            wrapper.log("feign", Collections.singletonMap("n", i), 0L);
+        }
+        wrapper.flush();
+        assertThat(wrapper.metrics().getSpilledEvents(), is(20L));
+        assertThat(wrapper.metrics().getSpillBacklogBytes() > 0, is(true));
+
+        server = new ForwardServerStub(port);
+        assertInOrder(server.awaitEntries(20), 20);
+        assertThat(wrapper.sendFailures(), is(0L));
+        assertThat(wrapper.metrics().getEventsSent(), is(20L));
+    }
+
+    @Test
+    public void should_replay_what_a_previous_process_spilled() throws Exception {
+        final int port = unusedPort();
+        final SingleThreadWrapper previous = spillingWrapper(port, folder.getRoot());
+        for (int i = 0; i < 10; i++) {
+            previous.log("feign", Collections.singletonMap("n", i), 0L);
+        }
+        previous.flush();
+        previous.close();
+
+        server = new ForwardServerStub(port);
+        wrapper = spillingWrapper(port, folder.getRoot());
+        assertInOrder(server.awaitEntries(10), 10);
+    }
+
+    @Test
+    public void should_keep_a_replayed_batch_until_it_is_acknowledged() throws Exception {
+        final int port = unusedPort();
+        final SingleThreadWrapper spilling = spillingWrapper(port, folder.getRoot());
+        for (int i = 0; i < 5; i++) {
+            spilling.log("feign", Collections.singletonMap("n", i), 0L);
+        }
+        spilling.flush();
+        spilling.close();
+
+        server = new ForwardServerStub(port);
+        server.ignoreAcks(true);
+        final SingleThreadWrapper unacknowledged = SingleThreadWrapper.builder(
+                new ForwardSender("localhost", port).withAcks(8, 10, TimeUnit.SECONDS))
+                .batch(5, 10, TimeUnit.MILLISECONDS)
+                .spill(folder.getRoot(), 1024 * 1024)
+                .build();
+        assertInOrder(server.awaitEntries(5), 5);
+        unacknowledged.close(100, TimeUnit.MILLISECONDS);
+
+        server.ignoreAcks(false);
+        wrapper = spillingWrapper(port, folder.getRoot());
+        assertInOrder(server.awaitEntries(10).subList(5, 10), 5);
+    }
+
+    @Test
+    public void should_resume_after_the_last_record_marked_sent() throws IOException {
+        final DiskSpill spill = new DiskSpill(folder.getRoot(), 4096, 1024);
+        spill.append(batch("a", 0));
+        spill.append(batch("b", 1));
+        spill.append(batch("a", 2));
+        final Map<String, EventBatch> batches = new HashMap<>();
+        assertThat(spill.peek(batches).tag, is("a"));
+        spill.commit();
+        spill.close();
+
+        final DiskSpill reopened = new DiskSpill(folder.getRoot(), 4096, 1024);
+        final EventBatch next = reopened.peek(batches);
+        assertThat(next.tag, is("b"));
+        assertThat(next.count(), is(1));
+        reopened.commit();
+        assertThat(reopened.peek(batches).tag, is("a"));
+        reopened.commit();
+        assertThat(reopened.isEmpty(), is(true));
+        assertThat(reopened.backlog(), is(0L));
+    }
+
+    @Test
+    public void should_refuse_batches_beyond_the_size_cap() throws IOException {
+        final DiskSpill spill = new DiskSpill(folder.getRoot(), 2048, 1024);
+        int appended = 0;
+        while (spill.append(batch("feign", appended))) {
+            appended++;
+        }
+
+        assertThat(appended > 0, is(true));
+        assertThat(spill.backlog() <= 2048, is(true));
+        assertThat(folder.getRoot().list().length, is(2));
+    }
+}
@@ -0,0 +1,78 @@
+package feign.fluentd;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class EventRateLimiterTest {
+
+    @Test
+    public void should_allow_a_burst_then_the_sustained_rate() {
+        final TokenBucket bucket = new TokenBucket(10, 5, 4);
+        final long start = System.nanoTime();
+        int allowed = 0;
+        for (int i = 0; i < 20; i++) {
+            if (bucket.tryAcquire(start)) {
+                allowed++;
+            }
+        }
+        // 4 stripes, the first holding the remainder of the burst
+        assertThat(allowed, is(5));
+        assertThat(bucket.tryAcquire(start + TimeUnit.MILLISECONDS.toNanos(100)), is(false));
+        assertThat(bucket.tryAcquire(start + TimeUnit.MILLISECONDS.toNanos(400)), is(true));
+    }
+
+    @Test
+    public void should_limit_each_method_and_the_whole_tag() {
+        final EventRateLimiter limiter = EventRateLimiter.builder()
+                .perConfigKey(0.001, 2)
+                .perTag(0.001, 3)
+                .build();
+        final long now = System.nanoTime();
+        assertThat(limiter.tryAcquire("a#get()", now), is(true));
+        assertThat(limiter.tryAcquire("a#get()", now), is(true));
+        assertThat(limiter.tryAcquire("a#get()", now), is(false));
+        assertThat(limiter.tryAcquire("b#get()", now), is(true));
+        assertThat(limiter.tryAcquire("b#get()", now), is(false));
+        assertThat(limiter.suppressedEvents(), is(2L));
+    }
+
+    @Test
+    public void should_keep_a_method_token_the_tag_refused() {
+        final EventRateLimiter limiter = EventRateLimiter.builder()
+                .perConfigKey(1, 1)
+                .perTag(2, 1)
+                .build();
+        final long now = System.nanoTime();
+        assertThat(limiter.tryAcquire("a#get()", now), is(true));
+        assertThat(limiter.tryAcquire("b#get()", now), is(false));
+
+        // the tag refilled, while b's own token, taken back, would not have yet
+        final long later = now + TimeUnit.MILLISECONDS.toNanos(500);
+        assertThat(limiter.tryAcquire("b#get()", later), is(true));
+        assertThat(limiter.tryAcquire("b#get()", later), is(false));
+    }
+
+    @Test
+    public void should_hand_the_summary_to_one_caller_per_interval() {
+        final EventRateLimiter limiter = EventRateLimiter.builder()
+                .perConfigKey(0.001, 1)
+                .summaryInterval(1, TimeUnit.SECONDS)
+                .build();
+        final long now = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            limiter.tryAcquire("a#get()", now);
+        }
+        assertThat(limiter.takeSummary(now), is((Map<String, Long>) null));
+
+        final long later = now + TimeUnit.SECONDS.toNanos(2);
+        final Map<String, Long> summary = limiter.takeSummary(later);
+        assertThat(summary.get("a#get()"), is(3L));
+        assertThat(limiter.takeSummary(later), is((Map<String, Long>) null));
+        assertThat(limiter.takeSummary(later + TimeUnit.SECONDS.toNanos(2)).isEmpty(), is(true));
+    }
+}
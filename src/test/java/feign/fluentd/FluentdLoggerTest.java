@@ -12,10 +12,12 @@ import org.mockito.MockitoAnnotations;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static java.util.Arrays.asList;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -23,7 +25,11 @@ import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsNull.notNullValue;
 import static org.hamcrest.core.IsNull.nullValue;
 import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 public class FluentdLoggerTest {
@@ -179,4 +185,223 @@ public class FluentdLoggerTest {
         assertThat(exception.get("elapsedTimeMs"), is(1000L));
         assertThat(exception.get("meta"), is(META_MAP));
     }
+
+    @Test
+    public void should_stream_response_body_and_log_on_close() throws IOException {
+        final Response response = fluentdLogger.withStreamingResponseBody(4)
+                .logAndRebufferResponse(CONFIG_KEY, Logger.Level.FULL, RESPONSE, 1000L);
+        verify(trueLogger, never()).log(anyString(), anyString(), any(), anyLong());
+
+        assertThat(Util.toString(response.body().asReader()), is("some body"));
+        response.close();
+        verify(trueLogger).log(eq("feign"), eq("response"), captor.capture(), anyLong());
+        final Map<String, Object> logged = captor.getValue();
+        assertThat(logged.get("status"), is(200));
+        assertThat(((Map<String, Object>) logged.get("headers")).get("test"), is(asList("aaa")));
+        assertThat(logged.get("body"), is("some"));
+        assertThat(logged.get("body-truncated"), is(true));
+        assertThat(logged.get("body-bytes"), is(9));
+        assertThat(logged.get("meta"), is(META_MAP));
+    }
+
+    @Test
+    public void should_only_count_streamed_response_body_at_headers_level() throws IOException {
+        final Response response = fluentdLogger.withStreamingResponseBody(1024)
+                .logAndRebufferResponse(CONFIG_KEY, Logger.Level.HEADERS, RESPONSE, 1000L);
+        Util.toByteArray(response.body().asInputStream());
+        response.body().asInputStream().close();
+        response.close();
+        verify(trueLogger).log(eq("feign"), eq("response"), captor.capture(), anyLong());
+        final Map<String, Object> logged = captor.getValue();
+        assertThat(logged.get("body"), nullValue());
+        assertThat(logged.get("body-truncated"), nullValue());
+        assertThat(logged.get("body-bytes"), is(9));
+    }
+
+    @Test
+    public void should_cut_captured_response_body_at_character_boundary() throws IOException {
+        final Response utf8 = RESPONSE.toBuilder().body("日本", Util.UTF_8).build();
+        final Response response = fluentdLogger.withStreamingResponseBody(4)
+                .logAndRebufferResponse(CONFIG_KEY, Logger.Level.FULL, utf8, 1000L);
+        assertThat(Util.toString(response.body().asReader()), is("日本"));
+        response.close();
+        verify(trueLogger).log(eq("feign"), eq("response"), captor.capture(), anyLong());
+        assertThat(captor.getValue().get("body"), is("日"));
+        assertThat(captor.getValue().get("body-bytes"), is(6));
+    }
+
+    @Test
+    public void should_only_count_bodies_outside_textual_content_types() throws IOException {
+        fluentdLogger.withBodyPolicy(BodyPolicy.builder().textualContentTypes("application/json").build());
+        fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.FULL, RESPONSE, 1000L);
+        verify(trueLogger).log(eq("feign"), eq("response"), captor.capture(), anyLong());
+        assertThat(captor.getValue().containsKey("body"), is(false));
+        assertThat(captor.getValue().get("body-bytes"), is(9));
+    }
+
+    @Test
+    public void should_cap_textual_body_and_send_others_as_binary() throws IOException {
+        final Map<String, Collection<String>> json = new HashMap<String, Collection<String>>() {{
+            put("content-type", asList("application/problem+json; charset=utf-8"));
+        }};
+        fluentdLogger.withBodyPolicy(BodyPolicy.builder()
+                .maxBytes(4)
+                .textualContentTypes("text/", "+json")
+                .binaryAsBin(true)
+                .build());
+        fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.FULL, RESPONSE.toBuilder().headers(json).build(), 1L);
+        fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.FULL, RESPONSE, 1L);
+        verify(trueLogger, times(2)).log(eq("feign"), eq("response"), captor.capture(), anyLong());
+
+        final Map<String, Object> text = captor.getAllValues().get(0);
+        assertThat(text.get("body"), is("some"));
+        assertThat(text.get("body-truncated"), is(true));
+        assertThat(text.get("body-bytes"), is(9));
+        final Map<String, Object> binary = captor.getAllValues().get(1);
+        assertThat((byte[]) binary.get("body"), is("some".getBytes(Util.UTF_8)));
+        assertThat(binary.get("body-truncated"), is(true));
+    }
+
+    @Test
+    public void should_prefer_method_policy_over_client_policy() {
+        final BodyPolicy none = BodyPolicy.builder().maxBytes(0).textualContentTypes().build();
+        fluentdLogger.withBodyPolicy("client", none)
+                .withBodyPolicy("client#method()", BodyPolicy.unrestricted());
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.FULL, REQUEST);
+        fluentdLogger.logRequest("client#other()", Logger.Level.FULL, REQUEST);
+        verify(trueLogger, times(2)).log(eq("feign"), eq("request"), captor.capture(), anyLong());
+        assertThat(captor.getAllValues().get(0).get("body"), is("some body"));
+        assertThat(captor.getAllValues().get(1).containsKey("body"), is(false));
+        assertThat(captor.getAllValues().get(1).get("body-bytes"), is(9));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void should_filter_and_redact_headers() {
+        final Request request = new RequestTemplate().method(HttpMethod.GET.toString())
+                .append("http://api.example.com")
+                .resolve(Collections.emptyMap())
+                .header("accept", "application/json")
+                .header("Authorization", "Bearer secret")
+                .header("Cookie", "session=1")
+                .header("X-Request-Id", "abc")
+                .request();
+        fluentdLogger.withHeaderFilter(HeaderFilter.builder()
+                .allow("Accept", "x-request-id")
+                .deny("X-Request-Id")
+                .mask("authorization")
+                .build());
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.HEADERS, request);
+        verify(trueLogger).log(eq("feign"), eq("request"), captor.capture(), anyLong());
+
+        final Map<String, Object> headers = (Map<String, Object>) captor.getValue().get("headers");
+        assertThat(headers.keySet().size(), is(2));
+        assertThat(headers.get("Accept"), is(asList("application/json")));
+        assertThat(headers.get("authorization"), is(asList("****")));
+    }
+
+    @Test
+    public void should_hash_header_values_by_key() {
+        final byte[] key = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+        final HeaderFilter one = HeaderFilter.builder().hash("X-Api-Key").hashKey(key).build();
+        final HeaderFilter same = HeaderFilter.builder().hash("X-Api-Key").hashKey(key).build();
+        final HeaderFilter other = HeaderFilter.builder().hash("X-Api-Key").build();
+
+        final String hashed = one.value(one.ruleOf("x-api-key"), "k1");
+        assertThat(hashed.startsWith(HeaderFilter.HASH_PREFIX), is(true));
+        assertThat(same.value(same.ruleOf("x-api-key"), "k1"), is(hashed));
+        assertThat(other.value(other.ruleOf("x-api-key"), "k1").equals(hashed), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void should_refuse_a_short_hash_key() {
+        HeaderFilter.builder().hashKey(new byte[8]);
+    }
+
+    @Test
+    public void should_send_repeated_stack_traces_once_per_window() {
+        fluentdLogger.withStackTraceCache(100, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 3; i++) {
+            fluentdLogger.logIOException(CONFIG_KEY, Logger.Level.FULL, new IOException("port " + i), 1L);
+        }
+        fluentdLogger.logIOException(CONFIG_KEY, Logger.Level.FULL, new IOException("elsewhere"), 1L);
+        verify(trueLogger, times(4)).log(eq("feign"), eq("io_exception"), captor.capture(), anyLong());
+
+        final Map<String, Object> first = captor.getAllValues().get(0);
+        assertThat(first.get("details"), notNullValue());
+        final Map<String, Object> third = captor.getAllValues().get(2);
+        assertThat(third.containsKey("details"), is(false));
+        assertThat(third.get("repeat"), is(2L));
+        assertThat(third.get("fingerprint"), is(first.get("fingerprint")));
+        final Map<String, Object> other = captor.getAllValues().get(3);
+        assertThat(other.get("details"), notNullValue());
+        assertThat(other.get("fingerprint").equals(first.get("fingerprint")), is(false));
+    }
+
+    @Test
+    public void should_skip_events_while_sink_is_down() throws IOException {
+        final SinkCircuitBreaker breaker = SinkCircuitBreaker.builder().failureThreshold(2).build();
+        fluentdLogger.withCircuitBreaker(breaker);
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.FULL, REQUEST);
+        fluentdLogger.logRetry(CONFIG_KEY, Logger.Level.FULL);
+        final Response response = fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.FULL, RESPONSE, 1L);
+        fluentdLogger.logIOException(CONFIG_KEY, Logger.Level.FULL, new IOException(), 1L);
+
+        verify(trueLogger, times(2)).log(anyString(), anyString(), any(), anyLong());
+        assertThat(response, is(RESPONSE));
+        assertThat(breaker.skippedEvents(), is(2L));
+    }
+
+    @Test
+    public void should_open_on_the_sends_of_a_wrapper_that_never_refuses_events() {
+        final SingleThreadWrapper wrapper = SingleThreadWrapper.builder(trueLogger)
+                .overflowPolicy(OverflowPolicy.DROP_OLDEST)
+                .build();
+        final SinkCircuitBreaker breaker = SinkCircuitBreaker.builder().failureThreshold(2).build();
+        final FluentdLogger logger = new FluentdLogger(wrapper).withCircuitBreaker(breaker);
+        try {
+            logger.logRequest(CONFIG_KEY, Logger.Level.BASIC, REQUEST);
+            logger.logRequest(CONFIG_KEY, Logger.Level.BASIC, REQUEST);
+            wrapper.flush();
+
+            assertThat(breaker.state(), is(SinkCircuitBreaker.State.OPEN));
+        } finally {
+            wrapper.close();
+        }
+    }
+
+    @Test
+    public void should_summarize_events_over_the_rate_limit() throws IOException {
+        final EventRateLimiter limiter = EventRateLimiter.builder()
+                .perConfigKey(0.001, 1)
+                .summaryInterval(1, TimeUnit.NANOSECONDS)
+                .build();
+        fluentdLogger.withRateLimiter(limiter);
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.FULL, REQUEST);
+        final Response response = fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.FULL, RESPONSE, 1L);
+        fluentdLogger.logRetry(CONFIG_KEY, Logger.Level.FULL);
+
+        assertThat(response, is(RESPONSE));
+        verify(trueLogger).log(eq("feign"), eq("request"), any(), anyLong());
+        verify(trueLogger).log(eq("feign"), eq("suppressed"), captor.capture(), anyLong());
+        assertThat(captor.getValue().get("events"), is(1L));
+        assertThat(limiter.suppressedEvents(), is(2L));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void should_log_the_pending_summary_when_the_wrapper_closes() {
+        final SingleThreadWrapper wrapper = new SingleThreadWrapper(trueLogger);
+        final FluentdLogger logger = new FluentdLogger(wrapper).withRateLimiter(EventRateLimiter.builder()
+                .perConfigKey(0.001, 1)
+                .build());
+        logger.logRequest(CONFIG_KEY, Logger.Level.BASIC, REQUEST);
+        logger.logRetry(CONFIG_KEY, Logger.Level.BASIC);
+        wrapper.close();
+
+        final ArgumentCaptor<Map<String, Object>> events = ArgumentCaptor.forClass(Map.class);
+        verify(trueLogger, times(2)).log(eq("feign"), events.capture(), anyLong());
+        final Map<String, Object> suppressed = (Map<String, Object>) events.getAllValues().get(1).get("suppressed");
+        assertThat(suppressed.get("events"), is(1L));
+    }
 }
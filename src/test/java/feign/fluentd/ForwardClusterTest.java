@@ -0,0 +1,207 @@
+package feign.fluentd;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class ForwardClusterTest {
+
+    private ForwardServerStub first;
+    private ForwardServerStub second;
+    private SingleThreadWrapper wrapper;
+
+    @Before
+    public void setUp() throws IOException {
+        first = new ForwardServerStub();
+        second = new ForwardServerStub();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (wrapper != null) {
+            wrapper.close();
+        }
+        first.close();
+        second.close();
+    }
+
+    private static Map<String, Object> event(int n) {
+        return Collections.singletonMap("n", n);
+    }
+
+    private static Set<Long> numbers(ForwardServerStub... servers) {
+        final Set<Long> numbers = new HashSet<>();
+        for (ForwardServerStub server : servers) {
+            for (ForwardServerStub.Entry entry : server.entries()) {
+                numbers.add((Long) entry.record.get("n"));
+            }
+        }
+        return numbers;
+    }
+
+    @Test
+    public void should_spread_batches_by_weight() throws InterruptedException {
+        wrapper = SingleThreadWrapper.builder(ForwardCluster.builder()
+                .node(new ForwardSender("localhost", first.port()), 1)
+                .node(new ForwardSender("localhost", second.port()), 3)
+                .queuedBatches(64)
+                .build())
+                .batch(1, 10, TimeUnit.SECONDS)
+                .build();
+        for (int i = 0; i < 40; i++) {
+            wrapper.log("feign", event(i), 0L);
+        }
+        wrapper.flush();
+
+        assertThat(first.awaitEntries(10).size(), is(10));
+        assertThat(second.awaitEntries(30).size(), is(30));
+    }
+
+    @Test
+    public void should_keep_a_tag_on_one_node() throws InterruptedException {
+        wrapper = SingleThreadWrapper.builder(ForwardCluster.builder()
+                .node(new ForwardSender("localhost", first.port()))
+                .node(new ForwardSender("localhost", second.port()))
+                .routing(ForwardCluster.Routing.CONSISTENT_HASH)
+                .queuedBatches(128)
+                .build())
+                .batch(1, 10, TimeUnit.SECONDS)
+                .build();
+        for (int i = 0; i < 80; i++) {
+            wrapper.log("tag" + i % 8, event(i), 0L);
+        }
+        wrapper.flush();
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (first.entries().size() + second.entries().size() < 80 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        final Map<String, ForwardServerStub> owners = new HashMap<>();
+        for (ForwardServerStub server : new ForwardServerStub[]{first, second}) {
+            for (ForwardServerStub.Message message : server.messages()) {
+                final ForwardServerStub owner = owners.putIfAbsent(message.tag, server);
+                assertThat(owner == null || owner == server, is(true));
+            }
+        }
+        assertThat(owners.size(), is(8));
+        assertThat(first.entries().size() + second.entries().size(), is(80));
+    }
+
+    @Test
+    public void should_spread_only_different_tags_by_hash() throws InterruptedException {
+        wrapper = SingleThreadWrapper.builder(ForwardCluster.builder()
+                .node(new ForwardSender("localhost", first.port()))
+                .node(new ForwardSender("localhost", second.port()))
+                .routing(ForwardCluster.Routing.CONSISTENT_HASH)
+                .queuedBatches(128)
+                .build())
+                .batch(1, 10, TimeUnit.SECONDS)
+                .build();
+        for (int i = 0; i < 32; i++) {
+            wrapper.log("feign", event(i), 0L);
+        }
+        wrapper.flush();
+        awaitEntries(32);
+        assertThat(first.entries().isEmpty() || second.entries().isEmpty(), is(true));
+
+        for (int i = 32; i < 96; i++) {
+            wrapper.log("tag" + i % 32, event(i), 0L);
+        }
+        wrapper.flush();
+        awaitEntries(96);
+        assertThat(first.entries().size() > 0 && second.entries().size() > 0, is(true));
+        assertThat(numbers(first, second).size(), is(96));
+    }
+
+    private void awaitEntries(int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (first.entries().size() + second.entries().size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void should_fail_over_and_take_back_a_node_that_recovers() throws Exception {
+        wrapper = SingleThreadWrapper.builder(ForwardCluster.builder()
+                .node(new ForwardSender("localhost", first.port()).withAcks(8, 100, TimeUnit.MILLISECONDS))
+                .node(new ForwardSender("localhost", second.port()).withAcks(8, 100, TimeUnit.MILLISECONDS))
+                .healthCheckInterval(50, TimeUnit.MILLISECONDS)
+                .queuedBatches(64)
+                .build())
+                .batch(1, 10, TimeUnit.SECONDS)
+                .build();
+        for (int i = 0; i < 10; i++) {
+            wrapper.log("feign", event(i), 0L);
+        }
+        wrapper.flush();
+        first.awaitEntries(5);
+        second.awaitEntries(5);
+
+        final int port = first.port();
+        first.close();
+        for (int i = 10; i < 30; i++) {
+            wrapper.log("feign", event(i), 0L);
+        }
+        wrapper.flush();
+        second.awaitEntries(15);
+
+        first = new ForwardServerStub(port);
+        Thread.sleep(200);
+        for (int i = 30; i < 40; i++) {
+            wrapper.log("feign", event(i), 0L);
+        }
+        wrapper.flush();
+        first.awaitEntries(1);
+        wrapper.close(5, TimeUnit.SECONDS);
+
+        final Set<Long> delivered = numbers(first, second);
+        for (long n = 10; n < 40; n++) {
+            assertThat(delivered.contains(n), is(true));
+        }
+        assertThat(wrapper.sendFailures(), is(0L));
+        assertThat(first.entries().isEmpty(), is(false));
+    }
+
+    @Test
+    public void should_move_traffic_off_a_dead_node_before_its_ack_window_fills() throws Exception {
+        wrapper = SingleThreadWrapper.builder(ForwardCluster.builder()
+                .node(new ForwardSender("localhost", first.port()).withAcks(16, 100, TimeUnit.MILLISECONDS))
+                .node(new ForwardSender("localhost", second.port()).withAcks(16, 100, TimeUnit.MILLISECONDS))
+                .healthCheckInterval(10, TimeUnit.SECONDS)
+                .build())
+                .batch(1, 10, TimeUnit.SECONDS)
+                .build();
+        for (int i = 0; i < 10; i++) {
+            wrapper.log("feign", event(i), 0L);
+        }
+        assertThat(wrapper.flush(5, TimeUnit.SECONDS), is(true));
+        assertThat(wrapper.metrics().getEventsSent(), is(10L));
+
+        first.close();
+        for (int i = 10; i < 30; i++) {
+            wrapper.log("feign", event(i), 0L);
+            Thread.sleep(10);
+        }
+        wrapper.flush();
+
+        // the dead node takes batches until a write fails or an ack is overdue, far fewer than its window of 16
+        assertThat(second.awaitEntries(5 + 14).size() >= 5 + 14, is(true));
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (wrapper.metrics().getEventsSent() < 5 + second.entries().size() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        // only what was acknowledged counts as sent
+        assertThat(wrapper.metrics().getEventsSent(), is(5L + second.entries().size()));
+    }
+}
@@ -0,0 +1,229 @@
+package feign.fluentd;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class ForwardSenderTest {
+
+    private ForwardServerStub server;
+    private SingleThreadWrapper wrapper;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ForwardServerStub();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (wrapper != null) {
+            wrapper.close();
+        }
+        server.close();
+    }
+
+    private static Map<String, Object> event(int n) {
+        return Collections.singletonMap("n", n);
+    }
+
+    @Test
+    public void should_pack_events_of_a_tag_into_one_message() throws InterruptedException {
+        wrapper = SingleThreadWrapper.builder(new ForwardSender("localhost", server.port()))
+                .batch(100, 10, TimeUnit.SECONDS)
+                .build();
+        for (int i = 0; i < 10; i++) {
+            wrapper.log("feign", event(i), 1000L + i);
+        }
+        wrapper.flush();
+
+        final List<ForwardServerStub.Message> messages = server.awaitMessages(1);
+        assertThat(messages.size(), is(1));
+        final ForwardServerStub.Message message = messages.get(0);
+        assertThat(message.mode, is("PackedForward"));
+        assertThat(message.tag, is("feign"));
+        assertThat(message.option.get("size"), is(10L));
+        assertThat(message.entries.size(), is(10));
+        assertThat(message.entries.get(3).time, is(1003L));
+        assertThat(message.entries.get(3).record.get("n"), is(3L));
+    }
+
+    @Test
+    public void should_split_batches_per_tag_in_forward_mode() throws InterruptedException {
+        wrapper = SingleThreadWrapper.builder(
+                new ForwardSender("localhost", server.port(), ForwardSender.Mode.FORWARD, 1000))
+                .batch(100, 10, TimeUnit.SECONDS)
+                .build();
+        wrapper.log("a", event(1), 0L);
+        wrapper.log("b", event(2), 0L);
+        wrapper.log("a", event(3), 0L);
+        wrapper.flush();
+
+        final List<ForwardServerStub.Message> messages = server.awaitMessages(2);
+        assertThat(messages.size(), is(2));
+        for (ForwardServerStub.Message message : messages) {
+            assertThat(message.mode, is("Forward"));
+            assertThat(message.entries.size(), is(message.tag.equals("a") ? 2 : 1));
+        }
+    }
+
+    @Test
+    public void should_send_when_batch_is_full_or_linger_expires() throws InterruptedException {
+        wrapper = SingleThreadWrapper.builder(new ForwardSender("localhost", server.port()))
+                .batch(5, 50, TimeUnit.MILLISECONDS)
+                .build();
+        for (int i = 0; i < 12; i++) {
+            wrapper.log("feign", event(i), 0L);
+        }
+
+        assertThat(server.awaitEntries(12).size(), is(12));
+        assertThat(server.messages().size() >= 3, is(true));
+        for (ForwardServerStub.Message message : server.messages()) {
+            assertThat(message.entries.size() <= 5, is(true));
+        }
+    }
+
+    @Test
+    public void should_stamp_events_with_event_time() throws InterruptedException {
+        wrapper = SingleThreadWrapper.builder(new ForwardSender("localhost", server.port()).withEventTime())
+                .batch(100, 10, TimeUnit.SECONDS)
+                .build();
+        wrapper.logMillis("feign", event(1), 1_500_000_000_250L);
+        wrapper.log("feign", event(2), 1_500_000_001L);
+        wrapper.flush();
+
+        final List<ForwardServerStub.Entry> entries = server.awaitEntries(2);
+        final ForwardServerStub.EventTime first = (ForwardServerStub.EventTime) entries.get(0).time;
+        assertThat(first.seconds, is(1_500_000_000L));
+        assertThat(first.nanos, is(250_000_000L));
+        final ForwardServerStub.EventTime second = (ForwardServerStub.EventTime) entries.get(1).time;
+        assertThat(second.seconds, is(1_500_000_001L));
+        assertThat(second.nanos, is(0L));
+    }
+
+    @Test
+    public void should_gzip_batches_from_the_minimum_size() throws InterruptedException {
+        wrapper = SingleThreadWrapper.builder(
+                new ForwardSender("localhost", server.port(), ForwardSender.Mode.COMPRESSED_PACKED_FORWARD, 1000)
+                        .withCompression(6, 1024))
+                .batch(100, 10, TimeUnit.SECONDS)
+                .build();
+        final String body = String.join("", Collections.nCopies(200, "{\"id\":1}"));
+        wrapper.log("small", Collections.singletonMap("body", "{}"), 0L);
+        wrapper.flush();
+        for (int i = 0; i < 10; i++) {
+            wrapper.log("large", Collections.singletonMap("body", body), 1000L + i);
+        }
+        wrapper.flush();
+
+        final List<ForwardServerStub.Message> messages = server.awaitMessages(2);
+        assertThat(messages.get(0).mode, is("PackedForward"));
+        final ForwardServerStub.Message large = messages.get(1);
+        assertThat(large.mode, is("CompressedPackedForward"));
+        assertThat(large.option.get("size"), is(10L));
+        assertThat(large.entries.size(), is(10));
+        assertThat(large.entries.get(9).time, is(1009L));
+        assertThat(large.entries.get(9).record.get("body"), is(body));
+        assertThat(wrapper.metrics().getBytesSentByTag().get("large") < 10L * body.length(), is(true));
+    }
+
+    @Test
+    public void should_count_events_of_failed_batches() throws IOException {
+        final int port = server.port();
+        server.close();
+        wrapper = SingleThreadWrapper.builder(new ForwardSender("localhost", port))
+                .batch(100, 10, TimeUnit.SECONDS)
+                .build();
+        wrapper.log("feign", event(1), 0L);
+        wrapper.log("feign", event(2), 0L);
+        wrapper.flush();
+
+        assertThat(wrapper.sendFailures(), is(2L));
+    }
+
+    @Test
+    public void should_write_unacknowledged_chunks_again() throws InterruptedException {
+        server.ignoreAcks(true);
+        wrapper = SingleThreadWrapper.builder(
+                new ForwardSender("localhost", server.port()).withAcks(8, 100, TimeUnit.MILLISECONDS))
+                .batch(100, 10, TimeUnit.SECONDS)
+                .build();
+        wrapper.log("feign", event(1), 0L);
+        wrapper.log("feign", event(2), 0L);
+        assertThat(wrapper.flush(50, TimeUnit.MILLISECONDS), is(false));
+
+        final List<ForwardServerStub.Message> messages = server.awaitMessages(2);
+        server.ignoreAcks(false);
+        assertThat(wrapper.flush(5, TimeUnit.SECONDS), is(true));
+        final Object chunk = messages.get(0).option.get("chunk");
+        assertThat(chunk instanceof String, is(true));
+        assertThat(messages.get(1).option.get("chunk"), is(chunk));
+        assertThat(messages.get(1).entries.size(), is(2));
+        assertThat(wrapper.sendFailures(), is(0L));
+    }
+
+    @Test
+    public void should_count_unacknowledged_events_as_failed_on_close() throws IOException {
+        final int port = server.port();
+        server.close();
+        final SingleThreadWrapper closed = SingleThreadWrapper.builder(
+                new ForwardSender("localhost", port).withAcks(8, 100, TimeUnit.MILLISECONDS))
+                .batch(100, 10, TimeUnit.SECONDS)
+                .build();
+        closed.log("feign", event(1), 0L);
+        closed.log("feign", event(2), 0L);
+        assertThat(closed.flush(200, TimeUnit.MILLISECONDS), is(false));
+        closed.close(100, TimeUnit.MILLISECONDS);
+
+        assertThat(closed.sendFailures(), is(2L));
+    }
+
+    @Test
+    public void should_close_in_time_when_acks_never_come() throws InterruptedException {
+        server.ignoreAcks(true);
+        final SingleThreadWrapper stalled = SingleThreadWrapper.builder(
+                new ForwardSender("localhost", server.port()).withAcks(2, 10, TimeUnit.SECONDS))
+                .batch(1, 10, TimeUnit.SECONDS)
+                .build();
+        for (int i = 0; i < 10; i++) {
+            stalled.log("feign", event(i), 0L);
+        }
+        server.awaitMessages(2);
+
+        final long start = System.nanoTime();
+        stalled.close(200, TimeUnit.MILLISECONDS);
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertThat(elapsedMillis < 1000, is(true));
+        assertThat(stalled.sendFailures(), is(10L));
+    }
+
+    @Test
+    public void should_read_an_ack_that_arrives_in_parts_once() throws IOException, InterruptedException {
+        server.splitAcks(100);
+        final ForwardSender sender = new ForwardSender("localhost", server.port())
+                .withAcks(8, 5, TimeUnit.SECONDS);
+        try {
+            final EventBatch batch = new EventBatch("feign");
+            batch.add(1000L, event(1));
+            sender.send(batch);
+            // leaves a short read timeout behind, and the first part of the ack may have arrived
+            sender.awaitAcks(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2), false);
+            Thread.sleep(20);
+            sender.service();
+
+            assertThat(sender.awaitAcks(System.nanoTime() + TimeUnit.SECONDS.toNanos(5), false), is(true));
+            assertThat(server.messages().size(), is(1));
+        } finally {
+            sender.close();
+        }
+    }
+}
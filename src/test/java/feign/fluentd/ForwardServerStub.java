@@ -0,0 +1,345 @@
+package feign.fluentd;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process stand-in for a Fluentd {@code in_forward} input: accepts connections on an ephemeral port and
+ * decodes every Message, Forward, PackedForward and CompressedPackedForward message it receives. Messages
+ * with a {@code chunk} option are acknowledged, unless {@link #ignoreAcks} simulates acks getting lost;
+ * {@link #splitAcks} makes them arrive in two parts.
+ */
+final class ForwardServerStub implements Closeable {
+
+    static final class Message {
+        final String mode;
+        final String tag;
+        final List<Entry> entries;
+        final Map<Object, Object> option;
+
+        Message(String mode, String tag, List<Entry> entries, Map<Object, Object> option) {
+            this.mode = mode;
+            this.tag = tag;
+            this.entries = entries;
+            this.option = option;
+        }
+    }
+
+    static final class Entry {
+        final Object time;
+        final Map<Object, Object> record;
+
+        Entry(Object time, Map<Object, Object> record) {
+            this.time = time;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Fluentd's EventTime, the ext type 0 of MessagePack.
+     */
+    static final class EventTime {
+        final long seconds;
+        final long nanos;
+
+        EventTime(long seconds, long nanos) {
+            this.seconds = seconds;
+            this.nanos = nanos;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final List<Socket> connections = new CopyOnWriteArrayList<>();
+    private final List<Message> messages = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+    private volatile boolean ignoreAcks;
+    private volatile long ackPauseMillis;
+
+    ForwardServerStub() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Listens on {@code port}, for example to bring back a Fluentd that went away.
+     */
+    ForwardServerStub(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+        final Thread acceptor = new Thread(this::acceptLoop, "forward-stub-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Stops (or resumes) acknowledging chunks, as if the acks got lost on the way.
+     */
+    void ignoreAcks(boolean ignore) {
+        this.ignoreAcks = ignore;
+    }
+
+    /**
+     * Writes the first bytes of every ack, then the rest after {@code millis}, as a slow network might.
+     */
+    void splitAcks(long millis) {
+        this.ackPauseMillis = millis;
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    List<Message> messages() {
+        return messages;
+    }
+
+    List<Entry> entries() {
+        final List<Entry> entries = new ArrayList<>();
+        for (Message message : messages) {
+            entries.addAll(message.entries);
+        }
+        return entries;
+    }
+
+    /**
+     * Waits until at least {@code count} entries arrived.
+     */
+    List<Entry> awaitEntries(int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (entries().size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        return entries();
+    }
+
+    List<Message> awaitMessages(int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (messages.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        return messages;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connections.add(socket);
+                final Thread reader = new Thread(() -> readLoop(socket), "forward-stub-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        try (Socket ignored = socket) {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final OutputStream out = socket.getOutputStream();
+            final MessagePackWriter ack = new MessagePackWriter(64);
+            while (running) {
+                final Message message = toMessage((List<?>) read(in));
+                messages.add(message);
+                final Object chunk = message.option.get("chunk");
+                if (chunk != null && !ignoreAcks) {
+                    ack.reset();
+                    ack.writeMapHeader(1);
+                    ack.writeString("ack");
+                    ack.writeString((String) chunk);
+                    writeAck(ack, out);
+                }
+            }
+        } catch (EOFException e) {
+            // client went away
+        } catch (IOException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void writeAck(MessagePackWriter ack, OutputStream out) throws IOException {
+        final long pause = ackPauseMillis;
+        if (pause == 0) {
+            ack.writeTo(out);
+            out.flush();
+            return;
+        }
+        out.write(ack.buffer(), 0, 2);
+        out.flush();
+        try {
+            Thread.sleep(pause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        out.write(ack.buffer(), 2, ack.size() - 2);
+        out.flush();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Message toMessage(List<?> message) throws IOException {
+        final String tag = (String) message.get(0);
+        final Object second = message.get(1);
+        final List<Entry> entries = new ArrayList<>();
+        if (second instanceof List) {
+            for (Object entry : (List<?>) second) {
+                entries.add(toEntry((List<?>) entry));
+            }
+            return new Message("Forward", tag, entries, option(message, 2));
+        }
+        if (second instanceof byte[] || second instanceof String) {
+            final byte[] packed = second instanceof byte[] ? (byte[]) second
+                    : ((String) second).getBytes(StandardCharsets.UTF_8);
+            final Map<Object, Object> option = option(message, 2);
+            final boolean compressed = "gzip".equals(option.get("compressed"));
+            final DataInputStream in = new DataInputStream(compressed
+                    ? new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(packed)))
+                    : new ByteArrayInputStream(packed));
+            while (true) {
+                in.mark(1);
+                if (in.read() < 0) {
+                    break;
+                }
+                in.reset();
+                entries.add(toEntry((List<?>) read(in)));
+            }
+            return new Message(compressed ? "CompressedPackedForward" : "PackedForward", tag, entries, option);
+        }
+        entries.add(new Entry(second, (Map<Object, Object>) message.get(2)));
+        return new Message("Message", tag, entries, option(message, 3));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Entry toEntry(List<?> entry) {
+        return new Entry(entry.get(0), (Map<Object, Object>) entry.get(1));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Object, Object> option(List<?> message, int index) {
+        return message.size() > index ? (Map<Object, Object>) message.get(index) : Collections.emptyMap();
+    }
+
+    /**
+     * Decodes one MessagePack value: maps become {@link LinkedHashMap}s, arrays {@link List}s, integers
+     * {@link Long}s, str {@link String}s, bin {@code byte[]} and EventTime {@link EventTime}s.
+     */
+    static Object read(DataInputStream in) throws IOException {
+        final int b = in.readUnsignedByte();
+        if (b <= 0x7f) {
+            return (long) b;
+        } else if (b <= 0x8f) {
+            return readMap(in, b & 0x0f);
+        } else if (b <= 0x9f) {
+            return readArray(in, b & 0x0f);
+        } else if (b <= 0xbf) {
+            return readString(in, b & 0x1f);
+        } else if (b >= 0xe0) {
+            return (long) (byte) b;
+        }
+        switch (b) {
+            case 0xc0:
+                return null;
+            case 0xc2:
+                return false;
+            case 0xc3:
+                return true;
+            case 0xc4:
+                return readBytes(in, in.readUnsignedByte());
+            case 0xc5:
+                return readBytes(in, in.readUnsignedShort());
+            case 0xc6:
+                return readBytes(in, in.readInt());
+            case 0xca:
+                return (double) in.readFloat();
+            case 0xcb:
+                return in.readDouble();
+            case 0xcc:
+                return (long) in.readUnsignedByte();
+            case 0xcd:
+                return (long) in.readUnsignedShort();
+            case 0xce:
+                return in.readInt() & 0xffffffffL;
+            case 0xcf:
+            case 0xd3:
+                return in.readLong();
+            case 0xd0:
+                return (long) in.readByte();
+            case 0xd1:
+                return (long) in.readShort();
+            case 0xd2:
+                return (long) in.readInt();
+            case 0xd7:
+                if (in.readByte() != 0) {
+                    throw new IOException("unsupported ext type");
+                }
+                return new EventTime(in.readInt() & 0xffffffffL, in.readInt() & 0xffffffffL);
+            case 0xd9:
+                return readString(in, in.readUnsignedByte());
+            case 0xda:
+                return readString(in, in.readUnsignedShort());
+            case 0xdb:
+                return readString(in, in.readInt());
+            case 0xdc:
+                return readArray(in, in.readUnsignedShort());
+            case 0xdd:
+                return readArray(in, in.readInt());
+            case 0xde:
+                return readMap(in, in.readUnsignedShort());
+            case 0xdf:
+                return readMap(in, in.readInt());
+            default:
+                throw new IOException("unsupported MessagePack type 0x" + Integer.toHexString(b));
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static String readString(DataInputStream in, int length) throws IOException {
+        return new String(readBytes(in, length), StandardCharsets.UTF_8);
+    }
+
+    private static List<Object> readArray(DataInputStream in, int size) throws IOException {
+        final List<Object> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(read(in));
+        }
+        return list;
+    }
+
+    private static Map<Object, Object> readMap(DataInputStream in, int size) throws IOException {
+        final Map<Object, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(read(in), read(in));
+        }
+        return map;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        for (Socket connection : connections) {
+            connection.close();
+        }
+    }
+}
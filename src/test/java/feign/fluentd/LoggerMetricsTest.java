@@ -0,0 +1,165 @@
+package feign.fluentd;
+
+import feign.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class LoggerMetricsTest {
+
+    private ForwardServerStub server;
+    private SingleThreadWrapper wrapper;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ForwardServerStub();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (wrapper != null) {
+            wrapper.close();
+        }
+        server.close();
+    }
+
+    private static Map<String, Object> event(int n) {
+        return Collections.singletonMap("n", n);
+    }
+
+    @Test
+    public void should_keep_percentiles_within_bucket_precision() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), is(1000L));
+        assertThat(snapshot.getMeanNanos(), is(500_500L));
+        assertThat(snapshot.getMaxNanos(), is(1_000_000L));
+        final long p50 = snapshot.getP50Nanos();
+        assertThat("p50 " + p50, p50 >= 500_000 && p50 <= 500_000 * 1.125, is(true));
+        final long p99 = snapshot.getP99Nanos();
+        assertThat("p99 " + p99, p99 >= 990_000 && p99 <= 1_000_000, is(true));
+    }
+
+    @Test
+    public void should_count_events_and_bytes_sent_per_tag() throws InterruptedException {
+        final AtomicLong listenedEvents = new AtomicLong();
+        wrapper = SingleThreadWrapper.builder(new ForwardSender("localhost", server.port()))
+                .batch(100, 10, TimeUnit.SECONDS)
+                .metricsListener(new MetricsListener() {
+                    @Override
+                    public void onSent(String tag, int events, long bytes, long nanos) {
+                        listenedEvents.addAndGet(events);
+                    }
+                })
+                .build();
+        for (int i = 0; i < 5; i++) {
+            wrapper.log("a", event(i), 1000L);
+        }
+        wrapper.log("b", event(5), 1000L);
+        wrapper.flush();
+        server.awaitEntries(6);
+
+        final LoggerMetrics metrics = wrapper.metrics();
+        assertThat(metrics.getEventsSentByTag().get("a"), is(5L));
+        assertThat(metrics.getEventsSentByTag().get("b"), is(1L));
+        assertThat(metrics.getEventsSent(), is(6L));
+        assertThat(metrics.getBytesSent() > 6 * 10, is(true));
+        assertThat(metrics.getSendLatency().getCount(), is(2L));
+        assertThat(metrics.getEnqueueLatency().getCount(), is(6L));
+        // logged straight to the wrapper, not built by a FluentdLogger
+        assertThat(metrics.getEncodeTime().getCount(), is(0L));
+        assertThat(metrics.getSendFailures(), is(0L));
+        assertThat(listenedEvents.get(), is(6L));
+    }
+
+    @Test
+    public void should_expose_metrics_through_jmx() throws Exception {
+        wrapper = SingleThreadWrapper.builder(new ForwardSender("localhost", server.port()))
+                .batch(100, 10, TimeUnit.SECONDS)
+                .registerMBean("test")
+                .build();
+        wrapper.log("a", event(0), 1000L);
+        wrapper.flush();
+        server.awaitEntries(1);
+
+        final MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName("feign.fluentd:type=SingleThreadWrapper,name=\"test\"");
+        assertThat(mbeans.getAttribute(name, "EventsSent"), is(1L));
+        assertThat(mbeans.getAttribute(name, "QueueDepth"), is(0));
+        assertThat(((CompositeData) mbeans.getAttribute(name, "SendLatency")).get("count"), is(1L));
+
+        wrapper.close();
+        assertThat(mbeans.isRegistered(name), is(false));
+    }
+
+    @Test
+    public void should_time_building_events_on_the_calling_thread_for_both_layouts() {
+        final List<Thread> encodingThreads = new CopyOnWriteArrayList<>();
+        wrapper = SingleThreadWrapper.builder(new ForwardSender("localhost", server.port()))
+                .metricsListener(new MetricsListener() {
+                    @Override
+                    public void onEncoded(long nanos) {
+                        encodingThreads.add(Thread.currentThread());
+                    }
+                })
+                .build();
+        new FluentdLogger(wrapper).logRetry("client#get()", Logger.Level.BASIC);
+        new FluentdLogger(wrapper).withMessagePackEncoding().logRetry("client#get()", Logger.Level.BASIC);
+
+        assertThat(wrapper.metrics().getEncodeTime().getCount(), is(2L));
+        assertThat(encodingThreads, is(asList(Thread.currentThread(), Thread.currentThread())));
+    }
+
+    @Test
+    public void should_report_failed_sends_at_most_once_per_interval() {
+        final List<LogRecord> records = new CopyOnWriteArrayList<>();
+        final Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                records.add(record);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        final java.util.logging.Logger log = java.util.logging.Logger.getLogger(LoggerMetrics.class.getName());
+        log.addHandler(handler);
+        try {
+            final LoggerMetrics metrics = new LoggerMetrics(() -> 0, null);
+            for (int i = 0; i < 3; i++) {
+                metrics.onSendFailed("feign", 2, new IOException("refused"));
+            }
+            assertThat(metrics.getSendFailures(), is(6L));
+            assertThat(records.size(), is(1));
+            assertThat(records.get(0).getThrown().getMessage(), is("refused"));
+        } finally {
+            log.removeHandler(handler);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package feign.fluentd;
+
+import feign.Logger;
+import feign.Request;
+import feign.RequestTemplate;
+import feign.Response;
+import feign.Util;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class MessagePackEncodingTest {
+    private static final Request REQUEST =
+            new RequestTemplate().method(Request.HttpMethod.POST.toString())
+                    .append("http://api.example.com/path?q=1")
+                    .resolve(Collections.emptyMap())
+                    .header("test", "111", "222")
+                    .body("some body")
+                    .request();
+    private static final Response RESPONSE =
+            Response.builder()
+                    .status(200)
+                    .reason("OK")
+                    .request(Request.create(Request.HttpMethod.GET, "/api", Collections.emptyMap(), null, Util.UTF_8))
+                    .headers(new HashMap<String, Collection<String>>() {{
+                        put("test", asList("aaa"));
+                    }})
+                    .body("some bödy", Charset.forName("utf-8"))
+                    .build();
+    private static final String CONFIG_KEY = "client#method()";
+    private static final Map<Object, Object> META_MAP = new HashMap<Object, Object>() {{
+        put("client", "client");
+        put("method", "method");
+    }};
+
+    private ForwardServerStub server;
+    private SingleThreadWrapper wrapper;
+    private FluentdLogger fluentdLogger;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ForwardServerStub();
+        wrapper = SingleThreadWrapper.builder(new ForwardSender("localhost", server.port()))
+                .batch(100, 10, TimeUnit.SECONDS)
+                .build();
+        fluentdLogger = new FluentdLogger(wrapper).withMessagePackEncoding();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        wrapper.close();
+        server.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Object, Object> single(String type) throws InterruptedException {
+        wrapper.flush();
+        final List<ForwardServerStub.Entry> entries = server.awaitEntries(1);
+        assertThat(entries.size(), is(1));
+        assertThat(server.messages().get(0).tag, is("feign"));
+        final Map<Object, Object> record = entries.get(0).record;
+        assertThat(record.keySet(), is(Collections.<Object>singleton(type)));
+        return (Map<Object, Object>) record.get(type);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void should_encode_request_like_map_layout() throws InterruptedException {
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.FULL, REQUEST);
+        final Map<Object, Object> request = single("request");
+        final Map<Object, Object> uri = (Map<Object, Object>) request.get("uri");
+        assertThat(uri.get("host"), is("api.example.com"));
+        assertThat(uri.get("path"), is("/path"));
+        assertThat(uri.get("port"), is(-1L));
+        assertThat(uri.get("scheme"), is("http"));
+        assertThat(uri.get("query"), is("q=1"));
+        assertThat(request.get("method"), is("POST"));
+        assertThat(((Map<Object, Object>) request.get("headers")).get("test"), is(asList((Object) "111", "222")));
+        assertThat(request.get("body"), is("some body"));
+        assertThat(request.get("body-bytes"), is(9L));
+        assertThat(request.get("meta"), is(META_MAP));
+    }
+
+    @Test
+    public void should_encode_response_like_map_layout() throws IOException, InterruptedException {
+        final Response rebuffered =
+                fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.FULL, RESPONSE, 1000L);
+        assertThat(Util.toString(rebuffered.body().asReader()), is("some bödy"));
+
+        final Map<Object, Object> response = single("response");
+        assertThat(response.get("status"), is(200L));
+        assertThat(response.get("reason"), is(" OK"));
+        assertThat(response.get("elapsedTimeMs"), is(1000L));
+        assertThat(response.get("body"), is("some bödy"));
+        assertThat(response.get("body-bytes"), is(10L));
+        assertThat(response.get("meta"), is(META_MAP));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void should_encode_filtered_headers() throws InterruptedException {
+        final Request request = new RequestTemplate().method(Request.HttpMethod.GET.toString())
+                .append("http://api.example.com/path")
+                .resolve(Collections.emptyMap())
+                .header("Cookie", "session=1")
+                .header("test", "111")
+                .header("X-Api-Key", "k1", "k1")
+                .request();
+        fluentdLogger.withHeaderFilter(HeaderFilter.builder().deny("cookie").hash("x-api-key").build());
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.HEADERS, request);
+
+        final Map<Object, Object> headers = (Map<Object, Object>) single("request").get("headers");
+        assertThat(headers.size(), is(2));
+        assertThat(headers.get("test"), is(asList((Object) "111")));
+        final List<Object> hashed = (List<Object>) headers.get("x-api-key");
+        assertThat(hashed.size(), is(2));
+        assertThat(((String) hashed.get(0)).startsWith(HeaderFilter.HASH_PREFIX), is(true));
+        assertThat(hashed.get(1), is(hashed.get(0)));
+    }
+
+    @Test
+    public void should_encode_io_exception_like_map_layout() throws InterruptedException {
+        fluentdLogger.logIOException(CONFIG_KEY, Logger.Level.FULL, new IOException(), 10L);
+        final Map<Object, Object> exception = single("io_exception");
+        assertThat(exception.get("name"), is("IOException"));
+        assertThat(exception.containsKey("message"), is(true));
+        assertThat(exception.get("message"), nullValue());
+        assertThat(exception.get("details"), notNullValue());
+        assertThat(exception.get("meta"), is(META_MAP));
+    }
+
+    @Test
+    public void should_encode_retry() throws InterruptedException {
+        fluentdLogger.logRetry(CONFIG_KEY, Logger.Level.FULL);
+        assertThat(single("retry").get("meta"), is(META_MAP));
+    }
+
+    @Test
+    public void should_not_allocate_per_event_once_warm() throws IOException {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final Response response = RESPONSE.toBuilder().body((Response.Body) null).build();
+        for (int i = 0; i < 20_000; i++) {
+            fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.BASIC, REQUEST);
+            fluentdLogger.logRetry(CONFIG_KEY, Logger.Level.BASIC);
+            fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.HEADERS, response, 1L);
+        }
+        final int calls = 10_000;
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < calls; i++) {
+            fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.BASIC, REQUEST);
+            fluentdLogger.logRetry(CONFIG_KEY, Logger.Level.BASIC);
+            fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.HEADERS, response, 1L);
+        }
+        final long perCall = (threads.getThreadAllocatedBytes(threadId) - before) / (3 * calls);
+        assertThat("bytes allocated per event: " + perCall, perCall < 256, is(true));
+    }
+}
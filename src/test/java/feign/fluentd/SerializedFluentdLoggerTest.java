@@ -15,14 +15,22 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static java.util.Arrays.asList;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
 import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
 
 public class SerializedFluentdLoggerTest {
     private static final Request REQUEST =
@@ -67,7 +75,8 @@ public class SerializedFluentdLoggerTest {
     @Test
     public void should_log_as_whole() throws IOException {
         fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.FULL, REQUEST);
-        fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.FULL, RESPONSE, 100L);
+        fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.FULL,
+                RESPONSE.toBuilder().request(REQUEST).build(), 100L);
         verify(trueLogger).log(eq("feign"), captor.capture(), anyLong());
         final Map<String, Object> value = captor.getValue();
         assertThat(value, notNullValue());
@@ -120,4 +129,194 @@ public class SerializedFluentdLoggerTest {
         assertThat(dirty, notNullValue());
         assertThat(dirty.get("retry"), notNullValue());
     }
+
+    private static Request copy(Request request) {
+        return Request.create(request.httpMethod(), request.url(), request.headers(), request.body(),
+                request.charset());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void should_join_response_logged_on_another_thread() throws Exception {
+        final Response response = RESPONSE.toBuilder().request(REQUEST).build();
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.FULL, REQUEST);
+        final Thread other = new Thread(() -> {
+            try {
+                fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.FULL, response, 100L);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        other.start();
+        other.join();
+        verify(trueLogger).log(eq("feign"), captor.capture(), anyLong());
+        final Map<String, Object> value = captor.getValue();
+        assertThat(((Map<String, Object>) value.get("request")).get("method"), is("POST"));
+        assertThat(((Map<String, Object>) value.get("response")).get("elapsedTimeMs"), is(100L));
+        assertThat(value.get("dirty_context"), nullValue());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void should_not_pair_a_response_with_another_calls_request() throws IOException {
+        final Request other = copy(REQUEST);
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.FULL, REQUEST);
+        fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.FULL,
+                RESPONSE.toBuilder().status(200).request(other).build(), 10L);
+        fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.FULL,
+                RESPONSE.toBuilder().status(201).request(REQUEST).build(), 10L);
+
+        verify(trueLogger, times(2)).log(eq("feign"), captor.capture(), anyLong());
+        final Map<String, Object> unknown = captor.getAllValues().get(0);
+        assertThat(unknown.get("request"), nullValue());
+        assertThat(((Map<String, Object>) unknown.get("response")).get("status"), is(200));
+        final Map<String, Object> paired = captor.getAllValues().get(1);
+        assertThat(((Map<String, Object>) paired.get("request")).get("method"), is("POST"));
+        assertThat(((Map<String, Object>) paired.get("response")).get("status"), is(201));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void should_flush_expired_call_as_dirty_context() throws InterruptedException {
+        fluentdLogger.withCorrelation(100, 1, TimeUnit.MILLISECONDS);
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.FULL, REQUEST);
+        Thread.sleep(10);
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.FULL, copy(REQUEST));
+        verify(trueLogger).log(eq("feign"), captor.capture(), anyLong());
+        final Map<String, Object> dirty = (Map<String, Object>) captor.getValue().get("dirty_context");
+        assertThat(((Map<String, Object>) dirty.get("request")).get("method"), is("POST"));
+        assertThat(captor.getValue().get("meta_data"), is(META_MAP));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void should_evict_expired_calls_without_a_new_request() throws InterruptedException {
+        fluentdLogger.withCorrelation(100, 1, TimeUnit.MILLISECONDS);
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.FULL, REQUEST);
+        Thread.sleep(10);
+        fluentdLogger.logRetry(CONFIG_KEY, Logger.Level.FULL);
+        verify(trueLogger).log(eq("feign"), captor.capture(), anyLong());
+        final Map<String, Object> dirty = (Map<String, Object>) captor.getValue().get("dirty_context");
+        assertThat(((Map<String, Object>) dirty.get("request")).get("method"), is("POST"));
+    }
+
+    @Test
+    public void should_bound_pending_calls() {
+        fluentdLogger.withCorrelation(4, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 5; i++) {
+            fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.BASIC, copy(REQUEST));
+        }
+        verify(trueLogger, times(2)).log(eq("feign"), captor.capture(), anyLong());
+        assertThat(captor.getAllValues().get(0).get("dirty_context"), notNullValue());
+    }
+
+    @Test
+    public void should_drop_sampled_out_calls_without_reading_the_response() throws IOException {
+        final TailSampling sampling = TailSampling.builder().keepRate(0).build();
+        fluentdLogger.withTailSampling(sampling);
+        final Response.Body body = mock(Response.Body.class);
+        final Response response = RESPONSE.toBuilder().request(REQUEST).body(body).build();
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.FULL, REQUEST);
+
+        assertThat(fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.FULL, response, 10L),
+                is(response));
+        verifyZeroInteractions(trueLogger, body);
+        assertThat(sampling.droppedCalls(), is(1L));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void should_keep_errors_and_decode_the_deferred_request_body() throws IOException {
+        fluentdLogger.withTailSampling(TailSampling.builder().keepRate(0).build());
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.FULL, REQUEST);
+        fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.FULL,
+                RESPONSE.toBuilder().status(503).request(REQUEST).build(), 10L);
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.FULL, copy(REQUEST));
+        fluentdLogger.logRetry(CONFIG_KEY, Logger.Level.FULL);
+        fluentdLogger.logIOException(CONFIG_KEY, Logger.Level.FULL, new IOException("reset"), 10L);
+
+        verify(trueLogger, times(2)).log(eq("feign"), captor.capture(), anyLong());
+        final Map<String, Object> error = captor.getAllValues().get(0);
+        assertThat(((Map<String, Object>) error.get("request")).get("body"), is("some body"));
+        assertThat(((Map<String, Object>) error.get("response")).get("body"), is("some body"));
+        final Map<String, Object> failed = captor.getAllValues().get(1);
+        assertThat(((Map<String, Object>) failed.get("request")).get("body"), is("some body"));
+        assertThat(failed.get("io_exception"), notNullValue());
+    }
+
+    @Test
+    public void should_keep_client_errors_by_default() throws IOException {
+        fluentdLogger.withTailSampling(TailSampling.builder().keepRate(0).build());
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.BASIC, REQUEST);
+        fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.BASIC,
+                RESPONSE.toBuilder().status(404).request(REQUEST).build(), 10L);
+
+        verify(trueLogger).log(eq("feign"), anyMap(), anyLong());
+    }
+
+    @Test
+    public void should_not_sample_a_response_by_another_calls_retries() throws IOException {
+        final TailSampling sampling = TailSampling.builder().keepRate(0).build();
+        fluentdLogger.withTailSampling(sampling);
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.FULL, REQUEST);
+        fluentdLogger.logRetry(CONFIG_KEY, Logger.Level.FULL);
+
+        // a response to a request never logged here must not be taken for the retried call of this thread
+        fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.FULL,
+                RESPONSE.toBuilder().request(copy(REQUEST)).build(), 10L);
+        assertThat(sampling.droppedCalls(), is(1L));
+    }
+
+    @Test
+    public void should_close_the_circuit_breaker_on_a_probe_call() throws Exception {
+        final SinkCircuitBreaker breaker = SinkCircuitBreaker.builder()
+                .failureThreshold(1)
+                .openDuration(20, TimeUnit.MILLISECONDS)
+                .build();
+        fluentdLogger.withCircuitBreaker(breaker);
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.BASIC, REQUEST);
+        fluentdLogger.logIOException(CONFIG_KEY, Logger.Level.BASIC, new IOException("refused"), 10L);
+        assertThat(breaker.state(), is(SinkCircuitBreaker.State.OPEN));
+
+        Thread.sleep(30);
+        when(trueLogger.log(anyString(), anyMap(), anyLong())).thenReturn(true);
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.BASIC, REQUEST);
+        assertThat(breaker.state(), is(SinkCircuitBreaker.State.HALF_OPEN));
+        fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.BASIC,
+                RESPONSE.toBuilder().request(REQUEST).build(), 10L);
+        assertThat(breaker.state(), is(SinkCircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void should_end_calls_the_circuit_breaker_denies() throws Exception {
+        fluentdLogger.withCorrelation(100, 200, TimeUnit.MILLISECONDS);
+        fluentdLogger.withCircuitBreaker(SinkCircuitBreaker.builder()
+                .failureThreshold(1)
+                .openDuration(1, TimeUnit.MINUTES)
+                .build());
+        final Request pending = copy(REQUEST);
+        final Request denied = copy(REQUEST);
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.BASIC, pending);
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.BASIC, REQUEST);
+        fluentdLogger.logIOException(CONFIG_KEY, Logger.Level.BASIC, new IOException("refused"), 10L);
+        fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.BASIC,
+                RESPONSE.toBuilder().request(pending).build(), 10L);
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.BASIC, denied);
+        fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.BASIC,
+                RESPONSE.toBuilder().request(denied).build(), 10L);
+
+        Thread.sleep(300);
+        fluentdLogger.logRetry(CONFIG_KEY, Logger.Level.BASIC);
+        verify(trueLogger, times(1)).log(eq("feign"), anyMap(), anyLong());
+    }
+
+    @Test
+    public void should_ignore_message_pack_encoding() throws IOException {
+        assertThat(fluentdLogger.withMessagePackEncoding(), is(fluentdLogger));
+        fluentdLogger.logRequest(CONFIG_KEY, Logger.Level.BASIC, REQUEST);
+        fluentdLogger.logAndRebufferResponse(CONFIG_KEY, Logger.Level.BASIC,
+                RESPONSE.toBuilder().request(REQUEST).build(), 10L);
+
+        verify(trueLogger).log(eq("feign"), anyMap(), anyLong());
+    }
 }
@@ -0,0 +1,201 @@
+package feign.fluentd;
+
+import org.fluentd.logger.FluentLogger;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class SingleThreadWrapperTest {
+
+    private final CountDownLatch sending = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<Object> sent = new CopyOnWriteArrayList<>();
+    private final FluentLogger blockingLogger = new FluentLogger() {
+        @Override
+        public boolean log(String tag, Map<String, Object> data, long timestamp) {
+            sending.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sent.add(data.get("n"));
+            return true;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private SingleThreadWrapper wrapper;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (wrapper != null) {
+            wrapper.close();
+        }
+    }
+
+    private SingleThreadWrapper stalled(SingleThreadWrapper.Builder builder) throws InterruptedException {
+        wrapper = builder.capacity(4).build();
+        assertThat(wrapper.log("feign", event(0), 0L), is(true));
+        assertThat(sending.await(5, TimeUnit.SECONDS), is(true));
+        return wrapper;
+    }
+
+    private static Map<String, Object> event(int n) {
+        return Collections.singletonMap("n", n);
+    }
+
+    @Test
+    public void should_deliver_events_in_order() throws InterruptedException {
+        release.countDown();
+        wrapper = new SingleThreadWrapper(blockingLogger);
+        for (int i = 0; i < 100; i++) {
+            wrapper.log("feign", event(i), 0L);
+        }
+        wrapper.flush();
+        assertThat(sent.size(), is(100));
+        assertThat(sent.get(99), is(99));
+        assertThat(wrapper.droppedEvents(), is(0L));
+    }
+
+    @Test
+    public void should_drop_newest_when_full() throws InterruptedException {
+        stalled(SingleThreadWrapper.builder(blockingLogger).overflowPolicy(OverflowPolicy.DROP_NEWEST));
+        for (int i = 1; i <= 6; i++) {
+            wrapper.log("feign", event(i), 0L);
+        }
+        assertThat(wrapper.queueDepth(), is(4));
+        assertThat(wrapper.droppedNewest(), is(2L));
+
+        release.countDown();
+        wrapper.flush();
+        assertThat(sent, is(asList((Object) 0, 1, 2, 3, 4)));
+    }
+
+    @Test
+    public void should_drop_oldest_when_full() throws InterruptedException {
+        stalled(SingleThreadWrapper.builder(blockingLogger).overflowPolicy(OverflowPolicy.DROP_OLDEST));
+        for (int i = 1; i <= 6; i++) {
+            assertThat(wrapper.log("feign", event(i), 0L), is(true));
+        }
+        assertThat(wrapper.droppedOldest(), is(2L));
+
+        release.countDown();
+        wrapper.flush();
+        assertThat(sent, is(asList((Object) 0, 3, 4, 5, 6)));
+    }
+
+    @Test
+    public void should_give_up_blocking_after_timeout() throws InterruptedException {
+        stalled(SingleThreadWrapper.builder(blockingLogger)
+                .overflowPolicy(OverflowPolicy.BLOCK)
+                .blockTimeout(20, TimeUnit.MILLISECONDS));
+        for (int i = 1; i <= 4; i++) {
+            wrapper.log("feign", event(i), 0L);
+        }
+        final long start = System.nanoTime();
+        assertThat(wrapper.log("feign", event(5), 0L), is(false));
+        assertThat(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20), is(true));
+        assertThat(wrapper.droppedOnTimeout(), is(1L));
+    }
+
+    @Test
+    public void should_sample_under_pressure() throws InterruptedException {
+        stalled(SingleThreadWrapper.builder(blockingLogger)
+                .overflowPolicy(OverflowPolicy.SAMPLE)
+                .sampling(Integer.MAX_VALUE, 0.5));
+        for (int i = 1; i <= 10; i++) {
+            wrapper.log("feign", event(i), 0L);
+        }
+        assertThat(wrapper.queueDepth(), is(2));
+        assertThat(wrapper.droppedBySampling(), is(8L));
+        assertThat(wrapper.droppedEvents(), is(8L));
+    }
+
+    @Test
+    public void should_deliver_urgent_events_ahead_of_a_full_lane() throws InterruptedException {
+        stalled(SingleThreadWrapper.builder(blockingLogger).lanes(4, 4, 1024));
+        for (int i = 1; i <= 6; i++) {
+            wrapper.log("feign", event(i), 0L);
+        }
+        final Map<String, Object> failure = new HashMap<>();
+        failure.put("n", -1);
+        failure.put(LogType.io_exception.name(), Collections.emptyMap());
+        assertThat(wrapper.log("feign", failure, 0L), is(true));
+        assertThat(wrapper.droppedNewest(), is(2L));
+
+        release.countDown();
+        wrapper.flush();
+        assertThat(sent, is(asList((Object) 0, -1, 1, 2, 3, 4)));
+    }
+
+    @Test
+    public void should_leave_closing_the_real_logger_to_a_sender_thread_still_in_it() throws InterruptedException {
+        final CountDownLatch closed = new CountDownLatch(1);
+        final FluentLogger stuckLogger = new FluentLogger() {
+            @Override
+            public boolean log(String tag, Map<String, Object> data, long timestamp) {
+                sending.countDown();
+                boolean interrupted = false;
+                while (release.getCount() > 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }
+
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        };
+        final SingleThreadWrapper stuck = SingleThreadWrapper.builder(stuckLogger).build();
+        stuck.log("feign", event(0), 0L);
+        assertThat(sending.await(5, TimeUnit.SECONDS), is(true));
+
+        stuck.close(10, TimeUnit.MILLISECONDS);
+        assertThat(closed.getCount(), is(1L));
+        release.countDown();
+        assertThat(closed.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void should_refuse_batching_without_a_forward_sender() {
+        SingleThreadWrapper.builder(blockingLogger).batch(100, 1, TimeUnit.SECONDS).build();
+    }
+
+    @Test
+    public void should_release_the_clock_once_closed() {
+        final int users = CachedClock.users();
+        wrapper = new SingleThreadWrapper(blockingLogger);
+        assertThat(CachedClock.users(), is(users + 1));
+        wrapper.close();
+        wrapper.close();
+        assertThat(CachedClock.users(), is(users));
+    }
+}
@@ -0,0 +1,103 @@
+package feign.fluentd;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class SinkCircuitBreakerTest {
+
+    private final SinkCircuitBreaker breaker = SinkCircuitBreaker.builder()
+            .failureThreshold(3)
+            .slowSendThreshold(1, TimeUnit.SECONDS)
+            .openDuration(20, TimeUnit.MILLISECONDS)
+            .build();
+
+    private void fail(int times) {
+        for (int i = 0; i < times; i++) {
+            final long ticket = breaker.acquire();
+            assertThat(ticket == SinkCircuitBreaker.DENIED, is(false));
+            breaker.record(ticket, false, System.nanoTime());
+        }
+    }
+
+    @Test
+    public void should_open_after_consecutive_failures() {
+        fail(2);
+        breaker.record(breaker.acquire(), true, System.nanoTime());
+        fail(2);
+        assertThat(breaker.state(), is(SinkCircuitBreaker.State.CLOSED));
+        fail(1);
+        assertThat(breaker.state(), is(SinkCircuitBreaker.State.OPEN));
+        assertThat(breaker.acquire(), is(SinkCircuitBreaker.DENIED));
+        assertThat(breaker.acquire(), is(SinkCircuitBreaker.DENIED));
+        assertThat(breaker.skippedEvents(), is(2L));
+        assertThat(breaker.openedCount(), is(1L));
+    }
+
+    @Test
+    public void should_count_slow_sends_as_failures() {
+        for (int i = 0; i < 3; i++) {
+            breaker.record(breaker.acquire(), true, System.nanoTime() - TimeUnit.SECONDS.toNanos(2));
+        }
+        assertThat(breaker.state(), is(SinkCircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    public void should_close_after_successful_probe() throws InterruptedException {
+        fail(3);
+        Thread.sleep(30);
+        final long probe = breaker.acquire();
+        assertThat(breaker.isProbe(probe), is(true));
+        assertThat(breaker.state(), is(SinkCircuitBreaker.State.HALF_OPEN));
+        assertThat(breaker.acquire(), is(SinkCircuitBreaker.DENIED));
+        breaker.record(probe, true, System.nanoTime());
+        assertThat(breaker.state(), is(SinkCircuitBreaker.State.CLOSED));
+        assertThat(breaker.acquire() == SinkCircuitBreaker.DENIED, is(false));
+    }
+
+    @Test
+    public void should_reopen_after_failed_probe() throws InterruptedException {
+        fail(3);
+        Thread.sleep(30);
+        breaker.record(breaker.acquire(), false, System.nanoTime());
+        assertThat(breaker.state(), is(SinkCircuitBreaker.State.OPEN));
+        assertThat(breaker.acquire(), is(SinkCircuitBreaker.DENIED));
+        assertThat(breaker.openedCount(), is(2L));
+    }
+
+    @Test
+    public void should_take_only_the_probes_outcome_while_half_open() throws InterruptedException {
+        final long early = breaker.acquire();
+        fail(3);
+        Thread.sleep(30);
+        final long probe = breaker.acquire();
+
+        // a send let through before the breaker opened neither closes nor reopens it
+        breaker.record(early, true, System.nanoTime());
+        breaker.record(SinkCircuitBreaker.UNTRACKED, true, System.nanoTime());
+        assertThat(breaker.state(), is(SinkCircuitBreaker.State.HALF_OPEN));
+        breaker.record(early, false, System.nanoTime());
+        assertThat(breaker.state(), is(SinkCircuitBreaker.State.HALF_OPEN));
+
+        breaker.record(probe, true, System.nanoTime());
+        assertThat(breaker.state(), is(SinkCircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void should_ignore_a_probe_that_was_replaced() throws InterruptedException {
+        fail(3);
+        Thread.sleep(30);
+        final long lost = breaker.acquire();
+        Thread.sleep(30);
+        final long probe = breaker.acquire();
+        assertThat(breaker.isProbe(lost), is(false));
+
+        breaker.record(lost, true, System.nanoTime());
+        assertThat(breaker.state(), is(SinkCircuitBreaker.State.HALF_OPEN));
+        breaker.record(probe, false, System.nanoTime());
+        assertThat(breaker.state(), is(SinkCircuitBreaker.State.OPEN));
+    }
+}
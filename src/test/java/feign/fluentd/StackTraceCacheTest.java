@@ -0,0 +1,33 @@
+package feign.fluentd;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class StackTraceCacheTest {
+
+    @Test
+    public void should_count_repeats_within_a_window() {
+        final StackTraceCache cache = new StackTraceCache(10, 100);
+        assertThat(cache.seen(1, 0), is(0L));
+        assertThat(cache.seen(1, 50), is(1L));
+        assertThat(cache.seen(1, 99), is(2L));
+        assertThat(cache.seen(1, 100), is(0L));
+    }
+
+    @Test
+    public void should_forget_the_least_recently_seen_fingerprints() {
+        final StackTraceCache cache = new StackTraceCache(4, 1000);
+        for (long fingerprint = 1; fingerprint <= 4; fingerprint++) {
+            cache.seen(fingerprint, fingerprint);
+        }
+        cache.seen(1, 10);
+        cache.seen(5, 11);
+
+        assertThat(cache.size(), is(3));
+        assertThat(cache.seen(1, 12), is(2L));
+        assertThat(cache.seen(5, 13), is(1L));
+        assertThat(cache.seen(2, 14), is(0L));
+    }
+}
@@ -0,0 +1,75 @@
+package feign.fluentd;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class UrlSplitterTest {
+
+    private static Map<String, Object> split(String url) {
+        final UrlSplitter splitter = new UrlSplitter();
+        assertThat(url, splitter.split(url), is(true));
+        final MapEventRecord record = new MapEventRecord();
+        splitter.writeTo(record, "uri");
+        @SuppressWarnings("unchecked") final Map<String, Object> uri = (Map<String, Object>) record.map().get("uri");
+        return uri;
+    }
+
+    private static Map<String, Object> parse(String url) throws URISyntaxException {
+        final URI uri = new URI(url);
+        final Map<String, Object> map = new HashMap<>();
+        map.put("host", uri.getHost());
+        map.put("path", uri.getPath());
+        map.put("port", uri.getPort());
+        map.put("scheme", uri.getScheme());
+        map.put("query", uri.getQuery());
+        return map;
+    }
+
+    @Test
+    public void should_agree_with_java_net_uri() throws URISyntaxException {
+        for (String url : asList(
+                "http://api.example.com",
+                "https://api.example.com/",
+                "HTTPS://Api.Example.com:8443/v1/users/42?expand=true&x=a,b",
+                "http://localhost:8080",
+                "http://10.0.0.1:80/health",
+                "http://example.com./trailing",
+                "http://a-b.example.com/p;matrix=1/(x)~y",
+                "http://example.com?",
+                "http://example.com?q=a/b?c",
+                "http://123/numeric-label")) {
+            assertThat(url, split(url), is(parse(url)));
+        }
+    }
+
+    @Test
+    public void should_leave_other_urls_to_java_net_uri() {
+        for (String url : asList(
+                "/api",
+                "ftp://example.com/file",
+                "http://user@example.com/",
+                "http://[::1]:8080/",
+                "http://example.com/a%20b",
+                "http://example.com/#fragment",
+                "http://example.com/with space",
+                "http://example.com/{template}",
+                "http://ex_ample.com/",
+                "http://-example.com/",
+                "http://example.1/",
+                "http://1.2.3/",
+                "http://example.com:/",
+                "http://example.com:123456/",
+                "http:///path",
+                "http://exämple.com/")) {
+            assertThat(url, new UrlSplitter().split(url), is(false));
+        }
+    }
+}